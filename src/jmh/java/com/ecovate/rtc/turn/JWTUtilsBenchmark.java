@@ -0,0 +1,128 @@
+package com.ecovate.rtc.turn;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JWTUtilsBenchmark {
+
+  /**
+   * The JWTUtils every thread takes its own partition of, so the metrics are only registered once.
+   */
+  @State(Scope.Benchmark)
+  public static class RootState {
+    JWTUtils ju;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      ju = new JWTUtils(Utils.getScheduler());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      ju.reset();
+      Utils.resetRegistries();
+    }
+  }
+
+  /**
+   * Per thread so threads never reorder each others keys.  Cold never caches a token and cycles through
+   * tokens signed by each key in turn, the key needed next is always the least recently used one so
+   * every check tries all of the static keys.
+   */
+  @State(Scope.Thread)
+  public static class ValidateState {
+    @Param({"1", "10", "100"})
+    public int staticKeys;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    JWTUtils ju;
+    DecodedJWT[] tokens;
+    int next = 0;
+    ClientID cid = new ClientID("BENCHMARK");
+
+    @Setup(Level.Trial)
+    public void setup(RootState root) throws Exception {
+      ju = root.ju.newPartition();
+      final boolean cold = cache.equals("cold");
+      if(cold) {
+        ju.updateJWTCacheLimits(0, 60000);
+      }
+      tokens = new DecodedJWT[cold ? staticKeys : 1];
+      for(int i=0; i<staticKeys; i++) {
+        KeyPair kp = Keys.keyPairFor(SignatureAlgorithm.RS256);
+        ju.addStaticKey(kp.getPublic());
+        if(i < tokens.length) {
+          tokens[i] = JWT.decode(Jwts.builder().setSubject("Bob").signWith(kp.getPrivate()).compact());
+        }
+      }
+      for(DecodedJWT djwt: tokens) {
+        if(!ju.validateJWT(cid, djwt).get()) {
+          throw new IllegalStateException("Benchmark JWT did not validate!");
+        }
+      }
+    }
+
+    DecodedJWT nextToken() {
+      final DecodedJWT djwt = tokens[next];
+      next = (next+1) % tokens.length;
+      return djwt;
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ScopeState {
+    JWTUtils ju;
+    DecodedJWT djwt;
+    List<String> requiredScopes = Arrays.asList("turnAllowed", "adminAllowed");
+
+    @Setup(Level.Trial)
+    public void setup() {
+      ju = new JWTUtils(Utils.getScheduler());
+      KeyPair kp = Keys.keyPairFor(SignatureAlgorithm.RS256);
+      djwt = JWT.decode(Jwts.builder()
+          .setSubject("Bob")
+          .claim("scp", Arrays.asList("read", "write", "turnAllowed"))
+          .signWith(kp.getPrivate()).compact());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Utils.resetRegistries();
+    }
+  }
+
+  @Benchmark
+  public Boolean validateJWT(ValidateState vs) throws Exception {
+    return vs.ju.validateJWT(vs.cid, vs.nextToken()).get();
+  }
+
+  @Benchmark
+  public boolean checkScopes(ScopeState ss) {
+    return ss.ju.checkScopes(ss.requiredScopes, false, ss.djwt);
+  }
+}
@@ -0,0 +1,68 @@
+package com.ecovate.rtc.turn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TurnRestDispatchBenchmark {
+
+  @Param({"/turn", "/clients/turnRestClient-1.2.0.js", "/monitor/metrics", "/ping", "/notfound"})
+  public String path;
+
+  private File configFile;
+  private TurnRest tr;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    TurnRestConfig trc = new TurnRestConfig("12312", 
+        true, 
+        new String[] {"turn:turn.test.com"}, 
+        new String[] {"stun:stun.test.com"}, 
+        null, 
+        null, 
+        null, 
+        null, 
+        15000L, 
+        null, 
+        null, 
+        "*");
+    configFile = File.createTempFile("turnrestBench", ".json");
+    RandomAccessFile raf = new RandomAccessFile(configFile, "rw");
+    try {
+      raf.write(trc.toString().getBytes());
+    } finally {
+      raf.close();
+    }
+    //The servers are never started, we only need the routes
+    InetSocketAddress isa = new InetSocketAddress("127.0.0.1", 0);
+    tr = new TurnRest(Utils.getScheduler(), Utils.getSocketExecuter(), isa, isa, configFile, 30000);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tr.getJWTUtils().reset();
+    Utils.resetRegistries();
+    configFile.delete();
+  }
+
+  @Benchmark
+  public HTTPRoute findRoute() {
+    return tr.findRoute("GET", path);
+  }
+}
@@ -0,0 +1,47 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TurnRestResponseBenchmark {
+
+  private TurnRestConfig trc;
+
+  @Setup
+  public void setup() {
+    trc = new TurnRestConfig("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX", 
+        false, 
+        new String[] {"turn:turn1.test.com?transport=udp", "turns:turn1.test.com?transport=tcp"}, 
+        new String[] {"stun:stun.test.com:3478"}, 
+        null, 
+        null, 
+        null, 
+        null, 
+        15000L, 
+        null, 
+        null, 
+        "*");
+  }
+
+  @Benchmark
+  public TurnRestResponse makeResponse() {
+    return TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser("benchUser"));
+  }
+
+  @Benchmark
+  public ByteBuffer makeAndEncodeResponse() {
+    CompiledTurnRestConfig ctrc = trc.getCompiled();
+    return ctrc.getResponseEncoder().encode(TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("benchUser")));
+  }
+}
@@ -0,0 +1,33 @@
+package com.ecovate.rtc.turn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UtilsBenchmark {
+
+  private String jws;
+
+  @Setup
+  public void setup() {
+    jws = Jwts.builder().setSubject("Bob").signWith(Keys.keyPairFor(SignatureAlgorithm.RS256).getPrivate()).compact();
+  }
+
+  @Benchmark
+  public String shaString() {
+    return Utils.SHAString(jws);
+  }
+}
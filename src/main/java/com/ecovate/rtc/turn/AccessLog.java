@@ -0,0 +1,170 @@
+package com.ecovate.rtc.turn;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.util.AbstractService;
+import org.threadly.util.Clock;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+import io.prometheus.client.Counter;
+
+/**
+ * One line per request, written off of the I/O threads.  Requests are put in a fixed size ring that
+ * any thread can add to without locking, and a scheduled task drains it and writes everything it found
+ * as a single log call.  If the writer falls behind the ring fills up and new lines are dropped rather
+ * than slowing down requests.
+ *
+ * Successful requests can be sampled, anything with a status of 400 or more is always logged.
+ */
+public class AccessLog extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  public static final double DEFAULT_SAMPLE_RATE = 1.0;
+  private static final long DRAIN_INTERVAL = 200;
+
+  private final Counter accessLogCounter = Counter.build()
+      .name(TurnRest.TURN_REST+"access_log_total")
+      .help("Access log lines by what happened to them.")
+      .labelNames("result")
+      .register(Utils.getMetricsRegistry());
+
+  private final PriorityScheduler ps;
+  private final AtomicReferenceArray<Entry> ring;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  //Only the drain moves the tail
+  private volatile long tail = 0;
+  private volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+  private final Runnable drainer = ()->drain();
+
+  public AccessLog(PriorityScheduler ps) {
+    this(ps, DEFAULT_BUFFER_SIZE);
+  }
+
+  public AccessLog(PriorityScheduler ps, int bufferSize) {
+    this.ps = ps;
+    int size = Integer.highestOneBit(Math.max(2, bufferSize)-1) << 1;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  public void setSampleRate(double sampleRate) {
+    if(this.sampleRate != sampleRate) {
+      this.sampleRate = sampleRate;
+      log.info("Set access log sample rate:{}", sampleRate);
+    }
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Records a finished request.
+   *
+   * @param clientID the requests id, this also carries how the request was authorized.
+   * @param method the HTTP method.
+   * @param path the request path, never the query as that can hold a JWT.
+   * @param status the response code sent.
+   * @param latencyNanos how long the request took.
+   * @return true if the line was queued, false if it was sampled out or the ring was full.
+   */
+  public boolean record(ClientID clientID, String method, String path, int status, long latencyNanos) {
+    final double rate = sampleRate;
+    if(status < 400 && rate < 1.0 && (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)) {
+      accessLogCounter.labels("sampled").inc();
+      return false;
+    }
+    long h;
+    do {
+      h = head.get();
+      if(h - tail >= ring.length()) {
+        accessLogCounter.labels("dropped").inc();
+        return false;
+      }
+    } while(!head.compareAndSet(h, h+1));
+    ring.lazySet((int)(h & mask), new Entry(Clock.lastKnownTimeMillis(), clientID, method, path, status, latencyNanos));
+    return true;
+  }
+
+  /**
+   * Writes out everything currently in the ring.
+   *
+   * @return the number of lines written.
+   */
+  public int drain() {
+    StringBuilder sb = null;
+    int count = 0;
+    synchronized(this) {
+      long t = tail;
+      while(true) {
+        int idx = (int)(t & mask);
+        Entry e = ring.get(idx);
+        //Either empty or the thread that claimed the slot has not filled it yet
+        if(e == null) {
+          break;
+        }
+        ring.lazySet(idx, null);
+        t++;
+        if(sb == null) {
+          sb = new StringBuilder();
+        }
+        e.appendTo(sb);
+        count++;
+      }
+      tail = t;
+    }
+    if(count > 0) {
+      sb.setLength(sb.length()-1);
+      log.info("{}", sb);
+      accessLogCounter.labels("written").inc(count);
+    }
+    return count;
+  }
+
+  @Override
+  protected void startupService() {
+    ps.scheduleAtFixedRate(drainer, DRAIN_INTERVAL, DRAIN_INTERVAL);
+  }
+
+  @Override
+  protected void shutdownService() {
+    ps.remove(drainer);
+    drain();
+  }
+
+  private static class Entry {
+    private final long time;
+    private final ClientID clientID;
+    private final String method;
+    private final String path;
+    private final int status;
+    private final long latencyNanos;
+
+    private Entry(long time, ClientID clientID, String method, String path, int status, long latencyNanos) {
+      this.time = time;
+      this.clientID = clientID;
+      this.method = method;
+      this.path = path;
+      this.status = status;
+      this.latencyNanos = latencyNanos;
+    }
+
+    private void appendTo(StringBuilder sb) {
+      sb.append("ts=").append(time)
+      .append(" id=").append(clientID.clientID)
+      .append(" method=").append(method)
+      .append(" path=").append(path)
+      .append(" status=").append(status)
+      .append(" latency_us=").append(latencyNanos/1000)
+      .append(" auth=").append(clientID.getAuthResult() == null ? "-" : clientID.getAuthResult())
+      .append('\n');
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.ecovate.rtc.turn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.litesockets.SocketExecuter;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Decides if a request is let in or turned away with a 503.  Requests are turned away when too many
+ * clients are connected or when the number of requests in flight is over the concurrency limit.
+ *
+ * The limit is adjusted with a latency gradient.  A short and a long moving average of request latency
+ * are kept, while the short average stays near the long one the limit slowly grows, once it rises above
+ * it (requests are queueing somewhere) the limit is cut in proportion.  The limit only grows while we
+ * are actually using at least half of it, so an idle server does not drift up to the max.
+ */
+public class AdmissionController {
+  private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+  public static final int DEFAULT_MIN_LIMIT = 20;
+  public static final int DEFAULT_MAX_LIMIT = 2000;
+  public static final int DEFAULT_MAX_CLIENTS = 4000;
+  private static final int INITIAL_LIMIT = 200;
+  private static final double SHORT_WINDOW = 10;
+  private static final double LONG_WINDOW = 500;
+  //How much slower than normal requests can get before the limit starts coming down
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+
+  private final Gauge admissionLimit = Gauge.build()
+      .name(TurnRest.TURN_REST+"admission_limit")
+      .help("Current concurrent request limit.")
+      .register(Utils.getMetricsRegistry());
+
+  private final Gauge admissionInflight = Gauge.build()
+      .name(TurnRest.TURN_REST+"admission_inflight")
+      .help("Requests currently being processed.")
+      .register(Utils.getMetricsRegistry());
+
+  private final Gauge admissionLatency = Gauge.build()
+      .name(TurnRest.TURN_REST+"admission_latency_seconds")
+      .help("Moving averages of request latency used to set the limit.")
+      .labelNames("window")
+      .register(Utils.getMetricsRegistry());
+
+  private final Counter admissionRejected = Counter.build()
+      .name(TurnRest.TURN_REST+"admission_rejected_total")
+      .help("Requests turned away with a 503.")
+      .labelNames("reason")
+      .register(Utils.getMetricsRegistry());
+
+  private final SocketExecuter se;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final ReentrantLock sampleLock = new ReentrantLock();
+  private volatile double limit = INITIAL_LIMIT;
+  private volatile int minLimit = DEFAULT_MIN_LIMIT;
+  private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+  private volatile int maxClients = DEFAULT_MAX_CLIENTS;
+  private double shortLatency = 0;
+  private double longLatency = 0;
+
+  /**
+   * @param se the {@link SocketExecuter} to check the client count on, null to not check it.
+   */
+  public AdmissionController(SocketExecuter se) {
+    this.se = se;
+    admissionLimit.set(limit);
+  }
+
+  public void setLimits(int minLimit, int maxLimit, int maxClients) {
+    if(this.minLimit != minLimit || this.maxLimit != maxLimit || this.maxClients != maxClients) {
+      this.minLimit = minLimit;
+      this.maxLimit = Math.max(minLimit, maxLimit);
+      this.maxClients = maxClients;
+      limit = Math.max(this.minLimit, Math.min(this.maxLimit, limit));
+      admissionLimit.set(limit);
+      log.info("Set admission limits min:{} max:{} maxClients:{}", minLimit, maxLimit, maxClients);
+    }
+  }
+
+  public int getLimit() {
+    return (int)limit;
+  }
+
+  public int getInflight() {
+    return inflight.get();
+  }
+
+  public int getMaxClients() {
+    return maxClients;
+  }
+
+  /**
+   * Tries to let a request in.  Every request that is let in must call {@link #release(long)} once it
+   * is done.
+   *
+   * @return true if the request can be processed, false if it should be turned away.
+   */
+  public boolean tryAcquire() {
+    if(se != null && se.getClientCount() > maxClients) {
+      admissionRejected.labels("clients").inc();
+      return false;
+    }
+    final int lim = (int)limit;
+    while(true) {
+      int current = inflight.get();
+      if(current >= lim) {
+        admissionRejected.labels("limit").inc();
+        return false;
+      }
+      if(inflight.compareAndSet(current, current+1)) {
+        admissionInflight.set(current+1);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Marks a request let in by {@link #tryAcquire()} as finished.
+   *
+   * @param latencyNanos how long the request took.
+   */
+  public void release(long latencyNanos) {
+    final int current = inflight.getAndDecrement();
+    admissionInflight.set(current-1);
+    //Samples are only used to steer the limit, if another thread is already updating it this one can be skipped
+    if(sampleLock.tryLock()) {
+      try {
+        update(latencyNanos, current);
+      } finally {
+        sampleLock.unlock();
+      }
+    }
+  }
+
+  private void update(long latencyNanos, int inflightAtRelease) {
+    final double sample = Math.max(1, latencyNanos);
+    if(longLatency == 0) {
+      shortLatency = sample;
+      longLatency = sample;
+    } else {
+      shortLatency += (sample - shortLatency) / SHORT_WINDOW;
+      longLatency += (sample - longLatency) / LONG_WINDOW;
+    }
+    //After a slow period the long average would otherwise take a long time to come back down
+    if(longLatency / shortLatency > 2) {
+      longLatency *= 0.95;
+    }
+    admissionLatency.labels("short").set(shortLatency / TimeUnit.SECONDS.toNanos(1));
+    admissionLatency.labels("long").set(longLatency / TimeUnit.SECONDS.toNanos(1));
+    final double current = limit;
+    if(inflightAtRelease < current / 2) {
+      return;
+    }
+    final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+    final double target = current * gradient + Math.sqrt(current);
+    final double newLimit = Math.max(minLimit, Math.min(maxLimit, current * (1 - SMOOTHING) + target * SMOOTHING));
+    limit = newLimit;
+    admissionLimit.set(newLimit);
+  }
+}
@@ -0,0 +1,18 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+/**
+ * A {@link RequestHandler} for requests that carry a body.  It is only called once the whole body has
+ * been read.
+ */
+@FunctionalInterface
+public interface BodyRequestHandler {
+
+  public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, ByteBuffer body, TurnRestConfig trc);
+}
@@ -0,0 +1,265 @@
+package com.ecovate.rtc.turn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+
+import com.ecovate.rtc.turn.TurnRestResponse.IceServers;
+
+/**
+ * An immutable snapshot of everything we can work out from a {@link TurnRestConfig} ahead of time.
+ * This is built once when the config is loaded so minting credentials does not have to redo key setup,
+ * provider lookups or list copies on every request.
+ */
+public class CompiledTurnRestConfig {
+  static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+
+  private final TurnRestConfig config;
+  private final ThreadLocal<Mac> macs;
+  private final String[] turnURIs;
+  private final String[] stunURIs;
+  //Indexed by what the region map returns
+  private final String[] regionNames;
+  private final Map<String, Integer> regionIndex;
+  private final String[][] regionTurnURIs;
+  private final String[][] regionStunURIs;
+  private final RegionMap regionMap;
+  private final String addressHeader;
+  private final List<String> requiredScopes;
+  private final List<String> batchScopes;
+  //The servers handed out right now, reordered and filtered as they are probed
+  private volatile ServerSet servers;
+  private final CredentialCache credentialCache;
+  private final long ttl;
+
+  CompiledTurnRestConfig(final TurnRestConfig config) {
+    this.config = config;
+    this.ttl = config.getTTL();
+    this.requiredScopes = config.getRequiredScopes();
+    this.batchScopes = config.getBatchJWTScopes();
+    this.turnURIs = config.getTURNURIs().toArray(new String[0]);
+    this.stunURIs = config.getSTUNURIs().toArray(new String[0]);
+    final Map<String, TurnRestConfig.Region> regions = new TreeMap<>(config.getRegions());
+    this.regionNames = regions.keySet().toArray(new String[0]);
+    this.regionTurnURIs = new String[regionNames.length][];
+    this.regionStunURIs = new String[regionNames.length][];
+    final HashMap<String, Integer> regionIndex = new HashMap<>();
+    for(int i=0; i<regionNames.length; i++) {
+      final TurnRestConfig.Region r = regions.get(regionNames[i]);
+      if(r == null) {
+        throw new IllegalArgumentException("No servers for region:"+regionNames[i]);
+      }
+      regionTurnURIs[i] = r.getTURNURIs() == null ? turnURIs : r.getTURNURIs().toArray(new String[0]);
+      regionStunURIs[i] = r.getSTUNURIs() == null ? stunURIs : r.getSTUNURIs().toArray(new String[0]);
+      regionIndex.put(regionNames[i], i);
+    }
+    this.regionIndex = regionIndex;
+    if(config.getRegionMapFile() != null) {
+      try {
+        this.regionMap = RegionMap.load(new File(config.getRegionMapFile()), regionIndex);
+      } catch(IOException e) {
+        throw new UncheckedIOException("Error reading regionMapFile", e);
+      }
+    } else {
+      this.regionMap = null;
+    }
+    this.addressHeader = config.getRateLimitAddressHeader();
+    this.servers = makeServers(turnURIs, stunURIs, regionTurnURIs, regionStunURIs);
+    if(config.getSecretKey() != null) {
+      final SecretKeySpec signingKey = new SecretKeySpec(config.getSecretKey().getBytes(), HMAC_SHA1_ALGORITHM);
+      //Make sure the key is usable now, not on the first request
+      makeMac(signingKey);
+      this.macs = ThreadLocal.withInitial(()->makeMac(signingKey));
+    } else {
+      this.macs = null;
+    }
+    if(config.getCredentialReuseWindow() > 0) {
+      this.credentialCache = new CredentialCache(this, config.getCredentialReuseWindow(), config.getCredentialCacheSize());
+    } else {
+      this.credentialCache = null;
+    }
+  }
+
+  private static Mac makeMac(SecretKeySpec key) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public TurnRestConfig getConfig() {
+    return config;
+  }
+
+  public long getTTL() {
+    return ttl;
+  }
+
+  public List<String> getRequiredScopes() {
+    return requiredScopes;
+  }
+
+  public List<String> getBatchScopes() {
+    return batchScopes;
+  }
+
+  String[] getTURNURIs() {
+    return servers.turnURIs;
+  }
+
+  String[] getSTUNURIs() {
+    return servers.stunURIs;
+  }
+
+  IceServers getSTUNServers() {
+    return servers.stunServers;
+  }
+
+  ServerSet getServers() {
+    return servers;
+  }
+
+  public TurnRestResponseEncoder getResponseEncoder() {
+    return servers.responseEncoder;
+  }
+
+  /**
+   * @return the names of the regions, in the order of the indexes {@link #getRegion} returns.
+   */
+  public String[] getRegionNames() {
+    return regionNames.clone();
+  }
+
+  /**
+   * @return the name of a region index, null for {@link RegionMap#NO_REGION}.
+   */
+  public String getRegionName(int region) {
+    if(region < 0 || region >= regionNames.length) {
+      return null;
+    }
+    return regionNames[region];
+  }
+
+  /**
+   * @return the index of a region by name, {@link RegionMap#NO_REGION} for null or a region this config
+   * does not have.
+   */
+  public int getRegionIndex(String name) {
+    final Integer idx = name == null ? null : regionIndex.get(name);
+    return idx == null ? RegionMap.NO_REGION : idx;
+  }
+
+  /**
+   * Finds the region a request came from by the last address in the trusted forwarding header.
+   *
+   * @return the index of the region, {@link RegionMap#NO_REGION} if it is in none or there is no region map.
+   */
+  public int getRegion(HTTPRequest hr) {
+    if(regionMap == null) {
+      return RegionMap.NO_REGION;
+    }
+    return regionMap.lookupForwarded(hr.getHTTPHeaders().getHeader(addressHeader));
+  }
+
+  /**
+   * Reorders and filters the configured servers by how they last probed.  The response template is
+   * rebuilt here, only when the result changes, so minting credentials does no extra work.
+   */
+  void updateServers(IceServerProber prober) {
+    final ServerSet ss = servers;
+    final String[] turn = prober.rank(turnURIs);
+    final String[] stun = prober.rank(stunURIs);
+    boolean changed = !Arrays.equals(turn, ss.turnURIs) || !Arrays.equals(stun, ss.stunURIs);
+    final String[][] rturn = new String[regionNames.length][];
+    final String[][] rstun = new String[regionNames.length][];
+    for(int i=0; i<regionNames.length; i++) {
+      rturn[i] = prober.rank(regionTurnURIs[i]);
+      rstun[i] = prober.rank(regionStunURIs[i]);
+      changed |= !Arrays.equals(rturn[i], ss.regions[i].turnURIs) || !Arrays.equals(rstun[i], ss.regions[i].stunURIs);
+    }
+    if(changed) {
+      servers = makeServers(turn, stun, rturn, rstun);
+    }
+  }
+
+  private ServerSet makeServers(String[] turn, String[] stun, String[][] rturn, String[][] rstun) {
+    final ServerSet[] regions = new ServerSet[regionNames.length];
+    for(int i=0; i<regions.length; i++) {
+      regions[i] = new ServerSet(config, rturn[i], rstun[i], ttl, null);
+    }
+    return new ServerSet(config, turn, stun, ttl, regions);
+  }
+
+  /**
+   * @return the cache of credentials handed out in the current reuse window, or null if credentials are
+   * not reused.
+   */
+  public CredentialCache getCredentialCache() {
+    return credentialCache;
+  }
+
+  /**
+   * The servers to hand out and the template that encodes them, always swapped together.
+   */
+  static class ServerSet {
+    final String[] turnURIs;
+    final String[] stunURIs;
+    final IceServers stunServers;
+    final TurnRestResponseEncoder responseEncoder;
+    //null unless relays are assigned per user
+    final RelayRing relayRing;
+    //The servers for each region, null in a regions own set
+    final ServerSet[] regions;
+
+    private ServerSet(TurnRestConfig config, String[] turnURIs, String[] stunURIs, long ttl, ServerSet[] regions) {
+      this.regions = regions;
+      this.turnURIs = turnURIs;
+      this.stunURIs = stunURIs;
+      if(stunURIs.length > 0) {
+        this.stunServers = new IceServers(stunURIs);
+      } else {
+        this.stunServers = null;
+      }
+      this.responseEncoder = new TurnRestResponseEncoder(turnURIs, stunURIs, ttl);
+      if(config.getRelayHashing() && turnURIs.length > 1) {
+        this.relayRing = new RelayRing(turnURIs, config.getRelayWeights(), config.getRelayFallbacks(), stunURIs, ttl);
+      } else {
+        this.relayRing = null;
+      }
+    }
+  }
+
+  /**
+   * @return the servers for a region, the top level ones for {@link RegionMap#NO_REGION}.
+   */
+  ServerSet getServers(int region) {
+    final ServerSet ss = servers;
+    if(region < 0 || region >= ss.regions.length) {
+      return ss;
+    }
+    return ss.regions[region];
+  }
+
+  public String makePassword(String user) {
+    if(macs == null) {
+      throw new IllegalStateException("No secretKey configured!");
+    }
+    //doFinal resets the Mac so it is ready for the next call on this thread
+    return Base64.getEncoder().encodeToString(macs.get().doFinal(user.getBytes()));
+  }
+}
@@ -0,0 +1,118 @@
+package com.ecovate.rtc.turn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.AbstractService;
+import org.threadly.util.Clock;
+
+/**
+ * Watches the directory a file is in and runs a reload when anything in it changes.  The whole directory
+ * is watched, not just the file, because mounted config (a kubernetes ConfigMap for one) is swapped in by
+ * moving a symlink and the file itself never sees an event.  Events are debounced so an editor saving in
+ * several writes, or a rename and create, cause one reload once no event has come in for the debounce time.
+ *
+ * The reload is run on the scheduler, never on the watching thread, and is expected to notice for itself
+ * when nothing it cares about has changed.
+ */
+public class ConfigWatcher extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+  public static final long DEFAULT_DEBOUNCE = 200;
+
+  private final File file;
+  private final SubmitterScheduler scheduler;
+  private final Runnable reload;
+  private final long debounce;
+  private final AtomicBoolean pending = new AtomicBoolean(false);
+  private volatile long lastEvent;
+  private final Runnable debounced = this::debounced;
+  private volatile WatchService ws;
+
+  public ConfigWatcher(File file, SubmitterScheduler scheduler, Runnable reload) {
+    this(file, scheduler, reload, DEFAULT_DEBOUNCE);
+  }
+
+  /**
+   * @param debounce millis to wait after the last event before reloading.
+   */
+  public ConfigWatcher(File file, SubmitterScheduler scheduler, Runnable reload, long debounce) {
+    this.file = file.getAbsoluteFile();
+    this.scheduler = scheduler;
+    this.reload = reload;
+    this.debounce = debounce;
+  }
+
+  private void debounced() {
+    //Every event pushes the reload back, it only runs once they stop
+    final long wait = lastEvent + debounce - Clock.accurateTimeMillis();
+    if(wait > 0) {
+      scheduler.schedule(debounced, wait);
+      return;
+    }
+    pending.set(false);
+    runReload();
+  }
+
+  private void runReload() {
+    try {
+      reload.run();
+    } catch(RuntimeException e) {
+      log.error("Error reloading:{}", file, e);
+    }
+  }
+
+  private void watch(WatchService ws) {
+    while(true) {
+      final WatchKey key;
+      try {
+        key = ws.take();
+      } catch(InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      //Only that something changed matters, it is all handled by the one reload
+      key.pollEvents();
+      lastEvent = Clock.accurateTimeMillis();
+      if(pending.compareAndSet(false, true)) {
+        scheduler.schedule(debounced, debounce);
+      }
+      if(!key.reset()) {
+        log.warn("Stopped watching {}, the directory is gone", file.getParentFile());
+        return;
+      }
+    }
+  }
+
+  @Override
+  protected void startupService() {
+    try {
+      final WatchService ws = FileSystems.getDefault().newWatchService();
+      file.getParentFile().toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE, 
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      this.ws = ws;
+      Thread t = new Thread(()->watch(ws), "ConfigWatcher");
+      t.setDaemon(true);
+      t.start();
+      log.info("Watching {} for changes", file);
+    } catch(IOException e) {
+      throw new RuntimeException("Could not watch "+file, e);
+    }
+  }
+
+  @Override
+  protected void shutdownService() {
+    try {
+      ws.close();
+    } catch(IOException e) {
+      log.warn("Error closing watcher for {}", file, e);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out the same credentials to a user for the length of a reuse window.  Time is cut into fixed
+ * windows and every credential minted in a window gets the same endtime, the end of the window plus the
+ * ttl, so the same user asking again is given the exact same response.  That response is encoded once
+ * and kept until the window ends.
+ *
+ * Only the current window is kept, when a new one starts the old entries are all dropped at once.  Once
+ * the window holds the max number of users new users are still served, just not cached.
+ */
+public class CredentialCache {
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  private final CompiledTurnRestConfig ctrc;
+  private final long window;
+  private final int maxSize;
+  private volatile Window current = new Window(-1);
+
+  /**
+   * @param ctrc the config credentials are minted from.
+   * @param window the length of the reuse window in millis.
+   * @param maxSize the most users cached at once.
+   */
+  public CredentialCache(CompiledTurnRestConfig ctrc, long window, int maxSize) {
+    this.ctrc = ctrc;
+    this.window = window;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param cr who the credential is for, each relay key, region and ttl is given its own credential.
+   * @param now the time in millis.
+   */
+  public Credential get(CredentialRequest cr, long now) {
+    final long idx = now / window;
+    Window w = current;
+    if(w.idx != idx) {
+      synchronized(this) {
+        w = current;
+        if(w.idx < idx) {
+          w = new Window(idx);
+          current = w;
+        }
+      }
+    }
+    //The same user in two rooms, or two regions, can be given different relays
+    Credential c = w.credentials.get(cr);
+    if(c == null) {
+      final long expiresAt = (idx+1) * window;
+      final long ttl = cr.getTTL() <= 0 ? ctrc.getTTL() : cr.getTTL();
+      final TurnRestResponse trr = TurnRestResponse.makeResponse(ctrc, cr, ttl, expiresAt/1000 + ttl);
+      c = new Credential(ctrc.getResponseEncoder().encode(trr), expiresAt);
+      //Racing threads mint the same credential, which ever lands first is used
+      if(w.credentials.size() < maxSize) {
+        Credential prev = w.credentials.putIfAbsent(cr, c);
+        if(prev != null) {
+          c = prev;
+        }
+      }
+    }
+    return c;
+  }
+
+  public int size() {
+    return current.credentials.size();
+  }
+
+  private static class Window {
+    private final long idx;
+    private final ConcurrentHashMap<CredentialRequest, Credential> credentials = new ConcurrentHashMap<>();
+
+    private Window(long idx) {
+      this.idx = idx;
+    }
+  }
+
+  public static class Credential {
+    private final ByteBuffer body;
+    private final long expiresAt;
+
+    private Credential(ByteBuffer body, long expiresAt) {
+      this.body = body;
+      this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @return the encoded {@link TurnRestResponse}.
+     */
+    public ByteBuffer getBody() {
+      return body.duplicate();
+    }
+
+    /**
+     * @return the time in millis a new credential will be minted for this user.
+     */
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+
+    /**
+     * @return how many seconds from now the response can be reused for.
+     */
+    public long getMaxAge(long now) {
+      return Math.max(0, (expiresAt - now) / 1000);
+    }
+  }
+}
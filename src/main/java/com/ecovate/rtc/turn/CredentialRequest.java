@@ -0,0 +1,86 @@
+package com.ecovate.rtc.turn;
+
+import java.util.Objects;
+
+/**
+ * Who credentials are minted for and how, see {@link TurnRestResponse#makeResponse}.  Equal requests
+ * get the same relays, so it is also what {@link CredentialCache} keys credentials by.
+ */
+public class CredentialRequest {
+
+  private final String username;
+  private final String relayKey;
+  private final int region;
+  private final int ttl;
+  private final int hash;
+
+  private CredentialRequest(String username, String relayKey, int region, int ttl) {
+    this.username = username;
+    this.relayKey = relayKey;
+    this.region = region;
+    this.ttl = ttl;
+    this.hash = (31 * ((31 * ((31 * Objects.hashCode(username)) + Objects.hashCode(relayKey))) + region)) + ttl;
+  }
+
+  /**
+   * Credentials for a user in no region, with the servers ordered by the user and the configured ttl.
+   *
+   * @param username the user, null or empty for a generated one.
+   */
+  public static CredentialRequest forUser(String username) {
+    return new CredentialRequest(username, null, RegionMap.NO_REGION, 0);
+  }
+
+  /**
+   * @param relayKey what the TURN servers are ordered by when relay hashing is on, null for the user.
+   */
+  public CredentialRequest withRelayKey(String relayKey) {
+    return new CredentialRequest(username, relayKey, region, ttl);
+  }
+
+  /**
+   * @param region the region the client is in from {@link CompiledTurnRestConfig#getRegion}.
+   */
+  public CredentialRequest withRegion(int region) {
+    return new CredentialRequest(username, relayKey, region, ttl);
+  }
+
+  /**
+   * @param ttl the ttl in seconds, 0 or less for the configured one.
+   */
+  public CredentialRequest withTTL(int ttl) {
+    return new CredentialRequest(username, relayKey, region, ttl);
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getRelayKey() {
+    return relayKey;
+  }
+
+  public int getRegion() {
+    return region;
+  }
+
+  public int getTTL() {
+    return ttl;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(!(o instanceof CredentialRequest)) {
+      return false;
+    }
+    //Kept apart field by field so no username or relay key can be mistaken for another
+    final CredentialRequest cr = (CredentialRequest)o;
+    return region == cr.region && ttl == cr.ttl && Objects.equals(username, cr.username) &&
+        Objects.equals(relayKey, cr.relayKey);
+  }
+}
@@ -0,0 +1,270 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.litesockets.server.http.HTTPServer.ResponseWriter;
+import org.threadly.util.AbstractService;
+import org.threadly.util.Clock;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Open Server-Sent Event streams that are pushed new credentials before the old ones expire.  Every
+ * stream sits in one shared {@link TimingWheel} that a single task on the scheduler advances once a
+ * tick, so an idle stream costs a wheel entry and its connection, no thread or scheduled task of its own.
+ *
+ * Each renewal lands at a random point between {@link #RENEW_MIN} and {@link #RENEW_MAX} of the way
+ * through the credentials ttl so clients that connected together do not all renew together.  Between
+ * renewals a comment is sent every heartbeat so proxies do not drop the idle connection and closed
+ * connections are noticed.  A stream is closed once the JWT it was opened with expires.
+ */
+public class CredentialStreams extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(CredentialStreams.class);
+  public static final int DEFAULT_MAX_STREAMS = 10000;
+  public static final long DEFAULT_HEARTBEAT = 30000; //30 seconds
+  private static final long TICK_MS = 1000;
+  private static final int WHEEL_LEVELS = 4;
+  private static final double RENEW_MIN = 0.7;
+  private static final double RENEW_MAX = 0.9;
+  //Tells the browser how long to wait before reconnecting a dropped stream
+  private static final byte[] RETRY = "retry: 5000\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] EVENT_END = "\n\n".getBytes(StandardCharsets.UTF_8);
+  private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(": ping\n\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+  private final Gauge openStreams = Gauge.build()
+      .name(TurnRest.TURN_REST+"credential_streams")
+      .help("Open credential streams.")
+      .register(Utils.getMetricsRegistry());
+
+  private final Counter streamEvents = Counter.build()
+      .name(TurnRest.TURN_REST+"credential_stream_events_total")
+      .help("Credential stream events by type.")
+      .labelNames("type")
+      .register(Utils.getMetricsRegistry());
+
+  private final PriorityScheduler ps;
+  private final Function<String, TurnRestConfig> configs;
+  private final TimingWheel<Stream> wheel;
+  private final AtomicInteger count = new AtomicInteger();
+  private final Runnable ticker = ()->tick(Clock.accurateTimeMillis());
+
+  /**
+   * @param config gives the config current when a renewal is minted.
+   */
+  public CredentialStreams(PriorityScheduler ps, Supplier<TurnRestConfig> config) {
+    this(ps, (tenant)->tenant == null ? config.get() : null);
+  }
+
+  /**
+   * @param configs gives the current config for a tenant, or the top level one for null.  Streams for a
+   * tenant that is gone are closed.
+   */
+  public CredentialStreams(PriorityScheduler ps, Function<String, TurnRestConfig> configs) {
+    this.ps = ps;
+    this.configs = configs;
+    this.wheel = new TimingWheel<>(TICK_MS, WHEEL_LEVELS, Clock.accurateTimeMillis());
+  }
+
+  public int size() {
+    return count.get();
+  }
+
+  /**
+   * Encodes the first event of a stream, the credentials the client can use right away.
+   */
+  public ByteBuffer firstEvent(TurnRestConfig trc, CredentialRequest cr) {
+    ByteBuffer creds = mint(trc.getCompiled(), cr);
+    ByteBuffer bb = ByteBuffer.allocate(RETRY.length + DATA.length + creds.remaining() + EVENT_END.length);
+    bb.put(RETRY).put(DATA).put(creds).put(EVENT_END);
+    bb.flip();
+    return bb;
+  }
+
+  /**
+   * Takes a slot for a new stream, before anything is sent to its client.  The limit is for the whole
+   * server, not per tenant.
+   *
+   * @return false if there are already too many streams open, nothing is reserved then.
+   */
+  public boolean reserve() {
+    if(count.incrementAndGet() > configs.apply(null).getMaxStreams()) {
+      count.decrementAndGet();
+      streamEvents.labels("rejected").inc();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Gives back a slot from {@link #reserve()} that was never opened.
+   */
+  public void release() {
+    count.decrementAndGet();
+  }
+
+  /**
+   * Starts renewing credentials on a stream whose first event has already been sent, in a slot taken
+   * with {@link #reserve()}.
+   *
+   * @param sink where events are written.
+   * @param trc the config the stream was opened with, renewals use the current config of the same tenant.
+   * @param cr who credentials are minted for.  Renewals use the same region, by name, in the current
+   * config, the top level servers if it no longer has the region.
+   * @param validUntil the time in millis the stream is closed at, the expiration of the JWT it was opened with.
+   * @param now the time in millis.
+   */
+  public void open(Sink sink, TurnRestConfig trc, CredentialRequest cr, long validUntil, long now) {
+    openStreams.inc();
+    streamEvents.labels("opened").inc();
+    Stream s = new Stream(sink, trc.getTenant(), cr, trc.getCompiled().getRegionName(cr.getRegion()), validUntil);
+    s.nextRenew = renewAt(trc, now);
+    schedule(trc, s, now);
+  }
+
+  /**
+   * Handles every stream that has come due.
+   */
+  public void tick(long now) {
+    final List<Stream> due;
+    synchronized(wheel) {
+      due = wheel.advance(now);
+    }
+    if(due.isEmpty()) {
+      return;
+    }
+    final TurnRestConfig rootConfig = configs.apply(null);
+    for(Stream s: due) {
+      final TurnRestConfig trc = s.tenant == null ? rootConfig : configs.apply(s.tenant);
+      try {
+        if(s.sink.isClosed()) {
+          closed(s, "dropped");
+        } else if(now >= s.validUntil || trc == null) {
+          s.sink.close();
+          closed(s, "expired");
+        } else {
+          if(now >= s.nextRenew) {
+            final CompiledTurnRestConfig ctrc = trc.getCompiled();
+            //By name, a reloaded config can number its regions differently
+            s.sink.write(event(mint(ctrc, s.request.withRegion(ctrc.getRegionIndex(s.region)))));
+            s.nextRenew = renewAt(trc, now);
+            streamEvents.labels("renewed").inc();
+          } else {
+            s.sink.write(HEARTBEAT.duplicate());
+          }
+          schedule(trc, s, now);
+        }
+      } catch(RuntimeException e) {
+        log.error("Error renewing stream for user:{}", s.request.getUsername(), e);
+        s.sink.close();
+        closed(s, "error");
+      }
+    }
+  }
+
+  private void schedule(TurnRestConfig trc, Stream s, long now) {
+    long next = Math.min(Math.min(s.nextRenew, now + trc.getStreamHeartbeat()), s.validUntil);
+    //The wheel only takes deadlines at least a tick out
+    next = Math.max(next, now + TICK_MS);
+    synchronized(wheel) {
+      //Another thread may have moved the wheel past now already
+      while(wheel.add(s, next) == null) {
+        next += TICK_MS;
+      }
+    }
+  }
+
+  private void closed(Stream s, String why) {
+    count.decrementAndGet();
+    openStreams.dec();
+    streamEvents.labels(why).inc();
+  }
+
+  private static long renewAt(TurnRestConfig trc, long now) {
+    final double at = RENEW_MIN + (ThreadLocalRandom.current().nextDouble() * (RENEW_MAX - RENEW_MIN));
+    return now + (long)(trc.getCompiled().getTTL() * 1000 * at);
+  }
+
+  private static ByteBuffer mint(CompiledTurnRestConfig ctrc, CredentialRequest cr) {
+    return ctrc.getResponseEncoder().encode(TurnRestResponse.makeResponse(ctrc, cr));
+  }
+
+  private static ByteBuffer event(ByteBuffer creds) {
+    ByteBuffer bb = ByteBuffer.allocate(DATA.length + creds.remaining() + EVENT_END.length);
+    bb.put(DATA).put(creds).put(EVENT_END);
+    bb.flip();
+    return bb;
+  }
+
+  @Override
+  protected void startupService() {
+    ps.scheduleAtFixedRate(ticker, TICK_MS, TICK_MS);
+  }
+
+  @Override
+  protected void shutdownService() {
+    ps.remove(ticker);
+    //The connections themselves are closed with the HTTP server
+    synchronized(wheel) {
+      wheel.clear();
+    }
+    count.set(0);
+    openStreams.set(0);
+  }
+
+  /**
+   * Where a streams events go.
+   */
+  public interface Sink {
+    public boolean isClosed();
+    public void write(ByteBuffer bb);
+    public void close();
+  }
+
+  public static Sink sinkFor(final ResponseWriter rw) {
+    return new Sink() {
+      @Override
+      public boolean isClosed() {
+        return rw.isClosed();
+      }
+
+      @Override
+      public void write(ByteBuffer bb) {
+        rw.writeBody(bb);
+      }
+
+      @Override
+      public void close() {
+        rw.closeOnDone();
+        rw.done();
+      }
+    };
+  }
+
+  private static class Stream {
+    private final Sink sink;
+    private final String tenant;
+    private final CredentialRequest request;
+    private final String region;
+    private final long validUntil;
+    private long nextRenew;
+
+    private Stream(Sink sink, String tenant, CredentialRequest request, String region, long validUntil) {
+      this.sink = sink;
+      this.tenant = tenant;
+      this.request = request;
+      this.region = region;
+      this.validUntil = validUntil;
+    }
+  }
+}
@@ -1,14 +1,13 @@
 package com.ecovate.rtc.turn;
 
-import org.threadly.concurrent.future.ListenableFuture;
-import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import java.util.List;
 
-import com.ecovate.rtc.turn.TurnRest.ClientID;
 
+public interface HTTPHandler extends RequestHandler {
 
-public interface HTTPHandler {
-
-  public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc);
-  public boolean canHandle(String path);
+  /**
+   * @return the paths this handler serves, these are compiled into an {@link HTTPRouter}.
+   */
+  public List<HTTPRoute> getRoutes();
   public String getName();
 }
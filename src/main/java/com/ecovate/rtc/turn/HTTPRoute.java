@@ -0,0 +1,130 @@
+package com.ecovate.rtc.turn;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A path, or path prefix, and the methods on it that a {@link RequestHandler} serves.
+ */
+public class HTTPRoute {
+
+  private final String path;
+  private final boolean prefix;
+  private final Set<String> methods;
+  private final RequestHandler handler;
+  private final BodyRequestHandler bodyHandler;
+  private final boolean admissionControlled;
+  private final boolean stageTimed;
+
+  private HTTPRoute(String path, boolean prefix, RequestHandler handler, BodyRequestHandler bodyHandler, String[] methods) {
+    this.path = path;
+    this.prefix = prefix;
+    this.handler = handler;
+    this.bodyHandler = bodyHandler;
+    this.admissionControlled = true;
+    this.stageTimed = false;
+    if(methods == null || methods.length == 0) {
+      this.methods = null;
+    } else {
+      HashSet<String> hs = new HashSet<>();
+      for(String m: methods) {
+        hs.add(m.toUpperCase());
+      }
+      this.methods = Collections.unmodifiableSet(hs);
+    }
+  }
+
+  private HTTPRoute(HTTPRoute route, boolean admissionControlled, boolean stageTimed) {
+    this.path = route.path;
+    this.prefix = route.prefix;
+    this.handler = route.handler;
+    this.bodyHandler = route.bodyHandler;
+    this.methods = route.methods;
+    this.admissionControlled = admissionControlled;
+    this.stageTimed = stageTimed;
+  }
+
+  /**
+   * A route for exactly this path.  A trailing '/' on the request is ignored.
+   *
+   * @param methods the methods served, none means any method.
+   */
+  public static HTTPRoute exact(String path, RequestHandler handler, String ... methods) {
+    return new HTTPRoute(HTTPRouter.normalize(path), false, handler, null, methods);
+  }
+
+  /**
+   * A route for exactly this path whose requests have their body read before being handled.
+   *
+   * @param methods the methods served, none means any method.
+   */
+  public static HTTPRoute exactWithBody(String path, BodyRequestHandler handler, String ... methods) {
+    return new HTTPRoute(HTTPRouter.normalize(path), false, null, handler, methods);
+  }
+
+  /**
+   * A route for every path starting with this prefix.
+   *
+   * @param methods the methods served, none means any method.
+   */
+  public static HTTPRoute prefix(String path, RequestHandler handler, String ... methods) {
+    return new HTTPRoute(path, true, handler, null, methods);
+  }
+
+  /**
+   * @return this route but never turned away by the admission limit, for cheap routes such as health
+   * checks that have to keep answering while the server is loaded.
+   */
+  public HTTPRoute withoutAdmission() {
+    return new HTTPRoute(this, false, stageTimed);
+  }
+
+  /**
+   * @return this route with its response write timed as a {@link RequestStages} stage, only the /turn
+   * routes are so scrapes and asset requests do not skew the stage timings.
+   */
+  public HTTPRoute withStageTimings() {
+    return new HTTPRoute(this, admissionControlled, true);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public boolean isPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @return the handler, or null if this route reads the request body.
+   */
+  public RequestHandler getHandler() {
+    return handler;
+  }
+
+  public BodyRequestHandler getBodyHandler() {
+    return bodyHandler;
+  }
+
+  public boolean isAdmissionControlled() {
+    return admissionControlled;
+  }
+
+  public boolean isStageTimed() {
+    return stageTimed;
+  }
+
+  public boolean readsBody() {
+    return bodyHandler != null;
+  }
+
+  public boolean matchesMethod(String method) {
+    return methods == null || methods.contains(method) || methods.contains(method.toUpperCase());
+  }
+
+  @Override
+  public String toString() {
+    return (methods == null ? "*" : methods.toString())+" "+path+(prefix ? "*" : "");
+  }
+}
@@ -0,0 +1,109 @@
+package com.ecovate.rtc.turn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiles the routes of a set of {@link HTTPHandler}s into a lookup table.  Exact paths are a single
+ * hash lookup and prefixes are a character trie, so finding the route is one pass over the path no
+ * matter how many routes are registered.
+ *
+ * Exact routes win over prefixes, longer prefixes win over shorter ones and when two routes have the
+ * same path the one registered first wins.
+ */
+public class HTTPRouter {
+  private static final HTTPRoute[] EMPTY = new HTTPRoute[0];
+
+  private final HashMap<String, HTTPRoute[]> exact = new HashMap<>();
+  private final Node root = new Node();
+
+  public HTTPRouter(List<? extends HTTPHandler> handlers) {
+    for(HTTPHandler hh: handlers) {
+      for(HTTPRoute route: hh.getRoutes()) {
+        if(route.isPrefix()) {
+          Node n = root;
+          for(int i=0; i<route.getPath().length(); i++) {
+            n = n.getOrAddChild(route.getPath().charAt(i));
+          }
+          n.routes = append(n.routes, route);
+        } else {
+          exact.put(route.getPath(), append(exact.getOrDefault(route.getPath(), EMPTY), route));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the route for this request or null if nothing matches.
+   */
+  public HTTPRoute route(final String method, final String path) {
+    HTTPRoute route = pick(exact.get(normalize(path)), method);
+    if(route != null) {
+      return route;
+    }
+    Node n = root;
+    route = pick(n.routes, method);
+    for(int i=0; i<path.length(); i++) {
+      n = n.getChild(path.charAt(i));
+      if(n == null) {
+        break;
+      }
+      HTTPRoute r = pick(n.routes, method);
+      if(r != null) {
+        route = r;
+      }
+    }
+    return route;
+  }
+
+  static String normalize(String path) {
+    if(path.length() > 1 && path.charAt(path.length()-1) == '/') {
+      return path.substring(0, path.length()-1);
+    }
+    return path;
+  }
+
+  private static HTTPRoute pick(HTTPRoute[] routes, String method) {
+    if(routes != null) {
+      for(HTTPRoute r: routes) {
+        if(r.matchesMethod(method)) {
+          return r;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static <T> T[] append(T[] array, T item) {
+    T[] na = Arrays.copyOf(array, array.length+1);
+    na[array.length] = item;
+    return na;
+  }
+
+  private static class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private HTTPRoute[] routes = EMPTY;
+
+    private Node getChild(char c) {
+      for(int i=0; i<keys.length; i++) {
+        if(keys[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    private Node getOrAddChild(char c) {
+      Node n = getChild(c);
+      if(n == null) {
+        n = new Node();
+        keys = Arrays.copyOf(keys, keys.length+1);
+        keys[keys.length-1] = c;
+        children = append(children, n);
+      }
+      return n;
+    }
+  }
+}
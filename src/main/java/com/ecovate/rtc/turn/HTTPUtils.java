@@ -1,23 +1,44 @@
 package com.ecovate.rtc.turn;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
 import org.threadly.litesockets.protocols.http.response.HTTPResponse;
 import org.threadly.litesockets.protocols.http.response.HTTPResponseBuilder;
 import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
 import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
 
 public class HTTPUtils {
+  private static final String HTTP_1_0 = "HTTP/1.0";
   public static final String HTTP_ACAO_HEADER = "Access-Control-Allow-Origin";
   public static final String HTTP_ACAM_HEADER = "Access-Control-Allow-Methods";
   public static final String HTTP_ACAH_HEADER = "Access-Control-Allow-Headers";
   public static final String HTTP_CACHE_HEADER = "Cache-Control";
+  public static final String HTTP_RETRY_AFTER_HEADER = "Retry-After";
+  public static final String HTTP_ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  public static final String HTTP_CONTENT_ENCODING_HEADER = "Content-Encoding";
+  public static final String HTTP_VARY_HEADER = "Vary";
+  public static final String HTTP_ETAG_HEADER = "ETag";
+  public static final String HTTP_IF_NONE_MATCH_HEADER = "If-None-Match";
+  public static final String GZIP = "gzip";
+  public static final long DEFAULT_RETRY_AFTER = 5000; //5 seconds
+  
+  private static volatile boolean KEEP_ALIVE = false;
   
+  //Every response says how long its body is, a kept alive connection has no other way to find the end of it.
+  //Keep-alive is off until a config turns it on, so they start out closing the connection.
   private static volatile HTTPResponse BAD_REQUEST_RESPONSE = new HTTPResponseBuilder()
       .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
       .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
       .setResponseCode(HTTPResponseCode.BadRequest)
       .build();
   private static volatile HTTPResponse NOT_FOUND_RESPONSE = new HTTPResponseBuilder()
       .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
       .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
       .setResponseCode(HTTPResponseCode.NotFound)
       .build();
@@ -27,16 +48,129 @@ public class HTTPUtils {
       .setHeader(HTTP_ACAH_HEADER, "authorization")
       .setHeader(HTTP_CACHE_HEADER, "no-store")
       .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
       .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
       .setResponseCode(HTTPResponseCode.OK)
       .build();
 
   private static volatile HTTPResponse UNAUTHROIZED_RESPONSE = new HTTPResponseBuilder()
       .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
       .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
       .setResponseCode(HTTPResponseCode.Unauthorized)
       .build();
   
+  private static volatile HTTPResponse TOO_MANY_REQUESTS_RESPONSE = new HTTPResponseBuilder()
+      .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
+      .setHeader(HTTP_RETRY_AFTER_HEADER, "1")
+      .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+      .setResponseCode(HTTPResponseCode.TooManyRequests)
+      .build();
+
+  //Sent when shedding load, the connection is closed so the client reconnects somewhere less busy
+  private static volatile HTTPResponse SERVICE_UNAVAILABLE_RESPONSE = new HTTPResponseBuilder()
+      .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
+      .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
+      .setHeader(HTTP_RETRY_AFTER_HEADER, Long.toString(DEFAULT_RETRY_AFTER/1000))
+      .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+      .setResponseCode(HTTPResponseCode.ServiceUnavailable)
+      .build();
+  
+  /**
+   * Works out if the connection a request came in on should stay open after its response.  HTTP/1.1
+   * connections are kept open unless the client asks for them to be closed, HTTP/1.0 ones are only kept
+   * if the client asks for keep-alive.
+   */
+  public static boolean isKeepAlive(HTTPRequest hr) {
+    if(!KEEP_ALIVE) {
+      return false;
+    }
+    String conn = hr.getHTTPHeaders().getHeader(HTTPConstants.HTTP_KEY_CONNECTION);
+    if(conn != null) {
+      if(conn.equalsIgnoreCase("close")) {
+        return false;
+      } else if(conn.equalsIgnoreCase("keep-alive")) {
+        return true;
+      }
+    }
+    return !HTTP_1_0.equalsIgnoreCase(hr.getHTTPRequestHeader().getHttpVersion());
+  }
+
+  /**
+   * @return true if the client said it takes gzip bodies, gzip;q=0 turns it down.  An explicit gzip
+   * entry wins over *, wherever it is in the list.
+   */
+  public static boolean acceptsGzip(HTTPRequest hr) {
+    final String ae = hr.getHTTPHeaders().getHeader(HTTP_ACCEPT_ENCODING_HEADER);
+    if(ae == null) {
+      return false;
+    }
+    Boolean star = null;
+    for(String coding: ae.split(",")) {
+      final int semi = coding.indexOf(';');
+      final String name = (semi < 0 ? coding : coding.substring(0, semi)).trim();
+      final boolean accepted = semi < 0 || !coding.substring(semi+1).replace(" ", "").matches("q=0(\\.0*)?");
+      if(name.equalsIgnoreCase(GZIP)) {
+        return accepted;
+      } else if(name.equals("*") && star == null) {
+        star = accepted;
+      }
+    }
+    return star != null && star;
+  }
+
+  /**
+   * @return true if an If-None-Match header names the ETag, W/ prefixes are ignored as the spec says to
+   * for If-None-Match.
+   */
+  public static boolean etagMatches(String ifNoneMatch, String etag) {
+    if(ifNoneMatch == null) {
+      return false;
+    }
+    for(String tag: ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if(tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if(tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static byte[] gzip(byte[] ba) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(ba.length/2);
+    try(GZIPOutputStream gz = new GZIPOutputStream(baos)) {
+      gz.write(ba);
+    } catch(IOException e) {
+      //Only thrown by the stream it writes to, which is in memory
+      throw new UncheckedIOException(e);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Sets the connection headers on a response.  The shared responses already have the right Connection
+   * header for the configured keep-alive mode so this only builds a new response when something differs.
+   */
+  public static HTTPResponse setConnectionHeaders(HTTPResponse hr, HTTPRequest request, boolean keepAlive) {
+    if(!keepAlive || isClose(hr)) {
+      return withHeader(hr, HTTPConstants.HTTP_KEY_CONNECTION, "close");
+    } else if(HTTP_1_0.equalsIgnoreCase(request.getHTTPRequestHeader().getHttpVersion())) {
+      return withHeader(hr, HTTPConstants.HTTP_KEY_CONNECTION, "keep-alive");
+    }
+    return hr;
+  }
+
+  /**
+   * @return true if the response closes the connection no matter what the client asked for.
+   */
+  public static boolean isClose(HTTPResponse hr) {
+    return "close".equalsIgnoreCase(hr.getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONNECTION));
+  }
+
   public static HTTPResponse getOKResponse() {
     return OK_RESPONSE;
   }
@@ -53,6 +187,14 @@ public class HTTPUtils {
     return BAD_REQUEST_RESPONSE;
   }
 
+  public static HTTPResponse getTooManyRequestsResponse() {
+    return TOO_MANY_REQUESTS_RESPONSE;
+  }
+
+  public static HTTPResponse getServiceUnavailableResponse() {
+    return SERVICE_UNAVAILABLE_RESPONSE;
+  }
+
   public static void setOKResponse(HTTPResponse hr) {
     OK_RESPONSE = hr;
   }
@@ -68,8 +210,24 @@ public class HTTPUtils {
   public static void setBadRequestResponse(HTTPResponse hr) {
     BAD_REQUEST_RESPONSE= hr;
   }
+
+  public static void setTooManyRequestsResponse(HTTPResponse hr) {
+    TOO_MANY_REQUESTS_RESPONSE = hr;
+  }
+
+  public static void setServiceUnavailableResponse(HTTPResponse hr) {
+    SERVICE_UNAVAILABLE_RESPONSE = hr;
+  }
   
   public static void processHTTPDefaults(final TurnRestConfig trc) {
+    KEEP_ALIVE = trc.getHttpKeepAlive();
+    //With keep-alive off every response closes, so the shared ones carry it and are sent as they are
+    OK_RESPONSE = withConnection(OK_RESPONSE);
+    UNAUTHROIZED_RESPONSE = withConnection(UNAUTHROIZED_RESPONSE);
+    NOT_FOUND_RESPONSE = withConnection(NOT_FOUND_RESPONSE);
+    BAD_REQUEST_RESPONSE = withConnection(BAD_REQUEST_RESPONSE);
+    TOO_MANY_REQUESTS_RESPONSE = withConnection(TOO_MANY_REQUESTS_RESPONSE);
+
     String origin = trc.getAllowedOrigin();
     if(origin == null || origin.equals("")) {
       origin = "*";
@@ -94,5 +252,26 @@ public class HTTPUtils {
         !BAD_REQUEST_RESPONSE.getHeaders().getHeader(HTTP_ACAO_HEADER).equals(origin))) {
       BAD_REQUEST_RESPONSE = BAD_REQUEST_RESPONSE.makeBuilder().setHeader(HTTP_ACAO_HEADER, origin).build();
     }
+    TOO_MANY_REQUESTS_RESPONSE = withHeader(TOO_MANY_REQUESTS_RESPONSE, HTTP_ACAO_HEADER, origin);
+    SERVICE_UNAVAILABLE_RESPONSE = withHeader(SERVICE_UNAVAILABLE_RESPONSE, HTTP_ACAO_HEADER, origin);
+    SERVICE_UNAVAILABLE_RESPONSE = withHeader(SERVICE_UNAVAILABLE_RESPONSE, HTTP_RETRY_AFTER_HEADER, 
+        Long.toString(trc.getRetryAfter()/1000));
+  }
+
+  private static HTTPResponse withConnection(HTTPResponse hr) {
+    if(!KEEP_ALIVE) {
+      return withHeader(hr, HTTPConstants.HTTP_KEY_CONNECTION, "close");
+    }
+    if(hr.getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONNECTION) != null) {
+      hr = hr.makeBuilder().removeHeader(HTTPConstants.HTTP_KEY_CONNECTION).build();
+    }
+    return hr;
+  }
+
+  private static HTTPResponse withHeader(HTTPResponse hr, String key, String value) {
+    if(value.equals(hr.getHeaders().getHeader(key))) {
+      return hr;
+    }
+    return hr.makeBuilder().setHeader(key, value).build();
   }
 }
@@ -0,0 +1,503 @@
+package com.ecovate.rtc.turn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.ConfigurableThreadFactory;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.util.AbstractService;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Sends STUN binding requests to every configured TURN and STUN server and keeps a rolling RTT and loss
+ * for each.  After every round the configs are given the result so their responses leave out servers
+ * that are down and list the rest fastest first, see {@link CompiledTurnRestConfig#updateServers}.
+ *
+ * TURN servers answer binding requests too so both kinds are probed the same way, over UDP to the host
+ * and port in the URI.  TLS and TCP URIs are not probed, a UDP answer says nothing about their port, so
+ * they are always handed out.  A server that has not been probed yet counts as healthy, and if every
+ * server of a kind is down they are all handed out anyway, a client trying a dead server is better than
+ * a client with none.
+ *
+ * Rounds run on the probers own thread, not the shared scheduler, since every round resolves each
+ * servers host and a slow DNS lookup would hold up whatever else is waiting on the scheduler.
+ */
+public class IceServerProber extends AbstractService {
+  private static final Logger log = LoggerFactory.getLogger(IceServerProber.class);
+  public static final int DEFAULT_PORT = 3478;
+  public static final double DEFAULT_LOSS_THRESHOLD = 0.5;
+  private static final int WINDOW = 10;
+  private static final int MIN_SAMPLES = 5;
+  private static final int FAILURES_TO_DOWN = 3;
+  private static final double RTT_SMOOTHING = 0.3;
+  private static final int MAGIC_COOKIE = 0x2112A442;
+  private static final short BINDING_REQUEST = 0x0001;
+  private static final short BINDING_SUCCESS = 0x0101;
+  private static final short BINDING_ERROR = 0x0111;
+  private static final int STUN_HEADER = 20;
+
+  private final Gauge rttGauge = Gauge.build()
+      .name(TurnRest.TURN_REST+"ice_server_rtt_seconds")
+      .help("Smoothed STUN binding RTT per ICE server.")
+      .labelNames("server")
+      .register(Utils.getMetricsRegistry());
+
+  private final Gauge lossGauge = Gauge.build()
+      .name(TurnRest.TURN_REST+"ice_server_loss_ratio")
+      .help("Share of the recent STUN probes per ICE server that got no answer.")
+      .labelNames("server")
+      .register(Utils.getMetricsRegistry());
+
+  private final Gauge healthyGauge = Gauge.build()
+      .name(TurnRest.TURN_REST+"ice_server_healthy")
+      .help("1 if an ICE server is handed out to clients, 0 if it is left out as down.")
+      .labelNames("server")
+      .register(Utils.getMetricsRegistry());
+
+  private final Counter probeCounter = Counter.build()
+      .name(TurnRest.TURN_REST+"ice_server_probes_total")
+      .help("STUN probes by result.")
+      .labelNames("result")
+      .register(Utils.getMetricsRegistry());
+
+  private final SingleThreadScheduler scheduler = new SingleThreadScheduler(
+      new ConfigurableThreadFactory("IceServerProber-rounds", false, true, Thread.NORM_PRIORITY, null, null));
+  private final Runnable round = ()->probe();
+  private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+  private volatile Map<String, Target> targets = Collections.emptyMap();
+  private volatile Collection<TurnRestConfig> configs = Collections.emptyList();
+  private volatile DatagramChannel channel;
+  private volatile long interval = 0;
+  private volatile double lossThreshold = DEFAULT_LOSS_THRESHOLD;
+
+  /**
+   * @param interval millis between probe rounds, 0 turns probing off.
+   * @param lossThreshold the share of lost probes a server is dropped at.
+   */
+  public synchronized void setProbing(long interval, double lossThreshold) {
+    this.lossThreshold = lossThreshold;
+    if(this.interval == interval) {
+      return;
+    }
+    this.interval = interval;
+    scheduler.remove(round);
+    if(interval > 0) {
+      setConfigs(configs);
+      if(isRunning()) {
+        scheduler.scheduleAtFixedRate(round, 0, interval);
+      }
+      log.info("Probing ICE servers every {}ms", interval);
+    } else {
+      //Forget what was seen so the configs go back to every server in config order
+      targets = Collections.emptyMap();
+      pending.clear();
+      applyAll();
+    }
+  }
+
+  /**
+   * Sets the configs whose servers are probed and applies what is known about them right away.
+   */
+  public synchronized void setConfigs(Collection<TurnRestConfig> configs) {
+    final Map<String, Target> old = targets;
+    HashMap<String, Target> nt = new HashMap<>();
+    for(TurnRestConfig trc: configs) {
+      for(String uri: trc.getTURNURIs()) {
+        addTarget(old, nt, uri);
+      }
+      for(String uri: trc.getSTUNURIs()) {
+        addTarget(old, nt, uri);
+      }
+      for(TurnRestConfig.Region r: trc.getRegions().values()) {
+        for(String uri: r.getTURNURIs() == null ? Collections.<String>emptyList() : r.getTURNURIs()) {
+          addTarget(old, nt, uri);
+        }
+        for(String uri: r.getSTUNURIs() == null ? Collections.<String>emptyList() : r.getSTUNURIs()) {
+          addTarget(old, nt, uri);
+        }
+      }
+    }
+    for(String name: old.keySet()) {
+      if(!nt.containsKey(name)) {
+        rttGauge.remove(name);
+        lossGauge.remove(name);
+        healthyGauge.remove(name);
+      }
+    }
+    this.targets = interval > 0 ? nt : Collections.emptyMap();
+    this.configs = new ArrayList<>(configs);
+    applyAll();
+  }
+
+  private static void addTarget(Map<String, Target> old, Map<String, Target> nt, String uri) {
+    final Target t = parseTarget(uri);
+    if(t != null && !nt.containsKey(t.name)) {
+      final Target prev = old.get(t.name);
+      nt.put(t.name, prev == null ? t : prev);
+    }
+  }
+
+  /**
+   * @return the health of the server a URI is probed on, null if it is not being probed.
+   */
+  public Health getHealth(String uri) {
+    final Target pt = parseTarget(uri);
+    if(pt == null) {
+      return null;
+    }
+    final Target t = targets.get(pt.name);
+    if(t == null) {
+      return null;
+    }
+    synchronized(t) {
+      return new Health(t.isHealthy(lossThreshold), t.rtt, t.getLoss(), t.count);
+    }
+  }
+
+  /**
+   * @return the healthy URIs fastest first, all of them in their original order if none are healthy.
+   */
+  String[] rank(final String[] uris) {
+    final Map<String, Target> ts = targets;
+    if(ts.isEmpty() || uris.length == 0) {
+      return uris;
+    }
+    final List<Ranked> healthy = new ArrayList<>(uris.length);
+    for(String uri: uris) {
+      final Target pt = parseTarget(uri);
+      final Target t = pt == null ? null : ts.get(pt.name);
+      if(t == null) {
+        healthy.add(new Ranked(uri, Double.MAX_VALUE));
+        continue;
+      }
+      synchronized(t) {
+        if(t.isHealthy(lossThreshold)) {
+          //Not measured yet goes after everything that has been, the sort keeps config order for ties
+          healthy.add(new Ranked(uri, Double.isNaN(t.rtt) ? Double.MAX_VALUE : t.rtt));
+        }
+      }
+    }
+    if(healthy.isEmpty()) {
+      return uris;
+    }
+    healthy.sort((a, b)->Double.compare(a.rtt, b.rtt));
+    final String[] result = new String[healthy.size()];
+    for(int i=0; i<result.length; i++) {
+      result[i] = healthy.get(i).uri;
+    }
+    return result;
+  }
+
+  /**
+   * Runs one round: anything still unanswered from the last round is counted lost, the results are
+   * applied to the configs and a new probe is sent to every server.
+   */
+  public void probe() {
+    for(Map.Entry<String, Pending> p: pending.entrySet()) {
+      if(pending.remove(p.getKey(), p.getValue())) {
+        probeCounter.labels("lost").inc();
+        p.getValue().target.record(false, 0);
+      }
+    }
+    final Map<String, Target> ts = targets;
+    for(Target t: ts.values()) {
+      synchronized(t) {
+        rttGauge.labels(t.name).set(Double.isNaN(t.rtt) ? 0 : t.rtt / 1000);
+        lossGauge.labels(t.name).set(t.getLoss());
+        healthyGauge.labels(t.name).set(t.isHealthy(lossThreshold) ? 1 : 0);
+      }
+    }
+    applyAll();
+    if(ts.isEmpty()) {
+      return;
+    }
+    final DatagramChannel dc;
+    try {
+      dc = getChannel();
+    } catch(IOException e) {
+      log.error("Could not open probe socket", e);
+      return;
+    }
+    for(Target t: ts.values()) {
+      final byte[] txid = new byte[12];
+      ThreadLocalRandom.current().nextBytes(txid);
+      final String key = new String(txid, StandardCharsets.ISO_8859_1);
+      try {
+        //Resolved every round so a server moving to a new address is followed
+        final InetSocketAddress isa = new InetSocketAddress(t.host, t.port);
+        if(isa.isUnresolved()) {
+          throw new IOException("Could not resolve "+t.host);
+        }
+        pending.put(key, new Pending(t, System.nanoTime()));
+        dc.send(bindingRequest(txid), isa);
+        probeCounter.labels("sent").inc();
+      } catch(IOException e) {
+        log.debug("Could not probe {}", t.name, e);
+        pending.remove(key);
+        probeCounter.labels("error").inc();
+        t.record(false, 0);
+      }
+    }
+  }
+
+  private void applyAll() {
+    for(TurnRestConfig trc: configs) {
+      trc.getCompiled().updateServers(this);
+    }
+  }
+
+  private synchronized DatagramChannel getChannel() throws IOException {
+    DatagramChannel dc = channel;
+    if(dc == null || !dc.isOpen()) {
+      dc = DatagramChannel.open();
+      dc.bind(null);
+      final DatagramChannel rdc = dc;
+      Thread t = new Thread(()->receive(rdc), "IceServerProber");
+      t.setDaemon(true);
+      t.start();
+      channel = dc;
+    }
+    return dc;
+  }
+
+  private void receive(DatagramChannel dc) {
+    final ByteBuffer bb = ByteBuffer.allocate(1500);
+    while(true) {
+      bb.clear();
+      try {
+        dc.receive(bb);
+      } catch(ClosedChannelException e) {
+        return;
+      } catch(IOException e) {
+        log.debug("Error reading probe response", e);
+        continue;
+      }
+      final long now = System.nanoTime();
+      bb.flip();
+      if(bb.remaining() < STUN_HEADER || bb.getInt(4) != MAGIC_COOKIE) {
+        continue;
+      }
+      final short type = bb.getShort(0);
+      if(type != BINDING_SUCCESS && type != BINDING_ERROR) {
+        continue;
+      }
+      final byte[] txid = new byte[12];
+      bb.position(8);
+      bb.get(txid);
+      final Pending p = pending.remove(new String(txid, StandardCharsets.ISO_8859_1));
+      if(p != null) {
+        //An error answer still means the server is up
+        probeCounter.labels("answered").inc();
+        p.target.record(true, now - p.sent);
+      }
+    }
+  }
+
+  static ByteBuffer bindingRequest(byte[] txid) {
+    ByteBuffer bb = ByteBuffer.allocate(STUN_HEADER);
+    bb.putShort(BINDING_REQUEST).putShort((short)0).putInt(MAGIC_COOKIE).put(txid);
+    bb.flip();
+    return bb;
+  }
+
+  /**
+   * Works out the host and UDP port a URI such as turn:host:port?transport=udp is probed on.
+   *
+   * @return null if the URI has no host or is not UDP, turns:, stuns: and transport=tcp are not probed.
+   */
+  static Target parseTarget(String uri) {
+    String s = uri;
+    String query = "";
+    int q = s.indexOf('?');
+    if(q >= 0) {
+      query = s.substring(q+1).toLowerCase(Locale.ROOT);
+      s = s.substring(0, q);
+    }
+    if(query.contains("transport=tcp")) {
+      return null;
+    }
+    int c = s.indexOf(':');
+    if(c > 0) {
+      final String scheme = s.substring(0, c).toLowerCase(Locale.ROOT);
+      if(scheme.equals("stuns") || scheme.equals("turns")) {
+        return null;
+      }
+      if(scheme.equals("stun") || scheme.equals("turn")) {
+        s = s.substring(c+1);
+      }
+    }
+    String host;
+    String rest;
+    if(s.startsWith("[")) {
+      int end = s.indexOf(']');
+      if(end < 0) {
+        return null;
+      }
+      host = s.substring(1, end);
+      rest = s.substring(end+1);
+    } else {
+      c = s.indexOf(':');
+      host = c >= 0 ? s.substring(0, c) : s;
+      rest = c >= 0 ? s.substring(c) : "";
+    }
+    if(host.isEmpty()) {
+      return null;
+    }
+    int port = DEFAULT_PORT;
+    if(rest.startsWith(":")) {
+      try {
+        port = Integer.parseInt(rest.substring(1));
+      } catch(NumberFormatException e) {
+        return null;
+      }
+    }
+    return new Target(host, port);
+  }
+
+  @Override
+  protected void startupService() {
+    if(interval > 0) {
+      scheduler.scheduleAtFixedRate(round, 0, interval);
+    }
+  }
+
+  @Override
+  protected void shutdownService() {
+    scheduler.shutdownNow();
+    final DatagramChannel dc = channel;
+    if(dc != null) {
+      try {
+        dc.close();
+      } catch(IOException e) {
+        log.warn("Error closing probe socket", e);
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * What is known about one server.
+   */
+  public static class Health {
+    private final boolean healthy;
+    private final double rtt;
+    private final double loss;
+    private final int samples;
+
+    private Health(boolean healthy, double rtt, double loss, int samples) {
+      this.healthy = healthy;
+      this.rtt = rtt;
+      this.loss = loss;
+      this.samples = samples;
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    /**
+     * @return the smoothed RTT in millis, NaN if no probe has been answered.
+     */
+    public double getRTT() {
+      return rtt;
+    }
+
+    public double getLoss() {
+      return loss;
+    }
+
+    public int getSamples() {
+      return samples;
+    }
+  }
+
+  static class Target {
+    private final String host;
+    private final int port;
+    private final String name;
+    private final boolean[] results = new boolean[WINDOW];
+    private int next = 0;
+    private int count = 0;
+    private int lost = 0;
+    private int failures = 0;
+    private double rtt = Double.NaN;
+
+    private Target(String host, int port) {
+      this.host = host;
+      this.port = port;
+      this.name = (host.indexOf(':') >= 0 ? "["+host+"]" : host)+":"+port;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    private synchronized void record(boolean answered, long rttNanos) {
+      if(count == WINDOW) {
+        if(!results[next]) {
+          lost--;
+        }
+      } else {
+        count++;
+      }
+      results[next] = answered;
+      next = (next+1) % WINDOW;
+      if(answered) {
+        failures = 0;
+        final double ms = rttNanos / 1000000.0;
+        rtt = Double.isNaN(rtt) ? ms : rtt + (RTT_SMOOTHING * (ms - rtt));
+      } else {
+        lost++;
+        failures++;
+      }
+    }
+
+    private double getLoss() {
+      return count == 0 ? 0 : ((double)lost) / count;
+    }
+
+    private boolean isHealthy(double lossThreshold) {
+      if(failures >= FAILURES_TO_DOWN) {
+        return false;
+      }
+      return count < MIN_SAMPLES || getLoss() <= lossThreshold;
+    }
+  }
+
+  private static class Pending {
+    private final Target target;
+    private final long sent;
+
+    private Pending(Target target, long sent) {
+      this.target = target;
+      this.sent = sent;
+    }
+  }
+
+  private static class Ranked {
+    private final String uri;
+    private final double rtt;
+
+    private Ranked(String uri, double rtt) {
+      this.uri = uri;
+      this.rtt = rtt;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.ecovate.rtc.turn;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.threadly.util.Clock;
+
+import com.ecovate.rtc.turn.TimingWheel.Timeout;
+
+/**
+ * A size bounded cache of JWTs that have already been verified.  Entries live until the earlier of the
+ * tokens own expiration and the configured max lifetime.  Expiration is driven by a {@link TimingWheel}
+ * so the periodic cleanup only touches entries that are actually due.
+ *
+ * When the cache is full the entry closest to expiring is evicted, unless the new entry would expire
+ * before it in which case the new entry is not admitted.  The closest entry is found to within the
+ * wheel's one second tick, entries due in the same second may be evicted in any order.
+ */
+public class JWTCache {
+  public static final int DEFAULT_MAX_SIZE = 100000;
+  public static final long DEFAULT_MAX_LIFETIME = 300000; //5 minutes
+  private static final long TICK_MS = 1000;
+  private static final int WHEEL_LEVELS = 4;
+
+  private final ConcurrentHashMap<String, Timeout<String>> entries = new ConcurrentHashMap<>();
+  private final TimingWheel<String> wheel;
+  private volatile int maxSize;
+  private volatile long maxLifetime;
+  private volatile long evictions = 0;
+
+  public JWTCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_LIFETIME);
+  }
+
+  public JWTCache(int maxSize, long maxLifetime) {
+    this.maxSize = maxSize;
+    this.maxLifetime = maxLifetime;
+    this.wheel = new TimingWheel<>(TICK_MS, WHEEL_LEVELS, Clock.lastKnownTimeMillis());
+  }
+
+  public boolean isValid(String key) {
+    return isValid(key, Clock.lastKnownTimeMillis());
+  }
+
+  public boolean isValid(String key, long now) {
+    Timeout<String> to = entries.get(key);
+    return to != null && now < to.getDeadline();
+  }
+
+  public boolean put(String key, long expiresAt) {
+    return put(key, expiresAt, Clock.lastKnownTimeMillis());
+  }
+
+  /**
+   * Adds a verified token to the cache.
+   *
+   * @param key the tokens digest.
+   * @param expiresAt the time in millis the token itself expires at.
+   * @param now the current time in millis.
+   * @return true if the token was cached.
+   */
+  public synchronized boolean put(String key, long expiresAt, long now) {
+    final long deadline = Math.min(expiresAt, now + maxLifetime);
+    if(deadline <= now || maxSize <= 0) {
+      return false;
+    }
+    Timeout<String> old = entries.get(key);
+    //A refresh takes no more room, and if the new deadline can not be added the old entry is kept
+    if(old == null && !makeRoom(maxSize-1, deadline)) {
+      return false;
+    }
+    Timeout<String> to = wheel.add(key, deadline);
+    if(to == null) {
+      return false;
+    }
+    if(old != null) {
+      wheel.remove(old);
+    }
+    entries.put(key, to);
+    return true;
+  }
+
+  public synchronized void remove(String key) {
+    Timeout<String> to = entries.remove(key);
+    if(to != null) {
+      wheel.remove(to);
+    }
+  }
+
+  public void expire() {
+    expire(Clock.lastKnownTimeMillis());
+  }
+
+  public synchronized void expire(long now) {
+    for(String key: wheel.advance(now)) {
+      entries.remove(key);
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    wheel.clear();
+  }
+
+  public synchronized void setLimits(int maxSize, long maxLifetime) {
+    this.maxSize = maxSize;
+    this.maxLifetime = maxLifetime;
+    makeRoom(maxSize, Long.MAX_VALUE);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getMaxLifetime() {
+    return maxLifetime;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  private boolean makeRoom(int targetSize, long deadline) {
+    while(wheel.size() > Math.max(0, targetSize)) {
+      Timeout<String> victim = wheel.peekEarliest();
+      if(victim.getDeadline() > deadline) {
+        return false;
+      }
+      wheel.remove(victim);
+      entries.remove(victim.getItem());
+      evictions++;
+    }
+    return true;
+  }
+}
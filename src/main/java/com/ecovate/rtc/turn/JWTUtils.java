@@ -6,20 +6,25 @@ import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threadly.concurrent.PriorityScheduler;
 import org.threadly.concurrent.future.FutureCallback;
 import org.threadly.concurrent.future.FutureUtils;
+import org.threadly.concurrent.future.ImmediateResultListenableFuture;
 import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.concurrent.future.SettableListenableFuture;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
@@ -28,43 +33,82 @@ import org.threadly.util.AbstractService;
 import org.threadly.util.Clock;
 
 import com.auth0.jwk.GuavaCachedJwkProvider;
-import com.auth0.jwk.Jwk;
+import com.auth0.jwk.SigningKeyNotFoundException;
 import com.auth0.jwk.UrlJwkProvider;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.ecovate.rtc.turn.RequestStages.Stage;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
 
-import io.jsonwebtoken.Jwts;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 
 public class JWTUtils extends AbstractService {
   private static final Logger log = LoggerFactory.getLogger(JWTUtils.class);
+  public static final int DEFAULT_FAILED_CACHE_SIZE = 10000;
+  public static final long DEFAULT_FAILED_CACHE_TIME = 10000; //10 seconds
+  private static final long JWK_KEY_CACHE_TIME = 1000*60*60*10; //10 hours, same as the JWK providers cache
+  //More static keys than this and a JWT is checked on the scheduler so the calling thread is not held up
+  private static final int MAX_INLINE_KEYS = 2;
   
-  private final Histogram jwtProcessLatency = Histogram.build()
-      .name(TurnRest.TURN_REST+"jwt_process_seconds")
-      .help("JWT process time in seconds.")
-      .labelNames("type")
-      .register(Utils.getMetricsRegistry());
-
-  private final ConcurrentHashMap<String, Long> cachedJWTs = new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<String, GuavaCachedJwkProvider> jwkProviders = new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<String, PublicKey> staticJWTKeys = new ConcurrentHashMap<>();
-  private final Runnable watchCache = ()->{
-    List<String> expiredCache = new ArrayList<>();
-    for(String s: cachedJWTs.keySet()) {
-      if(Clock.lastKnownForwardProgressingMillis() - cachedJWTs.get(s) >= 300000) {
-        expiredCache.add(s);
-      }
-    }
-    for(String s: cachedJWTs.keySet()) {
-      cachedJWTs.remove(s);
-    }
-  };
+  private final JWTCache cachedJWTs = new JWTCache();
+  private final ConcurrentHashMap<String, Validation> inflightJWTs = new ConcurrentHashMap<>();
+  private final JWTCache failedJWTs = new JWTCache(DEFAULT_FAILED_CACHE_SIZE, DEFAULT_FAILED_CACHE_TIME);
+  private final ConcurrentHashMap<String, JWKKey> jwkKeys = new ConcurrentHashMap<>();
+  private final Object keysLock = new Object();
+  //Replaced whole on every change so a JWT is always checked against one complete set of keys
+  private volatile KeySet keys = new KeySet(Collections.emptyMap(), Collections.emptyMap(), new String[0]);
+  private final Runnable watchCache = ()->watchCaches();
+  private final CopyOnWriteArrayList<JWTUtils> partitions = new CopyOnWriteArrayList<>();
+  private final Metrics metrics;
   private final PriorityScheduler ps; 
   
   
   public JWTUtils(PriorityScheduler ps) {
+    this(ps, new Metrics());
+  }
+
+  private JWTUtils(PriorityScheduler ps, Metrics metrics) {
     this.ps = ps;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Makes a JWTUtils with its own keys, JWK endpoints and caches that reports to the same metrics as
+   * this one.  Its caches are expired by this one while it is running, it is not started itself.
+   */
+  public JWTUtils newPartition() {
+    JWTUtils ju = new JWTUtils(ps, metrics);
+    partitions.add(ju);
+    return ju;
+  }
+
+  /**
+   * @return the request stage timings, shared by every partition.
+   */
+  public RequestStages getStages() {
+    return metrics.stages;
+  }
+
+  public void removePartition(JWTUtils partition) {
+    if(partitions.remove(partition)) {
+      partition.reset();
+    }
+  }
+
+  private void watchCaches() {
+    int size = expireCaches();
+    for(JWTUtils partition: partitions) {
+      size += partition.expireCaches();
+    }
+    metrics.jwtCacheSize.set(size);
+  }
+
+  private int expireCaches() {
+    cachedJWTs.expire();
+    failedJWTs.expire();
+    return cachedJWTs.size();
   }
 
   public void reset() {
@@ -75,45 +119,97 @@ public class JWTUtils extends AbstractService {
 
   public void clearJWTCache() {
     cachedJWTs.clear();
+    failedJWTs.clear();
+  }
+
+  public void updateJWTCacheLimits(int maxSize, long maxLifetime) {
+    if(cachedJWTs.getMaxSize() != maxSize || cachedJWTs.getMaxLifetime() != maxLifetime) {
+      cachedJWTs.setLimits(maxSize, maxLifetime);
+      log.info("Set JWT cache size:{} lifetime:{}ms", maxSize, maxLifetime);
+    }
+  }
+
+  public void updateFailedJWTCacheLimits(int maxSize, long maxLifetime) {
+    if(failedJWTs.getMaxSize() != maxSize || failedJWTs.getMaxLifetime() != maxLifetime) {
+      failedJWTs.setLimits(maxSize, maxLifetime);
+      log.info("Set failed JWT cache size:{} lifetime:{}ms", maxSize, maxLifetime);
+    }
   }
 
   public void addJWKProvider(String jwkProvider) {
-    try {
-      GuavaCachedJwkProvider gcjwkp = new GuavaCachedJwkProvider(new UrlJwkProvider(new URL(jwkProvider)));
-      
-      if(jwkProviders.putIfAbsent(jwkProvider, gcjwkp) == null) {
-        log.info("Added new JWK endpoint:{}",jwkProvider);
+    synchronized(keysLock) {
+      KeySet ks = keys;
+      if(!ks.jwkProviders.containsKey(jwkProvider)) {
+        HashSet<String> urls = new HashSet<>(ks.jwkProviders.keySet());
+        urls.add(jwkProvider);
+        swapKeys(makeProviders(ks, urls), ks.staticKeys);
       }
-    } catch (MalformedURLException e) {
-      log.error("Could not make a URL from:{}", jwkProvider, e);
     }
   }
   
   public void updateJWKProvider(Set<String> jwkUrls) {
-    for(String jwkUrl: jwkUrls) {
-      addJWKProvider(jwkUrl);
-    }
-    Set<String> currentJWKs = getJWKProviders();
-    currentJWKs.removeAll(jwkUrls);
-    for(String jwkUrl: currentJWKs) {
-      removeJWKProvider(jwkUrl);
+    synchronized(keysLock) {
+      swapKeys(makeProviders(keys, jwkUrls), keys.staticKeys);
     }
   }
 
   public void removeJWKProvider(String jwkProvider) {
-    if(jwkProviders.remove(jwkProvider) != null) {
-      log.info("Removed JWK endpoint:{}", jwkProvider);
+    synchronized(keysLock) {
+      KeySet ks = keys;
+      if(ks.jwkProviders.containsKey(jwkProvider)) {
+        HashMap<String, GuavaCachedJwkProvider> providers = new HashMap<>(ks.jwkProviders);
+        providers.remove(jwkProvider);
+        swapKeys(providers, ks.staticKeys);
+      }
     }
   }
 
   public void clearJWKProviders() {
-    for(String jwk: getJWKProviders()) {
-      removeJWKProvider(jwk);
+    synchronized(keysLock) {
+      swapKeys(Collections.emptyMap(), keys.staticKeys);
     }
   }
 
   public Set<String> getJWKProviders() {
-    return new HashSet<>(jwkProviders.keySet());
+    return new HashSet<>(keys.jwkProviders.keySet());
+  }
+
+  /**
+   * Replaces the JWK endpoints and static keys together, a JWT is checked against either the old set or
+   * the new one, never a mix.  Endpoints already in use are kept along with the keys they have fetched.
+   *
+   * @param b64Keys base64 encoded X509 public keys.
+   * @throws IllegalArgumentException if a key can not be decoded, nothing is changed then.
+   */
+  public void updateKeys(Set<String> jwkUrls, Set<String> b64Keys) {
+    //Decoding is done before the lock, it is the slow part
+    updateKeys(jwkUrls, decodeStaticKeys(b64Keys));
+  }
+
+  /**
+   * @param staticKeys keys already decoded with {@link #decodeStaticKeys}.
+   */
+  public void updateKeys(Set<String> jwkUrls, Map<String, PublicKey> staticKeys) {
+    synchronized(keysLock) {
+      swapKeys(makeProviders(keys, jwkUrls), new HashMap<>(staticKeys));
+    }
+  }
+
+  /**
+   * Decodes base64 X509 public keys, keyed by their hash.
+   *
+   * @throws IllegalArgumentException if any of the keys can not be decoded.
+   */
+  public static Map<String, PublicKey> decodeStaticKeys(Collection<String> b64Keys) {
+    HashMap<String, PublicKey> staticKeys = new HashMap<>();
+    for(String key: b64Keys) {
+      PublicKey pk = decodeStaticKey(key);
+      if(pk == null) {
+        throw new IllegalArgumentException("Could not decode jwtPublicKey:"+key);
+      }
+      staticKeys.put(Utils.SHABytes(pk.getEncoded()), pk);
+    }
+    return staticKeys;
   }
 
   public String hashPublicKey(String key) {
@@ -125,83 +221,166 @@ public class JWTUtils extends AbstractService {
   }
 
   public void updateStaticB64Keys(Set<String> keys) {
-    HashMap<String, String> hashKeys = new HashMap<>();
+    HashSet<PublicKey> pks = new HashSet<>();
     for(String key: keys) {
-      hashKeys.put(this.hashPublicKey(key), key);
-      addStaticKey(key);
-    }
-    
-    Set<String> currentKeys = getStaticKeys();
-    
-    currentKeys.removeAll(hashKeys.keySet());
-    for(String leftKeys: currentKeys) {
-      removeStaticKey(leftKeys);
+      PublicKey pk = decodeStaticKey(key);
+      if(pk != null) {
+        pks.add(pk);
+      }
     }
+    updateStaticPublicKeys(pks);
   }
   
   public void updateStaticPublicKeys(Set<PublicKey> keys) {
-    HashMap<String, PublicKey> hashKeys = new HashMap<>();
+    HashMap<String, PublicKey> staticKeys = new HashMap<>();
     for(PublicKey key: keys) {
-      hashKeys.put(hashPublicKey(key), key);
-      addStaticKey(key);
+      staticKeys.put(hashPublicKey(key), key);
     }
-    Set<String> currentKeys = getStaticKeys();
-    currentKeys.removeAll(hashKeys.keySet());
-    for(String leftKeys: currentKeys) {
-      removeStaticKey(leftKeys);
+    synchronized(keysLock) {
+      swapKeys(this.keys.jwkProviders, staticKeys);
     }
   }
   
   public void addStaticKey(String key) {
-    try {
-      byte[] ba = Base64.getDecoder().decode(key);
-      String sha = Utils.SHABytes(ba);
-      PublicKey x = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(ba));
-      if(staticJWTKeys.putIfAbsent(sha, x) == null) {
-        log.info("Added static key:{}", sha);
-      }
-    } catch (Exception e) {
-      log.error("Could not make a X509EncodedKey from :\n\n{}\n", key);
-      log.error("", e);
+    PublicKey pk = decodeStaticKey(key);
+    if(pk != null) {
+      addStaticKey(pk);
     }
   }
   
   public void addStaticKey(PublicKey key) {
-    try {
-      String sha = Utils.SHABytes(key.getEncoded());
-      if(staticJWTKeys.putIfAbsent(sha, key)==null) {
-        log.info("Added static key:{}", sha);
+    String sha = hashPublicKey(key);
+    synchronized(keysLock) {
+      KeySet ks = keys;
+      if(!ks.staticKeys.containsKey(sha)) {
+        HashMap<String, PublicKey> staticKeys = new HashMap<>(ks.staticKeys);
+        staticKeys.put(sha, key);
+        swapKeys(ks.jwkProviders, staticKeys);
       }
-    } catch (Exception e) {
-      log.error("Could not make a X509EncodedKey from :\n\n{}\n", key);
-      log.error("", e);
     }
   }
 
+  /**
+   * @param key the hash of the key or the base64 encoded key itself.
+   */
   public void removeStaticKey(String key) {
-    if(staticJWTKeys.remove(key) != null) {
-      log.info("Removed StaticKey:"+key);
-    } else {
-      String sha = Utils.SHABytes(Base64.getDecoder().decode(key));
-      if(staticJWTKeys.remove(sha) != null) {
-        log.info("Removed StaticKey:{}",sha);
+    synchronized(keysLock) {
+      KeySet ks = keys;
+      String sha = key;
+      if(!ks.staticKeys.containsKey(sha)) {
+        sha = hashPublicKey(key);
+      }
+      if(ks.staticKeys.containsKey(sha)) {
+        HashMap<String, PublicKey> staticKeys = new HashMap<>(ks.staticKeys);
+        staticKeys.remove(sha);
+        swapKeys(ks.jwkProviders, staticKeys);
       }
     }
   }
   
   public void removeStaticKey(PublicKey key) {
-    String sha = Utils.SHABytes(key.getEncoded());
-    if(staticJWTKeys.remove(sha) != null) {
-      log.info("Removed StaticKey:{}",sha);
-    }
+    removeStaticKey(hashPublicKey(key));
   }
 
   public void clearStaticKey() {
-    staticJWTKeys.clear();
+    synchronized(keysLock) {
+      swapKeys(keys.jwkProviders, Collections.emptyMap());
+    }
   }
 
   public Set<String> getStaticKeys() {
-    return new HashSet<>(staticJWTKeys.keySet());
+    return new HashSet<>(keys.staticKeys.keySet());
+  }
+
+  private static PublicKey decodeStaticKey(String key) {
+    try {
+      return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(key)));
+    } catch (Exception e) {
+      log.error("Could not make a X509EncodedKey from :\n\n{}\n", key);
+      log.error("", e);
+      return null;
+    }
+  }
+
+  /**
+   * Keeps the providers we already have for urls still wanted so their fetched keys are not lost.
+   */
+  private static Map<String, GuavaCachedJwkProvider> makeProviders(KeySet ks, Set<String> jwkUrls) {
+    HashMap<String, GuavaCachedJwkProvider> providers = new HashMap<>();
+    for(String url: jwkUrls) {
+      GuavaCachedJwkProvider gcjwkp = ks.jwkProviders.get(url);
+      if(gcjwkp == null) {
+        try {
+          gcjwkp = new GuavaCachedJwkProvider(new UrlJwkProvider(new URL(url)));
+        } catch (MalformedURLException e) {
+          log.error("Could not make a URL from:{}", url, e);
+          continue;
+        }
+      }
+      providers.put(url, gcjwkp);
+    }
+    return providers;
+  }
+
+  /**
+   * Publishes a new {@link KeySet}, must be called holding keysLock.
+   */
+  private void swapKeys(Map<String, GuavaCachedJwkProvider> providers, Map<String, PublicKey> staticKeys) {
+    final KeySet old = keys;
+    boolean added = false;
+    //Keys we already had keep their place, new ones are tried last
+    List<String> order = new ArrayList<>();
+    for(String sha: old.staticKeyOrder) {
+      if(staticKeys.containsKey(sha)) {
+        order.add(sha);
+      } else {
+        log.info("Removed StaticKey:{}", sha);
+      }
+    }
+    for(String sha: staticKeys.keySet()) {
+      if(!old.staticKeys.containsKey(sha)) {
+        order.add(sha);
+        added = true;
+        log.info("Added static key:{}", sha);
+      }
+    }
+    for(String url: providers.keySet()) {
+      if(!old.jwkProviders.containsKey(url)) {
+        added = true;
+        log.info("Added new JWK endpoint:{}", url);
+      }
+    }
+    for(String url: old.jwkProviders.keySet()) {
+      if(!providers.containsKey(url)) {
+        log.info("Removed JWK endpoint:{}", url);
+      }
+    }
+    KeySet ks = new KeySet(Collections.unmodifiableMap(new HashMap<>(providers)), 
+        Collections.unmodifiableMap(new HashMap<>(staticKeys)), order.toArray(new String[order.size()]));
+    for(Map.Entry<String, String> kid: old.staticKeyKids.entrySet()) {
+      if(staticKeys.containsKey(kid.getValue())) {
+        ks.staticKeyKids.put(kid.getKey(), kid.getValue());
+      }
+    }
+    keys = ks;
+    jwkKeys.values().removeIf((k)->!providers.containsKey(k.url));
+    if(added) {
+      //Tokens that failed before may be good with the new keys
+      failedJWTs.clear();
+    }
+  }
+
+  private void promoteStaticKey(KeySet ks, String sha) {
+    if(ks.staticKeyOrder.length > 0 && ks.staticKeyOrder[0].equals(sha)) {
+      return;
+    }
+    synchronized(keysLock) {
+      List<String> order = new ArrayList<>(Arrays.asList(ks.staticKeyOrder));
+      if(order.remove(sha)) {
+        order.add(0, sha);
+        ks.staticKeyOrder = order.toArray(new String[order.size()]);
+      }
+    }
   }
 
   public DecodedJWT getJWT(HTTPRequest httpRequest) throws JWTDecodeException {
@@ -221,7 +400,7 @@ public class JWTUtils extends AbstractService {
       try {
         return JWT.decode(jwtClaim);
       } catch(Exception e) {
-        throw new JWTDecodeException(jwtClaim, e);
+        throw new JWTDecodeException("Could not decode JWT", e);
       }
     } else {
       throw new JWTDecodeException("No JWT found");
@@ -241,110 +420,427 @@ public class JWTUtils extends AbstractService {
     if(scopes2 != null) {
       allScopes.addAll(scopes2);
     }
-    int ts = 0;
+    if(requireAll) {
+      //A scope listed twice, or in both claims, still only counts once
+      return new HashSet<>(allScopes).containsAll(requiredScopes);
+    }
     for(String s: allScopes) {
       if(requiredScopes.contains(s)) {
-        ts++;
-        if(!requireAll) {
-          return true;
-        }
+        return true;
       }
     }
-    return requiredScopes.size() == ts;
+    return false;
   }
 
-  public ListenableFuture<Boolean> validateJWT(final ClientID clientID, final DecodedJWT djwtFinal) {
-    final SettableListenableFuture<Boolean> vslf = new SettableListenableFuture<Boolean>();
-    
-    Utils.getScheduler().execute(()->{
-      final String jwtString = djwtFinal.getToken();
-      final String keyID = djwtFinal.getKeyId();
-      final String tokenSha = Utils.SHAString(jwtString);
-      Histogram.Timer cachedTimer = jwtProcessLatency.labels("cached").startTimer();
-      Histogram.Timer timer = jwtProcessLatency.labels("lookup").startTimer();
-
-      Long time = cachedJWTs.get(tokenSha);
-      if(time != null && Clock.lastKnownForwardProgressingMillis() < time+300000) {
-        log.info("{}: JWT in valid JWT cache:{}", clientID, jwtString);
-        cachedTimer.close();
-        vslf.setResult(true);
-        return;
-      }
+  public ListenableFuture<Boolean> validateJWT(final ClientID clientID, final DecodedJWT djwt) {
+    final long probeStart = System.nanoTime();
+    final String tokenSha = Utils.SHAString(djwt.getToken());
+    final Histogram.Timer cachedTimer = metrics.jwtProcessLatency.labels("cached").startTimer();
 
-      final List<ListenableFuture<DecodedJWT>> llf = new ArrayList<>();
-      for(Map.Entry<String, GuavaCachedJwkProvider> me: jwkProviders.entrySet()) {
-        final GuavaCachedJwkProvider jwkCache = me.getValue();
-        final String url = me.getKey();
-        final SettableListenableFuture<DecodedJWT> slf = new SettableListenableFuture<>(false);
-        llf.add(slf);
-        Utils.getScheduler().execute(()->{
-          try {
-            Jwk jwk = jwkCache.get(keyID);
-            checkJWT(clientID, url, jwk.getPublicKey(), djwtFinal);
-            slf.setResult(djwtFinal);
-          } catch (Exception e) {
-            slf.setFailure(e);
+    if(cachedJWTs.isValid(tokenSha)) {
+      clientID.setAuthResult("cache");
+      cachedTimer.close();
+      metrics.stages.observe(Stage.CACHE_PROBE, probeStart);
+      return ImmediateResultListenableFuture.BOOLEAN_TRUE_RESULT;
+    }
+    if(failedJWTs.isValid(tokenSha)) {
+      metrics.failedJWTCacheCounter.labels("hit").inc();
+      clientID.setAuthResult("failed_cache");
+      cachedTimer.close();
+      metrics.stages.observe(Stage.CACHE_PROBE, probeStart);
+      return ImmediateResultListenableFuture.BOOLEAN_FALSE_RESULT;
+    }
+    metrics.failedJWTCacheCounter.labels("miss").inc();
+    metrics.stages.observe(Stage.CACHE_PROBE, probeStart);
+
+    //Concurrent requests with the same token all wait on the first ones result
+    final Validation vslf = new Validation();
+    final Validation inflight = inflightJWTs.putIfAbsent(tokenSha, vslf);
+    if(inflight != null) {
+      metrics.coalescedJWTCounter.inc();
+      clientID.setAuthResult("coalesced");
+      if(!inflight.isDone()) {
+        //Added before the caller can add its own listeners, so the wait is known by the time they run
+        final long joined = System.nanoTime();
+        inflight.listener(()->{
+          if(inflight.jwk) {
+            clientID.addJWKWait(System.nanoTime() - joined);
           }
         });
       }
-      for(Map.Entry<String, PublicKey>me: staticJWTKeys.entrySet()) {
-        final SettableListenableFuture<DecodedJWT> slf = new SettableListenableFuture<>(false);
-        llf.add(slf);
-        Utils.getScheduler().execute(()->{
-          try {
-            checkJWT(clientID, me.getKey(), me.getValue(), djwtFinal);
-            log.info("{}: Found static public key:\"{}\" for JWT:\n{}", clientID, me.getKey(), jwtString);
-            slf.setResult(djwtFinal);
-          } catch(Exception e) {
-            slf.setFailure(e);
-          }
-        });
+      return inflight;
+    }
+    if(cachedJWTs.isValid(tokenSha)) {
+      //Finished by someone else between the cache check and registering
+      clientID.setAuthResult("cache");
+      finishJWT(tokenSha, vslf, true);
+      return vslf;
+    }
+
+    //A JWT pinned to one key, or only a few keys to try, is checked right here on the calling thread
+    final KeySet ks = keys;
+    if(ks.staticKeyOrder.length <= MAX_INLINE_KEYS || getJWKKey(ks, djwt.getKeyId()) != null) {
+      verifyJWT(clientID, djwt, tokenSha, vslf);
+    } else {
+      final long queued = System.nanoTime();
+      Utils.getScheduler().execute(()->{
+        metrics.stages.observe(Stage.QUEUE, queued);
+        verifyJWT(clientID, djwt, tokenSha, vslf);
+      });
+    }
+    return vslf;
+  }
+
+  private void verifyJWT(final ClientID clientID, final DecodedJWT djwt, final String tokenSha, 
+      final Validation vslf) {
+    final Histogram.Timer timer = metrics.jwtProcessLatency.labels("lookup").startTimer();
+    final SignedJWT sjwt;
+    try {
+      //The token is only taken apart once no matter how many keys it gets checked against
+      sjwt = SignedJWT.from(djwt);
+      if(checkLocalKeys(clientID, sjwt)) {
+        clientID.setAuthResult("key");
+        cacheValidJWT(tokenSha, djwt);
+        finishJWT(tokenSha, vslf, true);
+        return;
       }
-      
-      final ListenableFuture<DecodedJWT> lf = FutureUtils.makeFirstResultFuture(llf, true, false);
-      Utils.getSocketExecuter().watchFuture(lf, 10000);
-      lf.callback(new FutureCallback<DecodedJWT>() {
+    } catch(JWTValidateException e) {
+      log.error("{}: Could not find valid JWT:{}\nErrors:\n{}", clientID, tokenSha, describeError(e));
+      clientID.setAuthResult("rejected");
+      failedJWTs.put(tokenSha, Long.MAX_VALUE);
+      finishJWT(tokenSha, vslf, false);
+      return;
+    } catch(RuntimeException e) {
+      log.error("{}: Error checking JWT:{}", clientID, tokenSha, e);
+      clientID.setAuthResult("error");
+      finishJWT(tokenSha, vslf, false);
+      return;
+    } finally {
+      timer.close();
+    }
+    lookupJWK(clientID, sjwt, tokenSha, vslf);
+  }
+
+  /**
+   * @return the key a JWK endpoint published for this kid if we still have it, otherwise null.
+   */
+  private JWKKey getJWKKey(final KeySet ks, final String keyID) {
+    if(keyID == null) {
+      return null;
+    }
+    JWKKey jwkKey = jwkKeys.get(keyID);
+    if(jwkKey != null && !jwkKey.isExpired() && ks.jwkProviders.containsKey(jwkKey.url)) {
+      return jwkKey;
+    }
+    return null;
+  }
+
+  /**
+   * Checks the JWT against the keys we already have in memory.
+   *
+   * @return true if the JWT is valid, false if it still needs to be checked against the JWK endpoints.
+   * @throws JWTValidateException if the JWT is not valid and there are no JWK endpoints left to check.
+   */
+  private boolean checkLocalKeys(final ClientID clientID, final SignedJWT sjwt) throws JWTValidateException {
+    final String keyID = sjwt.getDecodedJWT().getKeyId();
+    final KeySet ks = keys;
+    String hinted = null;
+    if(keyID != null) {
+      //A kid published by a JWK endpoint belongs to that key
+      JWKKey jwkKey = getJWKKey(ks, keyID);
+      if(jwkKey != null) {
+        checkJWT(clientID, jwkKey.url, jwkKey.key, sjwt, Stage.VERIFY_JWK);
+        return true;
+      }
+      //A kid we learned from a static key is only a hint, it came from a token so anyone can claim it
+      hinted = ks.staticKeys.containsKey(keyID) ? keyID : ks.staticKeyKids.get(keyID);
+      if(hinted != null) {
+        try {
+          checkStaticKeys(clientID, ks, sjwt, new String[] {hinted});
+          return true;
+        } catch(JWTValidateException e) {
+          log.debug("{}: kid:{} did not match its static key:{}", clientID, keyID, hinted);
+        }
+      }
+    }
+    JWTValidateException staticError = null;
+    String[] order = ks.staticKeyOrder;
+    if(hinted != null) {
+      List<String> rest = new ArrayList<>(Arrays.asList(order));
+      rest.remove(hinted);
+      order = rest.toArray(new String[rest.size()]);
+    }
+    if(order.length > 0) {
+      try {
+        checkStaticKeys(clientID, ks, sjwt, order);
+        return true;
+      } catch(JWTValidateException e) {
+        staticError = e;
+      }
+    }
+    if(!ks.jwkProviders.isEmpty()) {
+      return false;
+    } else if(staticError != null) {
+      throw staticError;
+    } else {
+      throw new JWTValidateException("No keys configured");
+    }
+  }
 
-        @Override
-        public void handleResult(DecodedJWT result) {
-          cachedJWTs.put(tokenSha, Clock.lastKnownForwardProgressingMillis());
-          vslf.setResult(true);
-          timer.close();
+  private void lookupJWK(final ClientID clientID, final SignedJWT sjwt, final String tokenSha, 
+      final Validation vslf) {
+    final DecodedJWT djwt = sjwt.getDecodedJWT();
+    final Histogram.Timer timer = metrics.jwtProcessLatency.labels("jwk").startTimer();
+    final long lookupStart = System.nanoTime();
+    vslf.jwk = true;
+    final List<ListenableFuture<DecodedJWT>> llf = new ArrayList<>();
+    final ListenableFuture<DecodedJWT> lf;
+    final KeySet ks = keys;
+    try {
+      for(Map.Entry<String, GuavaCachedJwkProvider> jwkp: ks.jwkProviders.entrySet()) {
+        llf.add(checkJWKProvider(clientID, sjwt, jwkp.getKey(), jwkp.getValue()));
+      }
+      lf = FutureUtils.makeFirstResultFuture(llf, true, false);
+      Utils.getSocketExecuter().watchFuture(lf, 10000);
+    } catch(RuntimeException e) {
+      //Not the tokens fault so it is not put in the failed cache, but nothing may be left waiting on it
+      log.error("{}: Error starting JWK lookup:{}", clientID, tokenSha, e);
+      clientID.setAuthResult("error");
+      finishJWT(tokenSha, vslf, false);
+      timer.close();
+      return;
+    }
+    lf.callback(new FutureCallback<DecodedJWT>() {
+
+      @Override
+      public void handleResult(DecodedJWT result) {
+        clientID.setAuthResult("jwk");
+        if(djwt.getKeyId() != null) {
+          //The kid belongs to a JWK endpoint, whatever static key it was learned for is wrong
+          ks.staticKeyKids.remove(djwt.getKeyId());
         }
+        cacheValidJWT(tokenSha, djwt);
+        clientID.addJWKWait(System.nanoTime() - lookupStart);
+        finishJWT(tokenSha, vslf, true);
+        timer.close();
+      }
 
-        @Override
-        public void handleFailure(Throwable t) {
-          StringBuilder sb = new StringBuilder();
-          for(ListenableFuture<DecodedJWT> nlf: llf) {
-            try {
-              nlf.get();
-            } catch(Exception e2) {        
-              if(e2.getCause() != null) {
-                sb.append(e2.getCause());
-                if(e2.getCause().getCause() != null) {
-                  sb.append("\n\tCaused By: ");
-                  sb.append(e2.getCause().getCause());
-                }
-              }
-              sb.append("\n");
+      @Override
+      public void handleFailure(Throwable t) {
+        StringBuilder sb = new StringBuilder();
+        //Only remembered as failed if every endpoint actually rejected it, not if one could not be reached
+        boolean rejected = true;
+        for(ListenableFuture<DecodedJWT> nlf: llf) {
+          if(!nlf.isDone()) {
+            rejected = false;
+            sb.append("Timed out\n");
+            continue;
+          }
+          try {
+            nlf.get();
+          } catch(Exception e2) {        
+            sb.append(describeError(e2.getCause()));
+            if(!isRejection(e2.getCause())) {
+              rejected = false;
             }
           }
-          log.error("{}: Could not find valid JWT:\nJWT:{}\nErrors:\n{}", clientID, jwtString, sb.toString());
-          vslf.setResult(false);
-          timer.close();
-          return;
         }
-      });
+        log.error("{}: Could not find valid JWT:{}\nErrors:\n{}", clientID, tokenSha, sb.toString());
+        if(rejected) {
+          clientID.setAuthResult("rejected");
+          failedJWTs.put(tokenSha, Long.MAX_VALUE);
+        } else {
+          clientID.setAuthResult("error");
+        }
+        clientID.addJWKWait(System.nanoTime() - lookupStart);
+        finishJWT(tokenSha, vslf, false);
+        timer.close();
+      }
     });
-    return vslf;
   }
 
-  private boolean checkJWT(final ClientID cid, final String kid, final PublicKey pk, final DecodedJWT claim) throws JWTValidateException {
-    try {
-      Jwts.parser().setSigningKey(pk).parseClaimsJws(claim.getToken());
+  private ListenableFuture<DecodedJWT> checkJWKProvider(final ClientID clientID, final SignedJWT sjwt, 
+      final String url, final GuavaCachedJwkProvider jwkCache) {
+    final SettableListenableFuture<DecodedJWT> slf = new SettableListenableFuture<>(false);
+    final long queued = System.nanoTime();
+    Utils.getScheduler().execute(()->{
+      metrics.stages.observe(Stage.QUEUE, queued);
+      final DecodedJWT djwt = sjwt.getDecodedJWT();
+      try {
+        final long fetchStart = System.nanoTime();
+        final PublicKey pk;
+        try {
+          pk = jwkCache.get(djwt.getKeyId()).getPublicKey();
+        } finally {
+          metrics.stages.observe(Stage.JWK_FETCH, fetchStart);
+        }
+        checkJWT(clientID, url, pk, sjwt, Stage.VERIFY_JWK);
+        if(djwt.getKeyId() != null) {
+          jwkKeys.put(djwt.getKeyId(), new JWKKey(url, pk));
+        }
+        slf.setResult(djwt);
+      } catch (Exception e) {
+        slf.setFailure(e);
+      }
+    });
+    return slf;
+  }
+
+  /**
+   * Tries the given static keys one after another, stopping at the first one that works.
+   */
+  private void checkStaticKeys(final ClientID clientID, final KeySet ks, final SignedJWT sjwt, final String[] keys) throws JWTValidateException {
+    final DecodedJWT djwt = sjwt.getDecodedJWT();
+    JWTValidateException lastError = null;
+    for(String sha: keys) {
+      PublicKey pk = ks.staticKeys.get(sha);
+      if(pk == null) {
+        continue;
+      }
+      try {
+        checkJWT(clientID, sha, pk, sjwt, Stage.VERIFY_STATIC);
+        log.debug("{}: Found static public key:{}", clientID, sha);
+        if(djwt.getKeyId() != null && !djwt.getKeyId().equals(sha) && !jwkKeys.containsKey(djwt.getKeyId())) {
+          ks.staticKeyKids.put(djwt.getKeyId(), sha);
+        }
+        promoteStaticKey(ks, sha);
+        return;
+      } catch(JWTValidateException e) {
+        lastError = e;
+      }
+    }
+    if(lastError == null) {
+      throw new JWTValidateException("No static keys to check");
+    }
+    throw new JWTValidateException("No match in "+keys.length+" static keys, last error", lastError);
+  }
+
+  /**
+   * @return true if the JWT itself was at fault, false if the JWK endpoint could not give us a key.
+   */
+  private static boolean isRejection(Throwable t) {
+    if(t instanceof JWTValidateException) {
       return true;
-    } catch (Exception e) {
+    }
+    //A kid missing from the key set has no cause, a failed fetch or parse always carries the error under it
+    while(t != null) {
+      if(t instanceof SigningKeyNotFoundException && t.getCause() == null) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  private void cacheValidJWT(final String tokenSha, final DecodedJWT djwt) {
+    Date exp = djwt.getExpiresAt();
+    cachedJWTs.put(tokenSha, exp == null ? Long.MAX_VALUE : exp.getTime());
+  }
+
+  private static String describeError(Throwable t) {
+    StringBuilder sb = new StringBuilder();
+    if(t != null) {
+      sb.append(t);
+      if(t.getCause() != null) {
+        sb.append("\n\tCaused By: ");
+        sb.append(t.getCause());
+      }
+    }
+    sb.append("\n");
+    return sb.toString();
+  }
+
+  private void finishJWT(final String tokenSha, final SettableListenableFuture<Boolean> vslf, final boolean valid) {
+    //Removed first so nothing can join a validation that has already finished
+    inflightJWTs.remove(tokenSha, vslf);
+    vslf.setResult(valid);
+  }
+
+  private void checkJWT(final ClientID cid, final String kid, final PublicKey pk, final SignedJWT sjwt, 
+      final Stage stage) throws JWTValidateException {
+    final long start = System.nanoTime();
+    try {
+      sjwt.verify(pk);
+    } catch (JWTValidateException e) {
       throw new JWTValidateException("KID:"+kid, e);
+    } finally {
+      metrics.stages.observe(stage, start);
+    }
+  }
+
+  /**
+   * A validation in progress that later requests with the same token can wait on.
+   */
+  private static class Validation extends SettableListenableFuture<Boolean> {
+    //Set once the token has to go to a JWK endpoint, so waiting on it is waiting on I/O
+    private volatile boolean jwk = false;
+
+    private Validation() {
+      super(false);
+    }
+  }
+
+  private static class Metrics {
+    private final Histogram jwtProcessLatency = Histogram.build()
+        .name(TurnRest.TURN_REST+"jwt_process_seconds")
+        .help("JWT process time in seconds.")
+        .labelNames("type")
+        .register(Utils.getMetricsRegistry());
+
+    private final Gauge jwtCacheSize = Gauge.build()
+        .name(TurnRest.TURN_REST+"jwt_cache_entries")
+        .help("Number of verified JWTs in the cache.")
+        .register(Utils.getMetricsRegistry());
+
+    private final Counter failedJWTCacheCounter = Counter.build()
+        .name(TurnRest.TURN_REST+"jwt_failed_cache_total")
+        .help("Lookups in the failed JWT cache.")
+        .labelNames("result")
+        .register(Utils.getMetricsRegistry());
+
+    private final Counter coalescedJWTCounter = Counter.build()
+        .name(TurnRest.TURN_REST+"jwt_coalesced_total")
+        .help("JWT validations that joined one already in progress for the same token.")
+        .register(Utils.getMetricsRegistry());
+
+    private final RequestStages stages = new RequestStages();
+  }
+
+  /**
+   * The JWK endpoints and static keys JWTs are checked against.  The maps never change once published,
+   * only the order static keys are tried in and the kids learned for them do.
+   */
+  private static class KeySet {
+    private final Map<String, GuavaCachedJwkProvider> jwkProviders;
+    private final Map<String, PublicKey> staticKeys;
+    //kids we have seen verify against a key, so the next token with that kid tries it first
+    private final ConcurrentHashMap<String, String> staticKeyKids = new ConcurrentHashMap<>();
+    //Static key hashes, most recently successful first
+    private volatile String[] staticKeyOrder;
+
+    private KeySet(Map<String, GuavaCachedJwkProvider> jwkProviders, Map<String, PublicKey> staticKeys, String[] staticKeyOrder) {
+      this.jwkProviders = jwkProviders;
+      this.staticKeys = staticKeys;
+      this.staticKeyOrder = staticKeyOrder;
+    }
+  }
+
+  /**
+   * A key we have already pulled from a JWK endpoint, kept so later JWTs with the same kid can be checked
+   * without going back through the endpoint.
+   */
+  private static class JWKKey {
+    private final String url;
+    private final PublicKey key;
+    private final long fetchedAt = Clock.lastKnownForwardProgressingMillis();
+
+    private JWKKey(String url, PublicKey key) {
+      this.url = url;
+      this.key = key;
+    }
+
+    private boolean isExpired() {
+      return Clock.lastKnownForwardProgressingMillis() - fetchedAt > JWK_KEY_CACHE_TIME;
     }
   }
 
@@ -386,7 +882,7 @@ public class JWTUtils extends AbstractService {
 
   @Override
   protected void startupService() {
-    ps.scheduleAtFixedRate(this.watchCache, 30000, 30000);
+    ps.scheduleAtFixedRate(this.watchCache, 1000, 1000);
   }
 
   @Override
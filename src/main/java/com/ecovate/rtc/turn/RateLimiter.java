@@ -0,0 +1,150 @@
+package com.ecovate.rtc.turn;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.threadly.util.Clock;
+
+/**
+ * Token buckets kept per key.  The keys are spread over a fixed number of stripes, each its own small
+ * LRU map behind its own lock, so threads only contend when they hit the same stripe.  Each stripe holds
+ * at most its share of the max key count, the least recently used key is dropped when a stripe is full.
+ *
+ * A bucket that has refilled completely is the same as one that was never made, so {@link #expire()}
+ * just drops those and loses nothing.
+ */
+public class RateLimiter {
+  public static final int DEFAULT_MAX_KEYS = 100000;
+  private static final int STRIPES = 64;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private volatile double ratePerMs = 0;
+  private volatile double burst = 0;
+
+  public RateLimiter() {
+    this(DEFAULT_MAX_KEYS);
+  }
+
+  public RateLimiter(int maxKeys) {
+    final int perStripe = Math.max(1, maxKeys / STRIPES);
+    for(int i=0; i<STRIPES; i++) {
+      stripes[i] = new Stripe(perStripe);
+    }
+  }
+
+  /**
+   * @param ratePerSecond how many requests per second a key can make, 0 or less turns the limit off.
+   * @param burst how many requests a key can make at once after being idle.
+   */
+  public void setLimit(double ratePerSecond, double burst) {
+    this.burst = Math.max(1, burst);
+    this.ratePerMs = Math.max(0, ratePerSecond) / 1000;
+  }
+
+  public boolean isEnabled() {
+    return ratePerMs > 0;
+  }
+
+  public boolean tryAcquire(String key) {
+    return tryAcquire(key, Clock.lastKnownForwardProgressingMillis());
+  }
+
+  /**
+   * Takes a token from the keys bucket.
+   *
+   * @param key what the request is limited by.
+   * @param now the current time in millis, only ever moving forward.
+   * @return true if the request is allowed, false if the key is over its limit.
+   */
+  public boolean tryAcquire(String key, long now) {
+    final double rate = ratePerMs;
+    if(rate <= 0) {
+      return true;
+    }
+    final double max = burst;
+    final Stripe stripe = stripes[spread(key.hashCode()) & (STRIPES-1)];
+    synchronized(stripe) {
+      Bucket b = stripe.get(key);
+      if(b == null) {
+        stripe.put(key, new Bucket(max-1, now));
+        return true;
+      }
+      b.tokens = Math.min(max, b.tokens + (now - b.last) * rate);
+      b.last = now;
+      if(b.tokens < 1) {
+        return false;
+      }
+      b.tokens -= 1;
+      return true;
+    }
+  }
+
+  /**
+   * Removes every bucket that has refilled since it was last used.
+   *
+   * @return the number of buckets removed.
+   */
+  public int expire() {
+    return expire(Clock.lastKnownForwardProgressingMillis());
+  }
+
+  public int expire(long now) {
+    final double rate = ratePerMs;
+    final double max = burst;
+    int removed = 0;
+    for(Stripe stripe: stripes) {
+      synchronized(stripe) {
+        Iterator<Bucket> it = stripe.values().iterator();
+        while(it.hasNext()) {
+          Bucket b = it.next();
+          if(rate <= 0 || b.tokens + (now - b.last) * rate >= max) {
+            it.remove();
+            removed++;
+          }
+        }
+      }
+    }
+    return removed;
+  }
+
+  public int size() {
+    int size = 0;
+    for(Stripe stripe: stripes) {
+      synchronized(stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  //Strings that differ only at the end tend to differ only in the low bits of their hash
+  private static int spread(int h) {
+    return h ^ (h >>> 16) ^ (h >>> 8);
+  }
+
+  private static class Bucket {
+    private double tokens;
+    private long last;
+
+    private Bucket(double tokens, long last) {
+      this.tokens = tokens;
+      this.last = last;
+    }
+  }
+
+  private static class Stripe extends LinkedHashMap<String, Bucket> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    private Stripe(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.ecovate.rtc.turn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+import io.prometheus.client.Counter;
+
+/**
+ * The request rate limits, one {@link RateLimiter} per thing a request can be limited by: the client
+ * address, the JWT subject and the JWT itself.  The address is checked before any work is done on a
+ * request and the JWT once it is decoded but before its signature is checked.  The subject is only
+ * charged once the signature has been checked, anyone can put any subject in an unsigned token.
+ */
+public class RateLimits {
+  private static final Logger log = LoggerFactory.getLogger(RateLimits.class);
+  public static final String DEFAULT_ADDRESS_HEADER = "X-Forwarded-For";
+
+  private final Counter rateLimitedCounter = Counter.build()
+      .name(TurnRest.TURN_REST+"rate_limited_total")
+      .help("Requests turned away with a 429 by what they were limited on.")
+      .labelNames("key")
+      .register(Utils.getMetricsRegistry());
+
+  private final RateLimiter address;
+  private final RateLimiter user;
+  private final RateLimiter token;
+  private volatile String addressHeader = DEFAULT_ADDRESS_HEADER;
+
+  public RateLimits() {
+    this(RateLimiter.DEFAULT_MAX_KEYS);
+  }
+
+  public RateLimits(int maxKeys) {
+    address = new RateLimiter(maxKeys);
+    user = new RateLimiter(maxKeys);
+    token = new RateLimiter(maxKeys);
+  }
+
+  public void update(TurnRestConfig trc) {
+    address.setLimit(trc.getRateLimitAddressRate(), trc.getRateLimitAddressBurst());
+    user.setLimit(trc.getRateLimitUserRate(), trc.getRateLimitUserBurst());
+    token.setLimit(trc.getRateLimitTokenRate(), trc.getRateLimitTokenBurst());
+    addressHeader = trc.getRateLimitAddressHeader();
+    log.info("Set rate limits address:{}/{} user:{}/{} token:{}/{}",
+        trc.getRateLimitAddressRate(), trc.getRateLimitAddressBurst(),
+        trc.getRateLimitUserRate(), trc.getRateLimitUserBurst(),
+        trc.getRateLimitTokenRate(), trc.getRateLimitTokenBurst());
+  }
+
+  /**
+   * Checks the limit for the address the request came from.  The HTTP server does not give us the
+   * peer address so this is the last address in the configured proxy header, the one our own proxy
+   * added.  Requests without the header are not limited by address, and without a proxy in front that
+   * sets the header the client can put anything in it, so this limit only means something behind one.
+   *
+   * @return true if the request is allowed.
+   */
+  public boolean checkAddress(HTTPRequest hr) {
+    if(!address.isEnabled()) {
+      return true;
+    }
+    String value = hr.getHTTPHeaders().getHeader(addressHeader);
+    if(value == null) {
+      return true;
+    }
+    int comma = value.lastIndexOf(',');
+    if(comma >= 0) {
+      value = value.substring(comma+1);
+    }
+    if(address.tryAcquire(value.trim())) {
+      return true;
+    }
+    rateLimitedCounter.labels("address").inc();
+    return false;
+  }
+
+  /**
+   * Checks the limit for the JWT itself, before its signature is checked.  The signature stands in for a
+   * digest of the token, it is already unique per token and costs nothing to get.
+   *
+   * @return true if the request is allowed.
+   */
+  public boolean checkToken(DecodedJWT djwt) {
+    if(token.isEnabled() && !token.tryAcquire(djwt.getSignature())) {
+      rateLimitedCounter.labels("token").inc();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Checks the limit for the JWTs subject.  This must only be called once the JWT is known to be valid,
+   * otherwise forged tokens could use up someone else's requests.
+   *
+   * @return true if the request is allowed.
+   */
+  public boolean checkUser(DecodedJWT djwt) {
+    if(user.isEnabled()) {
+      final String sub = djwt.getSubject();
+      if(sub != null && !user.tryAcquire(sub)) {
+        rateLimitedCounter.labels("user").inc();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int expire() {
+    return address.expire() + user.expire() + token.expire();
+  }
+}
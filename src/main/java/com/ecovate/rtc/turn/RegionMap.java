@@ -0,0 +1,398 @@
+package com.ecovate.rtc.turn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps client addresses to regions from a list of CIDR ranges.  IPv4 addresses are kept as IPv4 mapped
+ * IPv6 ones so both live in one table.  The ranges are flattened when loaded into a sorted array of
+ * where each run of addresses starts and the region it belongs to, the most specific range winning
+ * where ranges nest.  A lookup parses the address in place and binary searches the starts, it allocates
+ * nothing.
+ *
+ * The file has a range and a region name per line, blank lines and lines starting with # are skipped:
+ * <pre>
+ * 10.0.0.0/8      us-east
+ * 2001:db8::/32   eu-west
+ * </pre>
+ */
+public class RegionMap {
+  public static final int NO_REGION = -1;
+  //::ffff:0:0/96, where IPv4 addresses go
+  private static final long V4_MAPPED_LO = 0xffffL << 32;
+  private static final RegionMap EMPTY = new RegionMap(new long[0], new long[0], new int[0], 0);
+
+  private final long[] startHi;
+  private final long[] startLo;
+  private final int[] regions;
+  private final int size;
+
+  private RegionMap(long[] startHi, long[] startLo, int[] regions, int size) {
+    this.startHi = startHi;
+    this.startLo = startLo;
+    this.regions = regions;
+    this.size = size;
+  }
+
+  /**
+   * @param regionIndex the index for each region name, the index is what lookups return.
+   * @throws IllegalArgumentException if a line is not a range and a known region.
+   */
+  public static RegionMap load(File f, Map<String, Integer> regionIndex) throws IOException {
+    return parse(Files.readAllLines(f.toPath(), StandardCharsets.UTF_8), regionIndex);
+  }
+
+  public static RegionMap parse(List<String> lines, Map<String, Integer> regionIndex) {
+    ArrayList<Range> ranges = new ArrayList<>();
+    for(int i=0; i<lines.size(); i++) {
+      final String line = lines.get(i).trim();
+      if(line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final String[] parts = line.split("\\s+");
+      if(parts.length != 2) {
+        throw new IllegalArgumentException("Bad region map line "+(i+1)+":"+line);
+      }
+      final Integer region = regionIndex.get(parts[1]);
+      if(region == null) {
+        throw new IllegalArgumentException("Unknown region on line "+(i+1)+":"+parts[1]);
+      }
+      ranges.add(parseRange(parts[0], region, i+1));
+    }
+    return build(ranges);
+  }
+
+  private static Range parseRange(String cidr, int region, int line) {
+    final int slash = cidr.indexOf('/');
+    final String addr = slash < 0 ? cidr : cidr.substring(0, slash);
+    final boolean v4 = addr.indexOf(':') < 0;
+    final long[] hl = new long[2];
+    if(!parse(addr, 0, addr.length(), hl)) {
+      throw new IllegalArgumentException("Bad address on line "+line+":"+cidr);
+    }
+    int bits = v4 ? 32 : 128;
+    if(slash >= 0) {
+      try {
+        bits = Integer.parseInt(cidr.substring(slash+1));
+      } catch(NumberFormatException e) {
+        bits = -1;
+      }
+      if(bits < 0 || bits > (v4 ? 32 : 128)) {
+        throw new IllegalArgumentException("Bad prefix length on line "+line+":"+cidr);
+      }
+    }
+    final int prefix = v4 ? bits + 96 : bits;
+    //Host bits are masked off rather than rejected, 10.1.2.3/8 is 10.0.0.0/8
+    final long hiMask = prefix >= 64 ? -1L : (prefix == 0 ? 0 : -1L << (64 - prefix));
+    final long loMask = prefix <= 64 ? 0 : (prefix == 128 ? -1L : -1L << (128 - prefix));
+    return new Range(hl[0] & hiMask, hl[1] & loMask, hl[0] | ~hiMask, hl[1] | ~loMask, prefix, region);
+  }
+
+  /**
+   * Flattens nested ranges into runs, walking them in order with a stack of the ranges that are open.
+   */
+  private static RegionMap build(List<Range> ranges) {
+    //By start then widest first, a later duplicate ends up on top of the stack and wins
+    ranges.sort((a, b)->{
+      int c = compare(a.startHi, a.startLo, b.startHi, b.startLo);
+      return c != 0 ? c : Integer.compare(a.prefix, b.prefix);
+    });
+    final Builder b = new Builder(ranges.size()*2 + 1);
+    final ArrayList<Range> open = new ArrayList<>();
+    for(Range r: ranges) {
+      while(!open.isEmpty() && compare(open.get(open.size()-1).endHi, open.get(open.size()-1).endLo, r.startHi, r.startLo) < 0) {
+        close(b, open);
+      }
+      b.add(r.startHi, r.startLo, r.region);
+      open.add(r);
+    }
+    while(!open.isEmpty()) {
+      close(b, open);
+    }
+    return new RegionMap(b.hi, b.lo, b.regions, b.size);
+  }
+
+  private static void close(Builder b, ArrayList<Range> open) {
+    final Range r = open.remove(open.size()-1);
+    if(r.endHi == -1L && r.endLo == -1L) {
+      return;
+    }
+    //The address after the range goes back to whatever range is still open around it
+    final long nextLo = r.endLo + 1;
+    final long nextHi = nextLo == 0 ? r.endHi + 1 : r.endHi;
+    b.add(nextHi, nextLo, open.isEmpty() ? NO_REGION : open.get(open.size()-1).region);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the region of the last address in a forwarding header, the one our own proxy added, or
+   * {@link #NO_REGION} if there is none or it is not an address.
+   */
+  public int lookupForwarded(String header) {
+    if(header == null) {
+      return NO_REGION;
+    }
+    return lookup(header, header.lastIndexOf(',') + 1, header.length());
+  }
+
+  public int lookup(CharSequence address) {
+    return lookup(address, 0, address.length());
+  }
+
+  /**
+   * Looks up the address in part of a string.  Surrounding spaces, [] around an IPv6 address, a port
+   * after an IPv4 one and an IPv6 zone are all skipped over.
+   */
+  public int lookup(CharSequence s, int start, int end) {
+    return find(s, start, end, null);
+  }
+
+  /**
+   * @param out null to look the address up, otherwise where the parsed address is put instead.
+   * @return the region, or 0 if the address was parsed into out, {@link #NO_REGION} if it is not an address.
+   */
+  private int find(CharSequence s, int start, int end, long[] out) {
+    while(start < end && s.charAt(start) == ' ') {
+      start++;
+    }
+    while(end > start && s.charAt(end-1) == ' ') {
+      end--;
+    }
+    if(start < end && s.charAt(start) == '[') {
+      start++;
+      int close = indexOf(s, ']', start, end);
+      if(close < 0) {
+        return NO_REGION;
+      }
+      end = close;
+    }
+    int zone = indexOf(s, '%', start, end);
+    if(zone >= 0) {
+      end = zone;
+    }
+    int colon = indexOf(s, ':', start, end);
+    if(colon >= 0 && indexOf(s, ':', colon+1, end) < 0) {
+      //A single colon is an IPv4 address with a port
+      end = colon;
+      colon = -1;
+    }
+    if(colon < 0) {
+      final long v4 = parseV4(s, start, end);
+      return v4 < 0 ? NO_REGION : found(0, V4_MAPPED_LO | v4, out);
+    }
+    //Groups before a :: go in head, after it in tail, the gap between them is zeros
+    long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+    int headGroups = 0, tailGroups = 0;
+    boolean gap = false;
+    int i = start;
+    if(end - start >= 2 && s.charAt(start) == ':' && s.charAt(start+1) == ':') {
+      gap = true;
+      i += 2;
+    }
+    while(i < end) {
+      int groupEnd = i;
+      int value = 0;
+      while(groupEnd < end && s.charAt(groupEnd) != ':' && s.charAt(groupEnd) != '.' && groupEnd - i < 4) {
+        final int d = Character.digit(s.charAt(groupEnd), 16);
+        if(d < 0) {
+          return NO_REGION;
+        }
+        value = (value << 4) | d;
+        groupEnd++;
+      }
+      int groups = 1;
+      if(groupEnd < end && s.charAt(groupEnd) == '.') {
+        //An IPv4 address in the last two groups
+        final long v4 = parseV4(s, i, end);
+        if(v4 < 0) {
+          return NO_REGION;
+        }
+        groupEnd = end;
+        groups = 2;
+        value = 0;
+        if(gap) {
+          tailHi = (tailHi << 32) | (tailLo >>> 32);
+          tailLo = (tailLo << 32) | v4;
+        } else {
+          headHi = (headHi << 32) | (headLo >>> 32);
+          headLo = (headLo << 32) | v4;
+        }
+      } else if(groupEnd == i || (groupEnd < end && s.charAt(groupEnd) != ':')) {
+        return NO_REGION;
+      } else if(gap) {
+        tailHi = (tailHi << 16) | (tailLo >>> 48);
+        tailLo = (tailLo << 16) | value;
+      } else {
+        headHi = (headHi << 16) | (headLo >>> 48);
+        headLo = (headLo << 16) | value;
+      }
+      if(gap) {
+        tailGroups += groups;
+      } else {
+        headGroups += groups;
+      }
+      i = groupEnd;
+      if(i < end) {
+        i++;
+        if(i < end && s.charAt(i) == ':') {
+          if(gap) {
+            return NO_REGION;
+          }
+          gap = true;
+          i++;
+        } else if(i == end) {
+          //Ends in a single :
+          return NO_REGION;
+        }
+      }
+    }
+    if(headGroups + tailGroups > (gap ? 7 : 8) || (!gap && headGroups != 8)) {
+      return NO_REGION;
+    }
+    //Move the head up past the gap and the tail
+    for(int g = headGroups; g < 8; g++) {
+      headHi = (headHi << 16) | (headLo >>> 48);
+      headLo <<= 16;
+    }
+    return found(headHi | tailHi, headLo | tailLo, out);
+  }
+
+  private int found(long hi, long lo, long[] out) {
+    if(out == null) {
+      return lookup(hi, lo);
+    }
+    out[0] = hi;
+    out[1] = lo;
+    return 0;
+  }
+
+  /**
+   * @return the region of a 128 bit address, IPv4 addresses are given as IPv4 mapped ones.
+   */
+  public int lookup(long hi, long lo) {
+    //The last run that starts at or before the address
+    int low = 0;
+    int high = size - 1;
+    int found = -1;
+    while(low <= high) {
+      final int mid = (low + high) >>> 1;
+      if(compare(startHi[mid], startLo[mid], hi, lo) <= 0) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found < 0 ? NO_REGION : regions[found];
+  }
+
+  /**
+   * @return the IPv4 address as an unsigned int in a long, -1 if it is not one.
+   */
+  private static long parseV4(CharSequence s, int start, int end) {
+    long addr = 0;
+    int octets = 0;
+    int i = start;
+    while(octets < 4) {
+      int value = 0;
+      int digits = 0;
+      while(i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9' && digits < 3) {
+        value = (value * 10) + (s.charAt(i) - '0');
+        digits++;
+        i++;
+      }
+      if(digits == 0 || value > 255) {
+        return -1;
+      }
+      addr = (addr << 8) | value;
+      octets++;
+      if(octets < 4) {
+        if(i >= end || s.charAt(i) != '.') {
+          return -1;
+        }
+        i++;
+      }
+    }
+    return i == end ? addr : -1;
+  }
+
+  /**
+   * Parses an address for loading, an IPv4 one is put into IPv4 mapped form.
+   */
+  private static boolean parse(String addr, int start, int end, long[] hl) {
+    return EMPTY.find(addr, start, end, hl) != NO_REGION;
+  }
+
+  private static int indexOf(CharSequence s, char c, int start, int end) {
+    for(int i=start; i<end; i++) {
+      if(s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int compare(long aHi, long aLo, long bHi, long bLo) {
+    final int c = Long.compareUnsigned(aHi, bHi);
+    return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+  }
+
+  private static class Range {
+    private final long startHi;
+    private final long startLo;
+    private final long endHi;
+    private final long endLo;
+    private final int prefix;
+    private final int region;
+
+    private Range(long startHi, long startLo, long endHi, long endLo, int prefix, int region) {
+      this.startHi = startHi;
+      this.startLo = startLo;
+      this.endHi = endHi;
+      this.endLo = endLo;
+      this.prefix = prefix;
+      this.region = region;
+    }
+  }
+
+  private static class Builder {
+    private long[] hi;
+    private long[] lo;
+    private int[] regions;
+    private int size;
+
+    private Builder(int capacity) {
+      hi = new long[capacity];
+      lo = new long[capacity];
+      regions = new int[capacity];
+    }
+
+    private void add(long h, long l, int region) {
+      if(size > 0 && hi[size-1] == h && lo[size-1] == l) {
+        //A range starting where another does, the later one wins
+        size--;
+      }
+      if(size > 0 && regions[size-1] == region) {
+        return;
+      }
+      if(size == hi.length) {
+        hi = Arrays.copyOf(hi, size*2);
+        lo = Arrays.copyOf(lo, size*2);
+        regions = Arrays.copyOf(regions, size*2);
+      }
+      hi[size] = h;
+      lo[size] = l;
+      regions[size] = region;
+      size++;
+    }
+  }
+}
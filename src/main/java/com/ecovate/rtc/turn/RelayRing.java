@@ -0,0 +1,148 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders the TURN servers per user, or per room, with weighted rendezvous hashing.  Every server gets a
+ * score from the hash of the key and the server and the servers are listed highest score first, the
+ * first one is the users primary relay and the rest are fallbacks.  The same key always gets the same
+ * order, and when a server is added or removed only the keys that pick (or picked) it as primary move.
+ *
+ * Each distinct order gets its own {@link TurnRestResponseEncoder} template, made the first time it is
+ * seen.  There are only as many orders as there are arrangements of the servers, for the handful of
+ * relays a deployment has that is a small set.
+ */
+public class RelayRing {
+  //Orders are cached by their indexes packed 4 bits each into a long
+  private static final int MAX_CACHED_SERVERS = 16;
+  private static final int MAX_TEMPLATES = 4096;
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final double UNIT = 1.0 / (1L << 53);
+
+  private final String[] turnURIs;
+  private final String[] stunURIs;
+  private final long ttl;
+  private final long[] serverHashes;
+  private final double[] weights;
+  private final int length;
+  private final ConcurrentHashMap<Long, Order> orders = new ConcurrentHashMap<>();
+
+  /**
+   * @param turnURIs the servers to order.
+   * @param weights relative weight by URI, servers not in it have a weight of 1.
+   * @param fallbacks how many servers to list after the primary.
+   */
+  public RelayRing(String[] turnURIs, Map<String, Double> weights, int fallbacks, String[] stunURIs, long ttl) {
+    this.turnURIs = turnURIs;
+    this.stunURIs = stunURIs;
+    this.ttl = ttl;
+    this.length = Math.min(turnURIs.length, fallbacks + 1);
+    this.serverHashes = new long[turnURIs.length];
+    this.weights = new double[turnURIs.length];
+    for(int i=0; i<turnURIs.length; i++) {
+      serverHashes[i] = hash(turnURIs[i]);
+      Double w = weights.get(turnURIs[i]);
+      this.weights[i] = w == null ? 1 : w;
+    }
+  }
+
+  /**
+   * @return the servers for a key, primary first, along with the template to encode them with.
+   */
+  public Order order(String key) {
+    final long kh = hash(key);
+    final int[] idx = new int[turnURIs.length];
+    final double[] scores = new double[turnURIs.length];
+    for(int i=0; i<turnURIs.length; i++) {
+      final double score = score(kh, i);
+      //Insertion sort, highest score first, there are only a few servers
+      int j = i;
+      while(j > 0 && scores[j-1] < score) {
+        j--;
+      }
+      System.arraycopy(idx, j, idx, j+1, i-j);
+      System.arraycopy(scores, j, scores, j+1, i-j);
+      idx[j] = i;
+      scores[j] = score;
+    }
+    if(turnURIs.length > MAX_CACHED_SERVERS) {
+      return makeOrder(idx, false);
+    }
+    long packed = 0;
+    for(int i=0; i<length; i++) {
+      packed = (packed << 4) | idx[i];
+    }
+    Order o = orders.get(packed);
+    if(o == null) {
+      if(orders.size() >= MAX_TEMPLATES) {
+        return makeOrder(idx, false);
+      }
+      o = makeOrder(idx, true);
+      Order prev = orders.putIfAbsent(packed, o);
+      if(prev != null) {
+        o = prev;
+      }
+    }
+    return o;
+  }
+
+  private Order makeOrder(int[] idx, boolean template) {
+    final String[] uris = new String[length];
+    for(int i=0; i<length; i++) {
+      uris[i] = turnURIs[idx[i]];
+    }
+    return new Order(uris, template ? new TurnRestResponseEncoder(uris, stunURIs, ttl) : null);
+  }
+
+  /**
+   * The weighted rendezvous score, -weight/ln(u) with u the hash mapped into (0, 1).
+   */
+  private double score(long keyHash, int server) {
+    final long h = mix(keyHash ^ serverHashes[server]);
+    final double u = ((h >>> 11) + 0.5) * UNIT;
+    return -weights[server] / Math.log(u);
+  }
+
+  /**
+   * FNV-1a of the UTF-8 bytes, it is the same in every JVM so keys land the same on every server.
+   */
+  static long hash(String s) {
+    long h = FNV_OFFSET;
+    for(byte b: s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= (b & 0xff);
+      h *= FNV_PRIME;
+    }
+    return h;
+  }
+
+  //The splitmix64 finalizer, so close hashes still give unrelated scores
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  public static class Order {
+    private final String[] uris;
+    private final TurnRestResponseEncoder encoder;
+
+    private Order(String[] uris, TurnRestResponseEncoder encoder) {
+      this.uris = uris;
+      this.encoder = encoder;
+    }
+
+    public String[] getURIs() {
+      return uris;
+    }
+
+    /**
+     * @return the template for this order, null if there are too many orders to keep templates for.
+     */
+    public TurnRestResponseEncoder getEncoder() {
+      return encoder;
+    }
+  }
+}
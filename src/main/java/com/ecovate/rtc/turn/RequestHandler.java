@@ -0,0 +1,12 @@
+package com.ecovate.rtc.turn;
+
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+@FunctionalInterface
+public interface RequestHandler {
+
+  public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc);
+}
@@ -0,0 +1,61 @@
+package com.ecovate.rtc.turn;
+
+import io.prometheus.client.Histogram;
+
+/**
+ * How long each stage of a /turn request takes, one histogram labeled by stage.  The stages are a fixed
+ * set so the label never grows, and the child for each is looked up once so timing a stage is a
+ * nanoTime call and an observe.
+ */
+public class RequestStages {
+
+  public enum Stage {
+    //Waiting on the scheduler for a thread, for work handed off from the request
+    QUEUE("queue"),
+    JWT_DECODE("jwt_decode"),
+    SCOPE_CHECK("scope_check"),
+    CACHE_PROBE("cache_probe"),
+    VERIFY_STATIC("verify_static"),
+    VERIFY_JWK("verify_jwk"),
+    JWK_FETCH("jwk_fetch"),
+    MINT("mint"),
+    SERIALIZE("serialize"),
+    WRITE("write");
+
+    private final String label;
+
+    private Stage(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final Histogram.Child[] children;
+
+  public RequestStages() {
+    //Finer than the defaults at the bottom, most stages are well under a millisecond
+    Histogram latency = Histogram.build()
+        .name(TurnRest.TURN_REST+"request_stage_seconds")
+        .help("Time spent in each stage of a request.")
+        .labelNames("stage")
+        .buckets(.00001, .000025, .00005, .0001, .00025, .0005, .001, .0025, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10)
+        .register(Utils.getMetricsRegistry());
+    Stage[] stages = Stage.values();
+    children = new Histogram.Child[stages.length];
+    for(Stage s: stages) {
+      children[s.ordinal()] = latency.labels(s.getLabel());
+    }
+  }
+
+  /**
+   * Records a stage that started at the given time.
+   *
+   * @param start when the stage started from {@link System#nanoTime()}.
+   */
+  public void observe(Stage stage, long start) {
+    children[stage.ordinal()].observe((System.nanoTime() - start) / 1e9);
+  }
+}
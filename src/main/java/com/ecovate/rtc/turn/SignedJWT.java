@@ -0,0 +1,166 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Date;
+
+import org.threadly.util.Clock;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.ecovate.rtc.turn.JWTUtils.JWTValidateException;
+
+/**
+ * The parts of a {@link DecodedJWT} needed to check its signature, pulled out once so the same token
+ * can be checked against any number of keys without being parsed or Base64 decoded again.  The
+ * {@link DecodedJWT} it was made from still supplies the claims.
+ */
+public class SignedJWT {
+
+  private final DecodedJWT djwt;
+  private final Algorithm alg;
+  private final byte[] signingInput;
+  private final byte[] signature;
+
+  private SignedJWT(DecodedJWT djwt, Algorithm alg, byte[] signingInput, byte[] signature) {
+    this.djwt = djwt;
+    this.alg = alg;
+    this.signingInput = signingInput;
+    this.signature = signature;
+  }
+
+  public static SignedJWT from(DecodedJWT djwt) throws JWTValidateException {
+    Algorithm alg = Algorithm.find(djwt.getAlgorithm());
+    if(alg == null) {
+      throw new JWTValidateException("Unsupported JWT algorithm:"+djwt.getAlgorithm());
+    }
+    String token = djwt.getToken();
+    byte[] signingInput = token.substring(0, token.lastIndexOf('.')).getBytes(StandardCharsets.US_ASCII);
+    byte[] signature;
+    try {
+      signature = Base64.getUrlDecoder().decode(djwt.getSignature());
+    } catch(IllegalArgumentException e) {
+      throw new JWTValidateException("Bad JWT signature encoding", e);
+    }
+    if(alg.partLength > 0) {
+      signature = joseToDER(signature, alg.partLength);
+    }
+    return new SignedJWT(djwt, alg, signingInput, signature);
+  }
+
+  public DecodedJWT getDecodedJWT() {
+    return djwt;
+  }
+
+  public void verify(PublicKey pk) throws JWTValidateException {
+    verify(pk, Clock.lastKnownTimeMillis());
+  }
+
+  /**
+   * Checks the signature against the given key and that the token is inside its exp/nbf window.
+   *
+   * @param pk the key to check the signature with.
+   * @param now the current time in millis.
+   * @throws JWTValidateException if the signature does not match or the token is not currently valid.
+   */
+  public void verify(PublicKey pk, long now) throws JWTValidateException {
+    if(!alg.keyType.equals(pk.getAlgorithm())) {
+      throw new JWTValidateException("Key type "+pk.getAlgorithm()+" can not verify "+alg);
+    }
+    try {
+      Signature sig = alg.signature.get();
+      sig.initVerify(pk);
+      sig.update(signingInput);
+      if(!sig.verify(signature)) {
+        throw new JWTValidateException("JWT signature does not match");
+      }
+    } catch(GeneralSecurityException e) {
+      throw new JWTValidateException("Could not check JWT signature", e);
+    }
+    Date exp = djwt.getExpiresAt();
+    if(exp != null && now > exp.getTime()) {
+      throw new JWTValidateException("JWT expired at:"+exp);
+    }
+    Date nbf = djwt.getNotBefore();
+    if(nbf != null && now < nbf.getTime()) {
+      throw new JWTValidateException("JWT not valid before:"+nbf);
+    }
+  }
+
+  /**
+   * JWS puts ECDSA signatures on the wire as r and s back to back, the JCA wants them DER encoded.
+   */
+  private static byte[] joseToDER(byte[] jose, int partLength) throws JWTValidateException {
+    if(jose.length != partLength*2) {
+      throw new JWTValidateException("Bad ECDSA signature length:"+jose.length);
+    }
+    byte[] r = derInteger(jose, 0, partLength);
+    byte[] s = derInteger(jose, partLength, partLength);
+    int len = r.length + s.length;
+    int header = len < 128 ? 2 : 3;
+    byte[] der = new byte[header + len];
+    der[0] = 0x30;
+    if(len < 128) {
+      der[1] = (byte)len;
+    } else {
+      der[1] = (byte)0x81;
+      der[2] = (byte)len;
+    }
+    System.arraycopy(r, 0, der, header, r.length);
+    System.arraycopy(s, 0, der, header+r.length, s.length);
+    return der;
+  }
+
+  private static byte[] derInteger(byte[] ba, int offset, int length) {
+    int start = offset;
+    int end = offset+length;
+    while(start < end-1 && ba[start] == 0) {
+      start++;
+    }
+    int pad = (ba[start] & 0x80) != 0 ? 1 : 0;
+    int len = end-start+pad;
+    byte[] out = new byte[len+2];
+    out[0] = 0x02;
+    out[1] = (byte)len;
+    System.arraycopy(ba, start, out, 2+pad, end-start);
+    return out;
+  }
+
+  private enum Algorithm {
+    RS256("SHA256withRSA", "RSA", 0),
+    RS384("SHA384withRSA", "RSA", 0),
+    RS512("SHA512withRSA", "RSA", 0),
+    ES256("SHA256withECDSA", "EC", 32),
+    ES384("SHA384withECDSA", "EC", 48),
+    ES512("SHA512withECDSA", "EC", 66);
+
+    private static final Algorithm[] ALL = values();
+    private final String keyType;
+    private final int partLength;
+    //Signature objects are not thread safe but are fine to reuse, so each thread keeps its own
+    private final ThreadLocal<Signature> signature;
+
+    private Algorithm(final String jcaName, String keyType, int partLength) {
+      this.keyType = keyType;
+      this.partLength = partLength;
+      this.signature = ThreadLocal.withInitial(()->{
+        try {
+          return Signature.getInstance(jcaName);
+        } catch(GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+
+    private static Algorithm find(String name) {
+      for(Algorithm alg: ALL) {
+        if(alg.name().equals(name)) {
+          return alg;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import org.threadly.litesockets.protocols.http.response.HTTPResponse;
+import org.threadly.litesockets.server.http.HTTPServer.ResponseWriter;
+
+import com.ecovate.rtc.turn.CredentialStreams.Sink;
+
+/**
+ * A response that keeps writing after its headers and first body are sent.  Instead of finishing the
+ * response the {@link ResponseWriter} is handed on as a {@link Sink}, whoever it is handed to is
+ * responsible for eventually closing it.
+ */
+public class StreamingResponse extends SimpleResponse {
+
+  private final Consumer<Sink> onStart;
+
+  public StreamingResponse(HTTPResponse hr, ByteBuffer body, Consumer<Sink> onStart) {
+    super(hr, body);
+    this.onStart = onStart;
+  }
+
+  /**
+   * Called once the headers and first body have been written.
+   */
+  public void start(Sink sink) {
+    onStart.accept(sink);
+  }
+}
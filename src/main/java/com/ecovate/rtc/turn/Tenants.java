@@ -0,0 +1,204 @@
+package com.ecovate.rtc.turn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tenant configs in the top level config.  A request is served with a tenants config when its path
+ * is under /turn/{tenant} or when its Host header is one of the tenants hosts, either is a single map
+ * lookup.  Every tenant has its own {@link JWTUtils} partition so keys, JWK endpoints and cached JWTs are
+ * never shared between tenants, the partition is kept across reloads as long as the tenant is.
+ *
+ * The top level config is published with the tenants, a request that takes one {@link Snapshot} sees a
+ * top level config and tenants that were loaded together.
+ */
+public class Tenants {
+  private static final Logger log = LoggerFactory.getLogger(Tenants.class);
+  public static final String DEFAULT_TENANT = "default";
+  private static final String TURN_PREFIX = "/turn/";
+  //Paths under /turn that are not tenants
+  private static final HashSet<String> RESERVED = new HashSet<>(Arrays.asList("batch", "stream", DEFAULT_TENANT));
+
+  private final JWTUtils ju;
+  private volatile Snapshot current = new Snapshot(null, Collections.emptyMap(), Collections.emptyMap());
+
+  /**
+   * @param ju the servers JWTUtils, tenants are made partitions of it.
+   */
+  public Tenants(JWTUtils ju) {
+    this.ju = ju;
+  }
+
+  /**
+   * Checks every tenant in a config without applying anything.
+   *
+   * @throws IllegalArgumentException if a tenant name, host or key is not usable.
+   */
+  public static void validate(TurnRestConfig trc) {
+    HashSet<String> hosts = new HashSet<>();
+    for(Map.Entry<String, TurnRestConfig> t: trc.getTenants().entrySet()) {
+      final String name = t.getKey();
+      if(name.isEmpty() || name.indexOf('/') >= 0 || RESERVED.contains(name)) {
+        throw new IllegalArgumentException("Bad tenant name:"+name);
+      }
+      if(t.getValue() == null) {
+        throw new IllegalArgumentException("No config for tenant:"+name);
+      }
+      if(!t.getValue().getTenants().isEmpty()) {
+        throw new IllegalArgumentException("Tenants can not have tenants:"+name);
+      }
+      t.getValue().getCompiled();
+      JWTUtils.decodeStaticKeys(t.getValue().getJwtPublicKeys());
+      for(String host: t.getValue().getHosts()) {
+        if(!hosts.add(host.toLowerCase(Locale.ROOT))) {
+          throw new IllegalArgumentException("Host:"+host+" used by more than one tenant");
+        }
+      }
+    }
+  }
+
+  /**
+   * Swaps in a newly loaded config and its tenants, it should already have passed {@link #validate}.
+   */
+  public void update(TurnRestConfig trc) {
+    final Snapshot old = current;
+    HashMap<String, TurnRestConfig> byName = new HashMap<>();
+    HashMap<String, TurnRestConfig> byHost = new HashMap<>();
+    for(Map.Entry<String, TurnRestConfig> t: trc.getTenants().entrySet()) {
+      final String name = t.getKey();
+      final TurnRestConfig tc = t.getValue();
+      TurnRestConfig prev = old.byName.get(name);
+      JWTUtils partition = prev == null ? ju.newPartition() : prev.getJWTUtils();
+      partition.updateKeys(new HashSet<>(tc.getJwkURLs()), new HashSet<>(tc.getJwtPublicKeys()));
+      partition.updateJWTCacheLimits(tc.getJwtCacheSize(), tc.getJwtCacheMaxTime());
+      partition.updateFailedJWTCacheLimits(tc.getJwtFailedCacheSize(), tc.getJwtFailedCacheTime());
+      tc.setTenant(name, partition);
+      byName.put(name, tc);
+      for(String host: tc.getHosts()) {
+        byHost.put(host.toLowerCase(Locale.ROOT), tc);
+      }
+      if(prev == null) {
+        log.info("Added tenant:{}", name);
+      }
+    }
+    current = new Snapshot(trc, byName, byHost);
+    for(Map.Entry<String, TurnRestConfig> t: old.byName.entrySet()) {
+      if(!byName.containsKey(t.getKey())) {
+        ju.removePartition(t.getValue().getJWTUtils());
+        log.info("Removed tenant:{}", t.getKey());
+      }
+    }
+  }
+
+  /**
+   * @return the config and tenants loaded together last.
+   */
+  public Snapshot current() {
+    return current;
+  }
+
+  /**
+   * @return the top level config, null before one is loaded.
+   */
+  public TurnRestConfig getRoot() {
+    return current.root;
+  }
+
+  public int size() {
+    return current.size();
+  }
+
+  /**
+   * @return the tenants config, null if there is no tenant by that name.
+   */
+  public TurnRestConfig get(String name) {
+    return current.get(name);
+  }
+
+  public TurnRestConfig forPath(String path) {
+    return current.forPath(path);
+  }
+
+  public TurnRestConfig forHost(String host) {
+    return current.forHost(host);
+  }
+
+  /**
+   * @return the path with the tenant taken out, /turn/{tenant}/stream becomes /turn/stream.
+   */
+  public static String stripTenant(String path, String tenant) {
+    return TURN_PREFIX.substring(0, TURN_PREFIX.length()-1) + path.substring(TURN_PREFIX.length() + tenant.length());
+  }
+
+  /**
+   * A top level config and the tenants that were loaded with it.
+   */
+  public static class Snapshot {
+    private final TurnRestConfig root;
+    private final Map<String, TurnRestConfig> byName;
+    private final Map<String, TurnRestConfig> byHost;
+
+    private Snapshot(TurnRestConfig root, Map<String, TurnRestConfig> byName, Map<String, TurnRestConfig> byHost) {
+      this.root = root;
+      this.byName = byName;
+      this.byHost = byHost;
+    }
+
+    /**
+     * @return the top level config, null before one is loaded.
+     */
+    public TurnRestConfig getRoot() {
+      return root;
+    }
+
+    public int size() {
+      return byName.size();
+    }
+
+    /**
+     * @return the tenants config, null if there is no tenant by that name.
+     */
+    public TurnRestConfig get(String name) {
+      return byName.get(name);
+    }
+
+    /**
+     * @param path the request path.
+     * @return the config of the tenant named in a /turn/{tenant} path, null if the path names none.
+     */
+    public TurnRestConfig forPath(String path) {
+      if(byName.isEmpty() || !path.startsWith(TURN_PREFIX)) {
+        return null;
+      }
+      int end = path.indexOf('/', TURN_PREFIX.length());
+      return byName.get(path.substring(TURN_PREFIX.length(), end < 0 ? path.length() : end));
+    }
+
+    /**
+     * @param host the Host header, it may have a port on it.
+     * @return the config of the tenant with that host, null if none has it.
+     */
+    public TurnRestConfig forHost(String host) {
+      if(byHost.isEmpty() || host == null) {
+        return null;
+      }
+      int end;
+      if(host.startsWith("[")) {
+        end = host.indexOf(']') + 1;
+      } else {
+        end = host.indexOf(':');
+      }
+      if(end > 0) {
+        host = host.substring(0, end);
+      }
+      return byHost.get(host.toLowerCase(Locale.ROOT));
+    }
+  }
+}
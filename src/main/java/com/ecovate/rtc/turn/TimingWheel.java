@@ -0,0 +1,220 @@
+package com.ecovate.rtc.turn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel.  Each level has {@link #WHEEL_SIZE} slots, the first level's slots are one
+ * tick wide and every level above is {@link #WHEEL_SIZE} times wider than the one below it.  Adding and
+ * removing are constant time and advancing only touches the slots that actually came due, so nothing
+ * ever has to scan every entry.  Deadlines past the top level are parked in its furthest slot and
+ * placed again when that slot cascades.
+ *
+ * This class is not thread safe, callers are expected to lock around it.
+ *
+ * @param <T> the type of item being timed.
+ */
+public class TimingWheel<T> {
+  public static final int WHEEL_BITS = 6;
+  public static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+  private final long tickMillis;
+  private final int levels;
+  private final Timeout<T>[][] wheels;
+  private long currentTick;
+  private int size = 0;
+
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tickMillis, int levels, long startTime) {
+    if(tickMillis <= 0 || levels <= 0 || levels * WHEEL_BITS >= 63) {
+      throw new IllegalArgumentException("Invalid wheel, tickMillis:"+tickMillis+" levels:"+levels);
+    }
+    this.tickMillis = tickMillis;
+    this.levels = levels;
+    this.currentTick = startTime / tickMillis;
+    this.wheels = new Timeout[levels][WHEEL_SIZE];
+    for(int l=0; l<levels; l++) {
+      for(int s=0; s<WHEEL_SIZE; s++) {
+        wheels[l][s] = new Timeout<T>(null, 0);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Adds an item to the wheel.
+   *
+   * @param item the item to time.
+   * @param deadline the time in millis this item should expire at.
+   * @return the {@link Timeout} that can be used to remove this item, or null if the deadline has already passed.
+   */
+  public Timeout<T> add(T item, long deadline) {
+    if(deadline / tickMillis <= currentTick) {
+      return null;
+    }
+    Timeout<T> to = new Timeout<>(item, deadline);
+    place(to);
+    size++;
+    return to;
+  }
+
+  public boolean remove(Timeout<T> to) {
+    if(to.unlink()) {
+      size--;
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    for(int l=0; l<levels; l++) {
+      for(int s=0; s<WHEEL_SIZE; s++) {
+        Timeout<T> head = wheels[l][s];
+        while(head.next != head) {
+          head.next.unlink();
+        }
+      }
+    }
+    size = 0;
+  }
+
+  /**
+   * Moves the wheel forward to the given time.
+   *
+   * @param now the current time in millis.
+   * @return all items whose deadline is at or before now.
+   */
+  public List<T> advance(long now) {
+    final long targetTick = now / tickMillis;
+    List<T> expired = new ArrayList<>();
+    while(currentTick < targetTick) {
+      currentTick++;
+      cascade(1);
+      Timeout<T> head = wheels[0][(int)(currentTick & WHEEL_MASK)];
+      while(head.next != head) {
+        Timeout<T> to = head.next;
+        to.unlink();
+        size--;
+        expired.add(to.item);
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Finds the item that is due the soonest, exact to the tick.  Every item in a first level slot is due
+   * on the same tick so only its first item is looked at.  The first non empty slot of each level above
+   * is walked, but only when it starts before the best deadline found so far.
+   *
+   * @return the {@link Timeout} closest to expiring or null if the wheel is empty.
+   */
+  public Timeout<T> peekEarliest() {
+    if(size == 0) {
+      return null;
+    }
+    Timeout<T> earliest = null;
+    for(int l=0; l<levels; l++) {
+      //The current slot has already been drained, anything in it now is a full rotation away
+      long slot = currentTick >>> (WHEEL_BITS*l);
+      for(int i=1; i<=WHEEL_SIZE; i++) {
+        Timeout<T> head = wheels[l][(int)((slot + i) & WHEEL_MASK)];
+        if(head.next == head) {
+          continue;
+        }
+        if(l == 0) {
+          earliest = head.next;
+        } else if(earliest == null || ((slot + i) << (WHEEL_BITS*l)) * tickMillis < earliest.deadline) {
+          for(Timeout<T> to = head.next; to != head; to = to.next) {
+            if(earliest == null || to.deadline < earliest.deadline) {
+              earliest = to;
+            }
+          }
+        }
+        break;
+      }
+    }
+    return earliest;
+  }
+
+  private void cascade(int level) {
+    if(level >= levels) {
+      return;
+    }
+    if((currentTick & ((1L << (WHEEL_BITS*level)) - 1)) != 0) {
+      return;
+    }
+    cascade(level+1);
+    Timeout<T> head = wheels[level][(int)((currentTick >>> (WHEEL_BITS*level)) & WHEEL_MASK)];
+    Timeout<T> to = head.next;
+    head.next = head;
+    head.prev = head;
+    while(to != head) {
+      Timeout<T> next = to.next;
+      to.prev = null;
+      to.next = null;
+      place(to);
+      to = next;
+    }
+  }
+
+  private void place(Timeout<T> to) {
+    //Anything already due goes in the current slot which is always drained right after a cascade
+    long tick = Math.max(to.deadline / tickMillis, currentTick);
+    long delta = tick - currentTick;
+    int level = 0;
+    while(level < levels-1 && delta >= (1L << (WHEEL_BITS*(level+1)))) {
+      level++;
+    }
+    if(delta >= (1L << (WHEEL_BITS*levels))) {
+      tick = currentTick + (1L << (WHEEL_BITS*levels)) - 1;
+    }
+    to.linkBefore(wheels[level][(int)((tick >>> (WHEEL_BITS*level)) & WHEEL_MASK)]);
+  }
+
+  public static class Timeout<T> {
+    private final T item;
+    private final long deadline;
+    private Timeout<T> prev;
+    private Timeout<T> next;
+
+    private Timeout(T item, long deadline) {
+      this.item = item;
+      this.deadline = deadline;
+      //A Timeout with no item is a slots list head
+      if(item == null) {
+        this.prev = this;
+        this.next = this;
+      }
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    private void linkBefore(Timeout<T> head) {
+      this.prev = head.prev;
+      this.next = head;
+      head.prev.next = this;
+      head.prev = this;
+    }
+
+    private boolean unlink() {
+      if(next == null) {
+        return false;
+      }
+      prev.next = next;
+      next.prev = prev;
+      prev = null;
+      next = null;
+      return true;
+    }
+  }
+}
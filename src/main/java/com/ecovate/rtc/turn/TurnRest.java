@@ -1,12 +1,15 @@
 package com.ecovate.rtc.turn;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,17 +17,23 @@ import org.threadly.concurrent.PriorityScheduler;
 import org.threadly.concurrent.future.FutureCallback;
 import org.threadly.concurrent.future.ImmediateResultListenableFuture;
 import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
 import org.threadly.litesockets.SocketExecuter;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.response.HTTPResponse;
+import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
 import org.threadly.litesockets.protocols.http.shared.HTTPRequestMethod;
 import org.threadly.litesockets.server.http.HTTPServer;
 import org.threadly.litesockets.server.http.HTTPServer.BodyFuture;
+import org.threadly.litesockets.server.http.HTTPServer.BodyListener;
 import org.threadly.litesockets.server.http.HTTPServer.ResponseWriter;
+import org.threadly.litesockets.utils.IOUtils;
 import org.threadly.util.AbstractService;
 import org.threadly.util.ExceptionUtils;
 import org.threadly.util.StringUtils;
 
 import com.codahale.metrics.health.HealthCheck;
+import com.ecovate.rtc.turn.RequestStages.Stage;
 import com.ecovate.rtc.turn.processors.ClientHTTPHandler;
 import com.ecovate.rtc.turn.processors.DefaultHTTPHandler;
 import com.ecovate.rtc.turn.processors.MonitorHTTPHandler;
@@ -33,6 +42,7 @@ import com.ecovate.rtc.turn.processors.TurnRestHTTPHandler;
 import com.ecovate.rtc.turn.stats.NetworkMetrics;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.Histogram.Timer;
 import io.prometheus.client.hotspot.BufferPoolsExports;
@@ -51,6 +61,8 @@ import net.sourceforge.argparse4j.inf.Namespace;
 
 public class TurnRest extends AbstractService {
   private static final int CONFIG_FILE_SCAN_TIMER_MS = 1000*30; //30 seconds 
+  private static final int RATE_LIMIT_EXPIRE_MS = 1000*10; //10 seconds
+  private static final int MAX_REQUEST_BODY = 1024*1024; //1MB
   public static final String TURN_REST = "turn_rest_";
 
   private static final Logger log = LoggerFactory.getLogger(TurnRest.class);
@@ -69,11 +81,32 @@ public class TurnRest extends AbstractService {
       .help("http response counter")
       .labelNames("type")
       .register(Utils.getMetricsRegistry());
+  private final Histogram configReloadLatency = Histogram.build()
+      .name(TURN_REST+"config_reload_seconds")
+      .help("Time to parse and apply a changed config file in seconds.")
+      .register(Utils.getMetricsRegistry());
+  private final Counter configReloadCounter = Counter.build()
+      .name(TURN_REST+"config_reloads_total")
+      .help("Config file reloads by result.")
+      .labelNames("result")
+      .register(Utils.getMetricsRegistry());
+  private final Counter tenantRequestCounter = Counter.build()
+      .name(TURN_REST+"tenant_requests_total")
+      .help("Requests by the tenant they were served for.")
+      .labelNames("tenant")
+      .register(Utils.getMetricsRegistry());
+  private final Gauge configReloadTime = Gauge.build()
+      .name(TURN_REST+"config_last_reload_timestamp_seconds")
+      .help("When the running config was loaded.")
+      .register(Utils.getMetricsRegistry());
   
 
-  private final List<HTTPHandler> handlers;
+  private final HTTPRouter router;
+  private final HTTPRouter adminRouter;
   private final Runnable cfr = ()->loadConfigFile();
   private final Runnable networkMetricsRunner = ()->NetworkMetrics.updateNetworkMetrics();
+  private final Runnable rateLimitExpirer = ()->expireRateLimits();
+  private final Runnable metricsRenderer = ()->renderMetrics();
   private final MonitorHTTPHandler monitorHandler;
   private final PingHTTPHandler pingHandler = new PingHTTPHandler();
   private final DefaultHTTPHandler defaultHandler = new DefaultHTTPHandler(); 
@@ -87,11 +120,17 @@ public class TurnRest extends AbstractService {
   private final SocketExecuter se;
   private final File cf;
   private final JWTUtils ju;
+  private final AccessLog accessLog;
+  private final AdmissionController admission;
+  private final RateLimits rateLimits;
+  private final CredentialStreams credentialStreams;
+  private final Tenants tenants;
+  private final IceServerProber iceServerProber;
+  private final ConfigWatcher configWatcher;
   private final long fileScanTime; 
+  private final Object configLock = new Object();
 
-  private final SimpleResponse optionsResponse;
-  private volatile long cf_modTime = -1;
-  private volatile TurnRestConfig config = null;
+  private volatile String configJson = null;
 
   public TurnRest(InetSocketAddress publicAddress, InetSocketAddress adminAddress, File cf) throws IOException {
     this(Utils.getScheduler(), Utils.getSocketExecuter(), publicAddress, adminAddress, cf, CONFIG_FILE_SCAN_TIMER_MS);
@@ -108,11 +147,16 @@ public class TurnRest extends AbstractService {
     this.cf = cf;
     this.ju = new JWTUtils(ps);
     this.ju.startIfNotStarted();
+    this.accessLog = new AccessLog(ps);
+    this.admission = new AdmissionController(se);
+    this.rateLimits = new RateLimits();
+    this.tenants = new Tenants(ju);
+    this.iceServerProber = new IceServerProber();
+    this.credentialStreams = new CredentialStreams(ps, (tenant)->tenant == null ? tenants.getRoot() : tenants.get(tenant));
     this.publicAddress = publicAddress;
     this.adminAddress = adminAddress;
     this.fileScanTime = fileScanTime;
-
-    optionsResponse = new SimpleResponse(HTTPUtils.getOKResponse());
+    this.configWatcher = new ConfigWatcher(cf, ps, cfr);
 
     this.httpServer = new HTTPServer(this.se, this.publicAddress.getAddress().getHostAddress(), this.publicAddress.getPort());
     this.httpServer.setHandler((x,y,z)->handler(x,y,z));
@@ -129,9 +173,10 @@ public class TurnRest extends AbstractService {
       this.adminHttpServer = new HTTPServer(this.se, this.adminAddress.getAddress().getHostAddress(), this.adminAddress.getPort());
       this.adminHttpServer.setHandler((x,y,z)->adminHandler(x,y,z));  
     }
-    hl.add(new TurnRestHTTPHandler(ju));  
+    hl.add(new TurnRestHTTPHandler(ju, rateLimits, ps, credentialStreams));  
     hl.add(defaultHandler);
-    handlers = Collections.unmodifiableList(hl);
+    router = new HTTPRouter(hl);
+    adminRouter = new HTTPRouter(Arrays.asList(pingHandler, monitorHandler, defaultHandler));
   }
 
 
@@ -140,7 +185,19 @@ public class TurnRest extends AbstractService {
     NetworkMetrics.registerNetworkMetrics(this.se, Utils.getMetricsRegistry());
     this.ps.scheduleAtFixedRate(networkMetricsRunner, 500, 500);
 
+    //Still polled in case the file system does not deliver watch events
     ps.scheduleAtFixedRate(cfr, fileScanTime, fileScanTime);
+    try {
+      configWatcher.startIfNotStarted();
+    } catch(RuntimeException e) {
+      log.warn("Could not watch config file, only polling it", e);
+    }
+    ps.scheduleAtFixedRate(rateLimitExpirer, RATE_LIMIT_EXPIRE_MS, RATE_LIMIT_EXPIRE_MS);
+    //Scrapes are served from the last render, never rendered on an I/O thread
+    ps.scheduleWithFixedDelay(metricsRenderer, MonitorHTTPHandler.CACHE_TIME, MonitorHTTPHandler.CACHE_TIME);
+    accessLog.startIfNotStarted();
+    credentialStreams.startIfNotStarted();
+    iceServerProber.startIfNotStarted();
     httpServer.start();
     adminHttpServer.startIfNotStarted();
     log.info("Server Started.");
@@ -150,128 +207,314 @@ public class TurnRest extends AbstractService {
   protected void shutdownService() {
     httpServer.stopIfRunning();
     adminHttpServer.stopIfRunning();
+    accessLog.stopIfRunning();
+    credentialStreams.stopIfRunning();
+    iceServerProber.stopIfRunning();
+    configWatcher.stopIfRunning();
     ps.remove(cfr);
     ps.remove(networkMetricsRunner);
+    ps.remove(rateLimitExpirer);
+    ps.remove(metricsRenderer);
   }
 
   public JWTUtils getJWTUtils() {
     return ju;
   }
 
+  public AdmissionController getAdmissionController() {
+    return admission;
+  }
+
   private void configureHealthChecks() {
     Utils.getHealthCheckRegistry().register(ClientConnectionsCheck.class.getSimpleName(), new ClientConnectionsCheck());
   }
 
+  /**
+   * Loads the config file if its contents changed.  The new config is parsed, compiled and its keys
+   * decoded before anything is applied, so a bad file leaves the running config and the shared HTTP
+   * responses alone.  What is applied after that can not fail, and the keys are swapped in as one set.
+   * The config and its tenants are published last, together, so a request never sees one without the other.
+   */
   private void loadConfigFile() {
-    if(cf_modTime <0 || cf.lastModified() != cf_modTime) {
+    //The poll and the watcher can both get here
+    synchronized(configLock) {
+      final String json;
+      try {
+        json = TurnRestConfig.readConfigFile(cf);
+      } catch (IOException e) {
+        log.error("Error reading configfile", e);
+        configReloadCounter.labels("error").inc();
+        return;
+      }
+      if(json.equals(configJson)) {
+        return;
+      }
+      //Set even if it fails so a bad file is not retried until it changes again
+      configJson = json;
       log.info("loading new Config file!");
+      final Timer t = configReloadLatency.startTimer();
       try {
-        TurnRestConfig lc  = TurnRestConfig.openConfigFile(cf);
+        TurnRestConfig lc  = TurnRestConfig.parseConfig(json);
+        lc.getCompiled();
+        Tenants.validate(lc);
+        final Map<String, PublicKey> staticKeys = JWTUtils.decodeStaticKeys(lc.getJwtPublicKeys());
+        ArrayList<TurnRestConfig> all = new ArrayList<>(lc.getTenants().values());
+        all.add(lc);
+        //Nothing is applied before here
         HTTPUtils.processHTTPDefaults(lc);
-        ju.updateJWKProvider(new HashSet<String>(lc.getJwkURLs()));
-        ju.updateStaticB64Keys(new HashSet<>(lc.getJwtPublicKeys()));
-        config = lc;
-        log.info("loadded new config:\n{}", config.toString());
-      } catch (IOException e) {
+        ju.updateKeys(new HashSet<String>(lc.getJwkURLs()), staticKeys);
+        ju.updateJWTCacheLimits(lc.getJwtCacheSize(), lc.getJwtCacheMaxTime());
+        ju.updateFailedJWTCacheLimits(lc.getJwtFailedCacheSize(), lc.getJwtFailedCacheTime());
+        accessLog.setSampleRate(lc.getAccessLogSampleRate());
+        admission.setLimits(lc.getAdmissionMinLimit(), lc.getAdmissionMaxLimit(), lc.getMaxClients());
+        rateLimits.update(lc);
+        //Probe results are applied to the new configs before any request sees them
+        iceServerProber.setProbing(lc.getIceProbeInterval(), lc.getIceProbeLossThreshold());
+        iceServerProber.setConfigs(all);
+        tenants.update(lc);
+        configReloadCounter.labels("success").inc();
+        configReloadTime.setToCurrentTime();
+        log.info("loadded new config:\n{}", lc.toString());
+      } catch (IOException | RuntimeException e) {
         log.error("Error parsing configfile", e);
+        configReloadCounter.labels("error").inc();
       } finally {
-        cf_modTime = cf.lastModified();
+        t.observeDuration();
       }
     }
   }
 
+  private void renderMetrics() {
+    monitorHandler.renderMetrics();
+  }
+
+  private void expireRateLimits() {
+    int removed = rateLimits.expire();
+    if(removed > 0) {
+      log.debug("Expired {} idle rate limit buckets", removed);
+    }
+  }
+
   private void adminHandler(final HTTPRequest httpRequest, final ResponseWriter rw, final BodyFuture bodyListener) {
+    final long start = System.nanoTime();
     final Timer t = httpRequestLatency.startTimer();
     final ClientID clientID = new ClientID();
-    log.info("{}: Got Admin HTTPRequest:\n{}", clientID, httpRequest.toString());
     final String hrm = httpRequest.getHTTPRequestHeader().getRequestMethod();
     final String path = httpRequest.getHTTPRequestHeader().getRequestPath();
-    final TurnRestConfig localConfig = config;
+    final TurnRestConfig localConfig = tenants.getRoot();
    ListenableFuture<SimpleResponse> lsr = null;
     requestCounter.labels(hrm).inc();
     if(hrm.equalsIgnoreCase(HTTPRequestMethod.OPTIONS.toString())) {
-      lsr = new ImmediateResultListenableFuture<>(optionsResponse);
+      //Made from the current template so it has the headers from the last config
+      lsr = new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getOKResponse()));
     } else {
-      if(this.pingHandler.canHandle(path) ) {
-        lsr = pingHandler.handleRequest(clientID, httpRequest, localConfig);
-        log.info("{}: ping processed", clientID);
-      } else if(this.monitorHandler.canHandle(path)) {
-        lsr = monitorHandler.handleRequest(clientID, httpRequest, localConfig);
-      } else {
-        lsr = this.defaultHandler.handleRequest(clientID, httpRequest, localConfig);
+      HTTPRoute route = adminRouter.route(hrm, path);
+      if(route != null) {
+        lsr = route.getHandler().handleRequest(clientID, httpRequest, localConfig);
       }
     }
     
-    responseHandler(clientID, t, lsr, httpRequest, rw, bodyListener);
+    responseHandler(clientID, start, t, lsr, httpRequest, rw, bodyListener, false);
   }
 
   private void handler(final HTTPRequest httpRequest, final ResponseWriter rw, final BodyFuture bodyListener) {
+    final long start = System.nanoTime();
     final Timer t = httpRequestLatency.startTimer();
     final ClientID clientID = new ClientID();
-    log.info("{}: Got HTTPRequest:\n{}", clientID, httpRequest.toString());
     final String hrm = httpRequest.getHTTPRequestHeader().getRequestMethod();
     final String path = httpRequest.getHTTPRequestHeader().getRequestPath();
-    final TurnRestConfig localConfig = config;
+    final Tenants.Snapshot snapshot = tenants.current();
+    final TurnRestConfig rootConfig = snapshot.getRoot();
     ListenableFuture<SimpleResponse> lsr = null;
     requestCounter.labels(hrm).inc();
-    if(localConfig == null) {
+    if(!rateLimits.checkAddress(httpRequest)) {
+      responseHandler(clientID, start, t, new ImmediateResultListenableFuture<>(
+          new SimpleResponse(HTTPUtils.getTooManyRequestsResponse())), httpRequest, rw, bodyListener, false);
+      return;
+    }
+    HTTPRoute route = null;
+    TurnRestConfig localConfig = rootConfig;
+    if(rootConfig == null) {
       log.error("Config not loaded yet!");
       lsr = new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getBadRequestResponse()));
     } else if(hrm.equalsIgnoreCase(HTTPRequestMethod.OPTIONS.toString())) {
-      lsr = new ImmediateResultListenableFuture<>(optionsResponse);
+      //Made from the current template so it has the headers from the last config
+      lsr = new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getOKResponse()));
     } else {
-      for(HTTPHandler hh: handlers) {
-        if(hh.canHandle(path)) {
-          lsr = hh.handleRequest(clientID, httpRequest, localConfig);
-          break;
+      //A tenant in the path wins over one picked by Host
+      TurnRestConfig tenantConfig = snapshot.forPath(path);
+      String routePath = path;
+      if(tenantConfig != null) {
+        routePath = Tenants.stripTenant(path, tenantConfig.getTenant());
+      } else {
+        tenantConfig = snapshot.forHost(httpRequest.getHTTPHeaders().getHeader(HTTPConstants.HTTP_KEY_HOST));
+      }
+      if(tenantConfig != null) {
+        localConfig = tenantConfig;
+      }
+      if(snapshot.size() > 0) {
+        tenantRequestCounter.labels(tenantConfig == null ? Tenants.DEFAULT_TENANT : tenantConfig.getTenant()).inc();
+      }
+      route = findRoute(hrm, routePath);
+    }
+    //Health checks and monitoring keep answering while the server is loaded, everything else is shed before any work is done
+    final boolean admitted = route != null && route.isAdmissionControlled();
+    final boolean timed = route != null && route.isStageTimed();
+    if(admitted && !admission.tryAcquire()) {
+      responseHandler(clientID, start, t, new ImmediateResultListenableFuture<>(
+          new SimpleResponse(HTTPUtils.getServiceUnavailableResponse())), httpRequest, rw, bodyListener, timed);
+      return;
+    }
+    final TurnRestConfig handlerConfig = localConfig;
+    if(route != null && route.readsBody()) {
+      final HTTPRoute bodyRoute = route;
+      lsr = readBody(httpRequest, bodyListener).flatMap((body)->{
+        if(body == null) {
+          log.info("{}: Request body over {} bytes", clientID, MAX_REQUEST_BODY);
+          //The rest of the body is still coming so the connection can not be reused
+          return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getBadRequestResponse().makeBuilder()
+              .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close").build()));
         }
+        return bodyRoute.getBodyHandler().handleRequest(clientID, httpRequest, body, handlerConfig);
+      });
+    } else if(route != null) {
+      lsr = route.getHandler().handleRequest(clientID, httpRequest, handlerConfig);
+    }
+    if(admitted) {
+      //Time waiting on JWK endpoints is left out, a slow IdP is not this server being overloaded
+      if(lsr != null) {
+        lsr.listener(()->admission.release(System.nanoTime()-start-clientID.getJWKWait()));
+      } else {
+        admission.release(System.nanoTime()-start-clientID.getJWKWait());
+      }
+    }
+    responseHandler(clientID, start, t, lsr, httpRequest, rw, bodyListener, timed);
+  }
+
+  /**
+   * Reads the whole request body.
+   *
+   * @return a future with the body, or with null if the body is over {@link #MAX_REQUEST_BODY}.
+   */
+  private static ListenableFuture<ByteBuffer> readBody(final HTTPRequest httpRequest, final BodyFuture bodyFuture) {
+    final String cl = httpRequest.getHTTPHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH);
+    final String te = httpRequest.getHTTPHeaders().getHeader(HTTPConstants.HTTP_KEY_TRANSFER_ENCODING);
+    int length = 0;
+    if(cl != null) {
+      try {
+        length = Integer.parseInt(cl.trim());
+      } catch(NumberFormatException e) {
+        return new ImmediateResultListenableFuture<>(null);
       }
     }
-    responseHandler(clientID, t, lsr, httpRequest, rw, bodyListener);
+    if(length > MAX_REQUEST_BODY || length < 0) {
+      return new ImmediateResultListenableFuture<>(null);
+    } else if(length == 0 && te == null) {
+      return new ImmediateResultListenableFuture<>(IOUtils.EMPTY_BYTEBUFFER);
+    }
+    final SettableListenableFuture<ByteBuffer> slf = new SettableListenableFuture<>(false);
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? length : 1024);
+    bodyFuture.setBodyListener(new BodyListener() {
+      @Override
+      public void onBody(HTTPRequest hr, ByteBuffer bb, ResponseWriter rw) {
+        if(slf.isDone()) {
+          return;
+        }
+        if(body.size() + bb.remaining() > MAX_REQUEST_BODY) {
+          slf.setResult(null);
+          return;
+        }
+        byte[] ba = new byte[bb.remaining()];
+        bb.get(ba);
+        body.write(ba, 0, ba.length);
+      }
+
+      @Override
+      public void bodyComplete(HTTPRequest hr, ResponseWriter rw) {
+        slf.setResult(ByteBuffer.wrap(body.toByteArray()));
+      }
+    });
+    return slf;
+  }
+
+  HTTPRoute findRoute(final String method, final String path) {
+    return router.route(method, path);
   }
   
-  private void responseHandler(final ClientID clientID, final Timer t, final ListenableFuture<SimpleResponse> lsr, final HTTPRequest httpRequest, final ResponseWriter rw, final BodyFuture bodyListener) {
+  /**
+   * @param timed true if the write is observed as the {@link Stage#WRITE} stage.
+   */
+  private void responseHandler(final ClientID clientID, final long start, final Timer t, final ListenableFuture<SimpleResponse> lsr, final HTTPRequest httpRequest, final ResponseWriter rw, final BodyFuture bodyListener, final boolean timed) {
+    final boolean keepAlive = HTTPUtils.isKeepAlive(httpRequest);
     if(lsr != null) {
       lsr.callback(new FutureCallback<SimpleResponse>() {
         @Override
         public void handleResult(SimpleResponse sr) {
-          log.info("{}:Sending Response:\n{}", clientID, sr.getHr());
-          rw.sendHTTPResponse(sr.getHr());
-          rw.writeBody(sr.getBody());
-          rw.closeOnDone();
-          rw.done();
-          responseCounter.labels(Integer.toString(sr.getHr().getResponseCode().getId())).inc();
-          t.close();
+          final boolean ka = keepAlive && !HTTPUtils.isClose(sr.getHr());
+          if(sr instanceof StreamingResponse) {
+            //The rest of the response is written, and the connection closed, by whatever it is handed to
+            rw.closeOnDone();
+            rw.sendHTTPResponse(HTTPUtils.setConnectionHeaders(sr.getHr(), httpRequest, false));
+            if(sr.getBody() != null) {
+              rw.writeBody(sr.getBody());
+            }
+            ((StreamingResponse)sr).start(CredentialStreams.sinkFor(rw));
+            finishRequest(clientID, start, t, httpRequest, sr.getHr());
+            return;
+          }
+          sendResponse(rw, HTTPUtils.setConnectionHeaders(sr.getHr(), httpRequest, ka), sr.getBody(), ka, timed);
+          finishRequest(clientID, start, t, httpRequest, sr.getHr());
         }
 
         @Override
         public void handleFailure(Throwable exp) {
           log.error("{}: Got Exception: {}", clientID, ExceptionUtils.stackToString(exp));
-          rw.closeOnDone();
-          rw.sendHTTPResponse(HTTPUtils.getNotFoundResponse());
-          rw.done();
-          responseCounter.labels(Integer.toString(HTTPUtils.getNotFoundResponse().getResponseCode().getId())).inc();
-          t.close();
+          sendResponse(rw, HTTPUtils.setConnectionHeaders(HTTPUtils.getNotFoundResponse(), httpRequest, keepAlive), null, keepAlive, timed);
+          finishRequest(clientID, start, t, httpRequest, HTTPUtils.getNotFoundResponse());
         }});
     }
     else {
       log.error("{}: Got unhandled Message", clientID);
+      sendResponse(rw, HTTPUtils.setConnectionHeaders(HTTPUtils.getNotFoundResponse(), httpRequest, keepAlive), null, keepAlive, timed);
+      finishRequest(clientID, start, t, httpRequest, HTTPUtils.getNotFoundResponse());
+    }
+  }
+
+  private void finishRequest(final ClientID clientID, final long start, final Timer t, final HTTPRequest httpRequest, final HTTPResponse hr) {
+    final int code = hr.getResponseCode().getId();
+    responseCounter.labels(Integer.toString(code)).inc();
+    t.close();
+    accessLog.record(clientID, httpRequest.getHTTPRequestHeader().getRequestMethod(), 
+        httpRequest.getHTTPRequestHeader().getRequestPath(), code, System.nanoTime()-start);
+  }
+
+  private void sendResponse(final ResponseWriter rw, final HTTPResponse hr, final ByteBuffer body, final boolean keepAlive, final boolean timed) {
+    final long start = System.nanoTime();
+    //Kept alive connections stay open for the clients next, or already pipelined, request
+    if(!keepAlive) {
       rw.closeOnDone();
-      rw.sendHTTPResponse(HTTPUtils.getNotFoundResponse());
+    }
+    try {
+      rw.sendHTTPResponse(hr);
+      if(body != null) {
+        rw.writeBody(body);
+      }
       rw.done();
-      responseCounter.labels(Integer.toString(HTTPUtils.getNotFoundResponse().getResponseCode().getId())).inc();
-      t.close();
+    } finally {
+      //Handing the response to the socket, not it reaching the client
+      if(timed) {
+        ju.getStages().observe(Stage.WRITE, start);
+      }
     }
   }
 
   private class ClientConnectionsCheck extends HealthCheck {
-    private final int max_clients = 4000;
-
     public ClientConnectionsCheck() {
     }
 
     @Override
     protected Result check() throws Exception {
+      final int max_clients = admission.getMaxClients();
       int clients = se.getClientCount();
       if(clients > max_clients) {
         return Result.unhealthy("To many clients connected!  current:"+clients+" Max:"+max_clients);
@@ -284,6 +527,8 @@ public class TurnRest extends AbstractService {
   public static class ClientID {
 
     public final String clientID;
+    private volatile String authResult;
+    private volatile long jwkWait;
 
     public ClientID() {
       this.clientID = StringUtils.makeRandomString(15).toUpperCase();
@@ -293,6 +538,29 @@ public class TurnRest extends AbstractService {
       this.clientID = clientID;
     }
 
+    /**
+     * @return how this request was authorized, for the access log, or null if it was not.
+     */
+    public String getAuthResult() {
+      return authResult;
+    }
+
+    public void setAuthResult(String authResult) {
+      this.authResult = authResult;
+    }
+
+    /**
+     * @return how long in nanos this request spent waiting on JWK endpoints.
+     */
+    public long getJWKWait() {
+      return jwkWait;
+    }
+
+    public void addJWKWait(long nanos) {
+      //A request only ever waits on one JWT validation so this is not contended
+      this.jwkWait += nanos;
+    }
+
     @Override
     public int hashCode() {
       return clientID.hashCode();
@@ -2,15 +2,18 @@ package com.ecovate.rtc.turn;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 
 public class TurnRestConfig {
 
   public static final long DEFAULT_TTL = 60*60*12; //12 hours
+  public static final int DEFAULT_BATCH_MAX_USERS = 10000;
 
   private final String secretKey;
   private final String allowedOrigin;
@@ -24,9 +27,45 @@ public class TurnRestConfig {
   private final String[] requiredJWTScope;
   private final String userClaim;
   private final Long ttl;
+  private Integer jwtCacheSize;
+  private Long jwtCacheMaxTime;
+  private Integer jwtFailedCacheSize;
+  private Long jwtFailedCacheTime;
+  private Boolean httpKeepAlive;
+  private Double accessLogSampleRate;
+  private Integer admissionMinLimit;
+  private Integer admissionMaxLimit;
+  private Integer maxClients;
+  private Long retryAfter;
+  private Double rateLimitAddressRate;
+  private Double rateLimitAddressBurst;
+  private Double rateLimitUserRate;
+  private Double rateLimitUserBurst;
+  private Double rateLimitTokenRate;
+  private Double rateLimitTokenBurst;
+  private String rateLimitAddressHeader;
+  private Long credentialReuseWindow;
+  private Integer credentialCacheSize;
+  private String[] batchJWTScopes;
+  private Integer batchMaxUsers;
+  private Integer maxStreams;
+  private Long streamHeartbeat;
+  private Map<String, TurnRestConfig> tenants;
+  private String[] hosts;
+  private Long iceProbeInterval;
+  private Double iceProbeLossThreshold;
+  private Boolean relayHashing;
+  private String relayHashClaim;
+  private Integer relayFallbacks;
+  private Map<String, Double> relayWeights;
+  private String regionMapFile;
+  private Map<String, Region> regions;
 
 
   private transient volatile String json;
+  private transient volatile CompiledTurnRestConfig compiled;
+  private transient volatile String tenant;
+  private transient volatile JWTUtils jwtUtils;
 
   public TurnRestConfig(String secretKey, Boolean ignoreJWT, 
       String[] turnURIS, String[] stunURIS, String[] jwkURLs, String[] jwtPublicKeys, String[] requiredJWTScope, 
@@ -120,6 +159,312 @@ public class TurnRestConfig {
     return ttl;
   }
   
+  public int getJwtCacheSize() {
+    if(jwtCacheSize == null) {
+      return JWTCache.DEFAULT_MAX_SIZE;
+    }
+    return jwtCacheSize;
+  }
+
+  /**
+   * @return the longest time in millis a verified JWT is cached for.
+   */
+  public long getJwtCacheMaxTime() {
+    if(jwtCacheMaxTime == null) {
+      return JWTCache.DEFAULT_MAX_LIFETIME;
+    }
+    return jwtCacheMaxTime*1000;
+  }
+
+  public int getJwtFailedCacheSize() {
+    if(jwtFailedCacheSize == null) {
+      return JWTUtils.DEFAULT_FAILED_CACHE_SIZE;
+    }
+    return jwtFailedCacheSize;
+  }
+
+  /**
+   * @return the time in millis a JWT that failed validation is remembered for.
+   */
+  public long getJwtFailedCacheTime() {
+    if(jwtFailedCacheTime == null) {
+      return JWTUtils.DEFAULT_FAILED_CACHE_TIME;
+    }
+    return jwtFailedCacheTime*1000;
+  }
+
+  /**
+   * @return true if connections should be kept open, off unless set since nothing here bounds how long
+   * a kept alive connection lives.
+   */
+  public boolean getHttpKeepAlive() {
+    if(httpKeepAlive == null) {
+      return false;
+    }
+    return httpKeepAlive;
+  }
+
+  /**
+   * @return the fraction of successful requests written to the access log.
+   */
+  public double getAccessLogSampleRate() {
+    if(accessLogSampleRate == null) {
+      return AccessLog.DEFAULT_SAMPLE_RATE;
+    }
+    return accessLogSampleRate;
+  }
+
+  public int getAdmissionMinLimit() {
+    if(admissionMinLimit == null) {
+      return AdmissionController.DEFAULT_MIN_LIMIT;
+    }
+    return admissionMinLimit;
+  }
+
+  public int getAdmissionMaxLimit() {
+    if(admissionMaxLimit == null) {
+      return AdmissionController.DEFAULT_MAX_LIMIT;
+    }
+    return admissionMaxLimit;
+  }
+
+  public int getMaxClients() {
+    if(maxClients == null) {
+      return AdmissionController.DEFAULT_MAX_CLIENTS;
+    }
+    return maxClients;
+  }
+
+  /**
+   * @return the time in millis clients are told to wait before retrying a shed request.
+   */
+  public long getRetryAfter() {
+    if(retryAfter == null) {
+      return HTTPUtils.DEFAULT_RETRY_AFTER;
+    }
+    return retryAfter*1000;
+  }
+
+  /**
+   * @return requests per second allowed per client address, 0 if not limited.
+   */
+  public double getRateLimitAddressRate() {
+    if(rateLimitAddressRate == null) {
+      return 0;
+    }
+    return rateLimitAddressRate;
+  }
+
+  public double getRateLimitAddressBurst() {
+    if(rateLimitAddressBurst == null) {
+      return Math.max(1, getRateLimitAddressRate());
+    }
+    return rateLimitAddressBurst;
+  }
+
+  /**
+   * @return requests per second allowed per JWT subject, 0 if not limited.
+   */
+  public double getRateLimitUserRate() {
+    if(rateLimitUserRate == null) {
+      return 0;
+    }
+    return rateLimitUserRate;
+  }
+
+  public double getRateLimitUserBurst() {
+    if(rateLimitUserBurst == null) {
+      return Math.max(1, getRateLimitUserRate());
+    }
+    return rateLimitUserBurst;
+  }
+
+  /**
+   * @return requests per second allowed per JWT, 0 if not limited.
+   */
+  public double getRateLimitTokenRate() {
+    if(rateLimitTokenRate == null) {
+      return 0;
+    }
+    return rateLimitTokenRate;
+  }
+
+  public double getRateLimitTokenBurst() {
+    if(rateLimitTokenBurst == null) {
+      return Math.max(1, getRateLimitTokenRate());
+    }
+    return rateLimitTokenBurst;
+  }
+
+  public String getRateLimitAddressHeader() {
+    if(rateLimitAddressHeader == null) {
+      return RateLimits.DEFAULT_ADDRESS_HEADER;
+    }
+    return rateLimitAddressHeader;
+  }
+
+  /**
+   * @return the time in millis a user is given the same credentials for, 0 if every request mints new ones.
+   */
+  public long getCredentialReuseWindow() {
+    if(credentialReuseWindow == null) {
+      return 0;
+    }
+    return credentialReuseWindow*1000;
+  }
+
+  public int getCredentialCacheSize() {
+    if(credentialCacheSize == null) {
+      return CredentialCache.DEFAULT_MAX_SIZE;
+    }
+    return credentialCacheSize;
+  }
+
+  /**
+   * @return the scopes a JWT needs, all of them, to mint credentials in a batch.  Empty turns batches off
+   * unless JWTs are ignored.
+   */
+  public List<String> getBatchJWTScopes() {
+    if(this.batchJWTScopes == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(Arrays.asList(this.batchJWTScopes));
+  }
+
+  public int getBatchMaxUsers() {
+    if(batchMaxUsers == null) {
+      return DEFAULT_BATCH_MAX_USERS;
+    }
+    return batchMaxUsers;
+  }
+
+  public int getMaxStreams() {
+    if(maxStreams == null) {
+      return CredentialStreams.DEFAULT_MAX_STREAMS;
+    }
+    return maxStreams;
+  }
+
+  /**
+   * @return millis between keep alive comments on an idle credential stream.
+   */
+  public long getStreamHeartbeat() {
+    if(streamHeartbeat == null) {
+      return CredentialStreams.DEFAULT_HEARTBEAT;
+    }
+    return streamHeartbeat*1000;
+  }
+
+  /**
+   * @return millis between health probes of the TURN and STUN servers, 0 if they are not probed.
+   */
+  public long getIceProbeInterval() {
+    if(iceProbeInterval == null) {
+      return 0;
+    }
+    return iceProbeInterval*1000;
+  }
+
+  /**
+   * @return the share of lost probes a server is left out of responses at.
+   */
+  public double getIceProbeLossThreshold() {
+    if(iceProbeLossThreshold == null) {
+      return IceServerProber.DEFAULT_LOSS_THRESHOLD;
+    }
+    return iceProbeLossThreshold;
+  }
+
+  /**
+   * @return true if each user is given the TURN servers in their own order from {@link RelayRing}.
+   */
+  public boolean getRelayHashing() {
+    if(relayHashing == null) {
+      return false;
+    }
+    return relayHashing;
+  }
+
+  /**
+   * @return the JWT claim relays are assigned by, null to assign them by user.
+   */
+  public String getRelayHashClaim() {
+    return relayHashClaim;
+  }
+
+  /**
+   * @return how many TURN servers are listed after a users primary relay.
+   */
+  public int getRelayFallbacks() {
+    if(relayFallbacks == null) {
+      return Integer.MAX_VALUE - 1;
+    }
+    return relayFallbacks;
+  }
+
+  public Map<String, Double> getRelayWeights() {
+    if(relayWeights == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(relayWeights);
+  }
+
+  /**
+   * @return the file of CIDR ranges clients are mapped to regions with, null for no regions.
+   */
+  public String getRegionMapFile() {
+    return regionMapFile;
+  }
+
+  /**
+   * @return the servers for each region by name.
+   */
+  public Map<String, Region> getRegions() {
+    if(regions == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(regions);
+  }
+
+  /**
+   * @return the tenant configs by name, each a full config of its own.
+   */
+  public Map<String, TurnRestConfig> getTenants() {
+    if(tenants == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(tenants);
+  }
+
+  /**
+   * @return the Host header values that select this tenant.
+   */
+  public List<String> getHosts() {
+    if(this.hosts == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(Arrays.asList(this.hosts));
+  }
+
+  /**
+   * @return the name of the tenant this is the config for, null for the top level config.
+   */
+  public String getTenant() {
+    return tenant;
+  }
+
+  /**
+   * @return the JWTUtils holding this tenants keys, null to use the servers own.
+   */
+  public JWTUtils getJWTUtils() {
+    return jwtUtils;
+  }
+
+  void setTenant(String tenant, JWTUtils jwtUtils) {
+    this.tenant = tenant;
+    this.jwtUtils = jwtUtils;
+  }
+
   public String getForcedUser() {
     return forcedUser;
   }
@@ -129,6 +474,13 @@ public class TurnRestConfig {
   }
 
 
+  public CompiledTurnRestConfig getCompiled() {
+    if(compiled == null) {
+      compiled = new CompiledTurnRestConfig(this);
+    }
+    return compiled;
+  }
+
   @Override
   public String toString() {
     if(json == null) {
@@ -142,14 +494,52 @@ public class TurnRestConfig {
   }
   
   public static TurnRestConfig openConfigFile(final File cf) throws IOException {
-    RandomAccessFile raf = new RandomAccessFile(cf, "r");
-    try {
-      byte[] ba = new byte[(int)raf.length()];
-      raf.read(ba);
-      String s = new String(ba);
-      return Utils.GSON.fromJson(s, TurnRestConfig.class);
-    } finally {
-      raf.close();
+    return parseConfig(readConfigFile(cf));
+  }
+
+  public static String readConfigFile(final File cf) throws IOException {
+    //readAllBytes keeps reading until the end, a single read can come back short
+    return new String(Files.readAllBytes(cf.toPath()), StandardCharsets.UTF_8);
+  }
+
+  public static TurnRestConfig parseConfig(final String json) throws IOException {
+    TurnRestConfig trc = Utils.GSON.fromJson(json, TurnRestConfig.class);
+    if(trc == null) {
+      throw new IOException("Config file is empty");
+    }
+    return trc;
+  }
+
+  /**
+   * The servers handed to clients in one region, servers it leaves out are the top level ones.
+   */
+  public static class Region {
+    private final String[] turnURIS;
+    private final String[] stunURIS;
+
+    public Region(String[] turnURIS, String[] stunURIS) {
+      this.turnURIS = turnURIS;
+      this.stunURIS = stunURIS;
+    }
+
+    /**
+     * @return the TURN servers, null to use the top level ones.
+     */
+    public List<String> getTURNURIs() {
+      if(this.turnURIS == null) {
+        return null;
+      }
+      return Collections.unmodifiableList(Arrays.asList(turnURIS));
+    }
+
+    /**
+     * @return the STUN servers, null to use the top level ones.
+     */
+    public List<String> getSTUNURIs() {
+      if(this.stunURIS == null) {
+        return null;
+      }
+      return Collections.unmodifiableList(Arrays.asList(stunURIS));
     }
   }
 }
@@ -1,24 +1,19 @@
 package com.ecovate.rtc.turn;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 import org.threadly.util.Clock;
 
 public class TurnRestResponse {
-  private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
-
   private final String username;
   private final String password;
   private final long ttl;
   private final IceServers[] iceServers;
   private transient volatile String json;
+  //The template for the servers this was made with when it is not the configs default one
+  private transient TurnRestResponseEncoder template;
 
   TurnRestResponse(String un, String pwd, long ttl, IceServers[] iceServers) {
     this.username = un;
@@ -50,6 +45,15 @@ public class TurnRestResponse {
   public List<IceServers> getIceServers() {
     return Collections.unmodifiableList(Arrays.asList(iceServers));
   }
+
+  IceServers[] getIceServersArray() {
+    return iceServers;
+  }
+
+  TurnRestResponseEncoder getTemplate() {
+    return template;
+  }
+
   @Override
   public String toString() {
     if(json == null) {
@@ -62,54 +66,61 @@ public class TurnRestResponse {
     return toString().hashCode()+5;
   }
 
-  public static TurnRestResponse makeResponse(TurnRestConfig trc) {
-    return makeResponse(trc, null, 0);
+  /**
+   * Mints credentials that are good for the requests ttl from now.
+   */
+  public static TurnRestResponse makeResponse(CompiledTurnRestConfig ctrc, CredentialRequest cr) {
+    final long nttl = cr.getTTL() <= 0 ? ctrc.getTTL() : cr.getTTL();
+    return makeResponse(ctrc, cr, nttl, Clock.lastKnownTimeMillis()/1000 + nttl);
   }
 
-  public static TurnRestResponse makeResponse(TurnRestConfig trc, String username) {
-    return makeResponse(trc, username, 0);
-  }
-
-  public static TurnRestResponse makeResponse(TurnRestConfig trc, int ttl) {
-    return makeResponse(trc, null, ttl);
-  }
-
-  public static TurnRestResponse makeResponse(TurnRestConfig trc, String username, int ttl) {
+  /**
+   * @param nttl the ttl in seconds sent with the credentials.
+   * @param endtime the time in seconds the credential stops being valid at.
+   */
+  static TurnRestResponse makeResponse(CompiledTurnRestConfig ctrc, CredentialRequest cr, long nttl, long endtime) {
+    final String username = cr.getUsername();
+    final String relayKey = cr.getRelayKey();
     try {
-      long nttl = ttl;
-      if(ttl <=0) {
-        nttl = trc.getTTL();
-      }
-      long endtime = Clock.lastKnownTimeMillis()/1000 + nttl;
-      String un = Utils.makeUserName();
+      final TurnRestConfig trc = ctrc.getConfig();
+      String un = null;
       if(username != null && username.length() > 0) {
         un = username;
       }
       if(trc.getForcedUser() != null) {
         un = trc.getForcedUser();
       }
+      if(un == null) {
+        un = Utils.makeUserName();
+      }
       String user = null;
       String passwd = null;
       if(trc.getForcedPassword() == null) {
         user = endtime+":"+un;
-        SecretKeySpec signingKey = new SecretKeySpec(trc.getSecretKey().getBytes(), HMAC_SHA1_ALGORITHM);
-        Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-        mac.init(signingKey);
-
-        passwd = Base64.getEncoder().encodeToString(mac.doFinal(user.getBytes()));
+        passwd = ctrc.makePassword(user);
       } else {
         user  = trc.getForcedUser();
         passwd = trc.getForcedPassword();
       }
-      ArrayList<IceServers> servers = new ArrayList<>();
-      IceServers turnservers = new IceServers(trc.getTURNURIs(), user, passwd);
-      servers.add(turnservers);
-      if(trc.getSTUNURIs().size() > 0) {
-        IceServers stunservers = new IceServers(trc.getSTUNURIs());
-        servers.add(stunservers);
+      //One snapshot so the servers match the current response template
+      final CompiledTurnRestConfig.ServerSet ss = ctrc.getServers(cr.getRegion());
+      String[] turnURIs = ss.turnURIs;
+      //Each region has its own template
+      TurnRestResponseEncoder template = ss.responseEncoder;
+      if(ss.relayRing != null) {
+        final RelayRing.Order order = ss.relayRing.order(relayKey == null ? un : relayKey);
+        turnURIs = order.getURIs();
+        template = order.getEncoder();
+      }
+      IceServers[] servers;
+      IceServers turnservers = new IceServers(turnURIs, user, passwd);
+      if(ss.stunServers != null) {
+        servers = new IceServers[] {turnservers, ss.stunServers};
+      } else {
+        servers = new IceServers[] {turnservers};
       }
-
       TurnRestResponse trr = new TurnRestResponse(user, passwd, nttl, servers);
+      trr.template = template;
       return trr;
     } catch(Exception e) {
       throw new RuntimeException(e);
@@ -146,7 +157,14 @@ public class TurnRestResponse {
       this.credential = null;
     }
 
+    /**
+     * @return a copy of the urls, the array behind them is shared with every response made from the same config.
+     */
     public String[] getUrls() {
+      return urls.clone();
+    }
+
+    String[] getUrlsArray() {
       return urls;
     }
 
@@ -0,0 +1,104 @@
+package com.ecovate.rtc.turn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.ecovate.rtc.turn.TurnRestResponse.IceServers;
+
+/**
+ * Writes the compact JSON for a {@link TurnRestResponse}.  Everything but the username and password
+ * is the same for every response from a given config, so those parts are encoded once up front and the
+ * per-request fields are spliced in between them.
+ */
+public class TurnRestResponseEncoder {
+
+  private final String[] turnURIs;
+  private final String[] stunURIs;
+  private final long ttl;
+  private final byte[] beforeUser;
+  private final byte[] beforePassword;
+  private final byte[] beforeIceUser;
+  private final byte[] beforeIceCredential;
+  private final byte[] end;
+
+  public TurnRestResponseEncoder(String[] turnURIs, String[] stunURIs, long ttl) {
+    this.turnURIs = turnURIs;
+    this.stunURIs = stunURIs;
+    this.ttl = ttl;
+    this.beforeUser = toBytes("{\"username\":");
+    this.beforePassword = toBytes(",\"password\":");
+    this.beforeIceUser = toBytes(",\"ttl\":"+ttl+",\"iceServers\":[{\"urls\":"+Utils.GSON_COMPACT.toJson(turnURIs)+",\"username\":");
+    this.beforeIceCredential = toBytes(",\"credential\":");
+    if(stunURIs != null && stunURIs.length > 0) {
+      this.end = toBytes("},{\"urls\":"+Utils.GSON_COMPACT.toJson(stunURIs)+"}]}");
+    } else {
+      this.end = toBytes("}]}");
+    }
+  }
+
+  /**
+   * Encodes the response, falling back to a full serialization if it was not made from the same
+   * servers and ttl as this template.
+   */
+  public ByteBuffer encode(TurnRestResponse trr) {
+    final TurnRestResponseEncoder template = trr.getTemplate();
+    if(template != null && template != this) {
+      return template.encode(trr);
+    }
+    if(!matches(trr)) {
+      return ByteBuffer.wrap(toBytes(Utils.GSON_COMPACT.toJson(trr)));
+    }
+    return encode(trr.getUsername(), trr.getPassword());
+  }
+
+  public ByteBuffer encode(String username, String password) {
+    byte[] user = toJSONString(username);
+    byte[] pass = toJSONString(password);
+    ByteBuffer bb = ByteBuffer.allocate(beforeUser.length + beforePassword.length + beforeIceUser.length +
+        beforeIceCredential.length + end.length + (user.length*2) + (pass.length*2));
+    bb.put(beforeUser).put(user)
+    .put(beforePassword).put(pass)
+    .put(beforeIceUser).put(user)
+    .put(beforeIceCredential).put(pass)
+    .put(end);
+    bb.flip();
+    return bb;
+  }
+
+  private boolean matches(TurnRestResponse trr) {
+    if(trr.getTtl() != ttl || trr.getUsername() == null || trr.getPassword() == null) {
+      return false;
+    }
+    IceServers[] servers = trr.getIceServersArray();
+    if(stunURIs != null && stunURIs.length > 0) {
+      if(servers.length != 2 || servers[1].getUrlsArray() != stunURIs) {
+        return false;
+      }
+    } else if(servers.length != 1) {
+      return false;
+    }
+    return servers[0].getUrlsArray() == turnURIs &&
+        trr.getUsername().equals(servers[0].getUsername()) &&
+        trr.getPassword().equals(servers[0].getCredential());
+  }
+
+  private static byte[] toJSONString(String s) {
+    for(int i=0; i<s.length(); i++) {
+      char c = s.charAt(i);
+      if(c < 0x20 || c == '"' || c == '\\' || c > 0x7e) {
+        return toBytes(Utils.GSON_COMPACT.toJson(s));
+      }
+    }
+    byte[] ba = new byte[s.length()+2];
+    ba[0] = '"';
+    for(int i=0; i<s.length(); i++) {
+      ba[i+1] = (byte)s.charAt(i);
+    }
+    ba[ba.length-1] = '"';
+    return ba;
+  }
+
+  private static byte[] toBytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -20,6 +20,7 @@ public class Utils {
   private static final Logger log = LoggerFactory.getLogger(Utils.class);
   
   public static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+  public static final Gson GSON_COMPACT = new GsonBuilder().disableHtmlEscaping().create();
 
   private static volatile PriorityScheduler PS = null;
   
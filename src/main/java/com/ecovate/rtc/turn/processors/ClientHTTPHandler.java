@@ -3,6 +3,8 @@ package com.ecovate.rtc.turn.processors;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,15 +18,16 @@ import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
 import org.threadly.litesockets.protocols.http.response.HTTPResponseBuilder;
 import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
-import org.threadly.litesockets.protocols.http.shared.HTTPRequestMethod;
 import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
 
 import com.ecovate.rtc.turn.HTTPHandler;
+import com.ecovate.rtc.turn.HTTPRoute;
 import com.ecovate.rtc.turn.HTTPUtils;
 import com.ecovate.rtc.turn.SimpleResponse;
 import com.ecovate.rtc.turn.TurnRest;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
 import com.ecovate.rtc.turn.TurnRestConfig;
+import com.ecovate.rtc.turn.Utils;
 import com.google.common.io.ByteStreams;
 
 import io.prometheus.client.Counter;
@@ -80,17 +83,16 @@ public class ClientHTTPHandler implements HTTPHandler {
     filesResponse = filesResponseTemplate.replaceAll("--REPLACE--", sb.toString());
   }
 
-  private final Map<String, SimpleResponse> files;
-  private final SimpleResponse rootResponse;
+  private final Map<String, Asset> files;
+  private final Asset rootAsset;
 
   public ClientHTTPHandler() {
     log.info("Starting Client handler!");
     HTTPResponseBuilder hrb = new HTTPResponseBuilder()
-        .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
         .setHeader(HTTPUtils.HTTP_ACAO_HEADER, "*")
         .setHeader(HTTPConstants.HTTP_KEY_USER_AGENT, "dontlook")
         .setResponseCode(HTTPResponseCode.OK);
-    HashMap<String, SimpleResponse> map = new HashMap<>();
+    HashMap<String, Asset> map = new HashMap<>();
     byte[] ba = null;
     for(String f: filenames) {
       log.info("Opening file:{}", f);
@@ -98,47 +100,23 @@ public class ClientHTTPHandler implements HTTPHandler {
         if(!f.endsWith("latest.js")) {
           ba = ByteStreams.toByteArray(ClientHTTPHandler.class.getResourceAsStream((f)));
         }
-        hrb.setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Long.toString(ba.length));
         hrb.setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/javascript");
-        hrb.setHeader("Cache-Control", "max-age=2592000");
-        map.put(new File(f).getName(), new SimpleResponse(hrb.build(), ByteBuffer.wrap(ba).asReadOnlyBuffer()));
+        hrb.setHeader(HTTPUtils.HTTP_CACHE_HEADER, "max-age=2592000");
+        map.put(new File(f).getName(), new Asset(hrb, ba));
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
     files = Collections.unmodifiableMap(map);
-    hrb.setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Long.toString(filesResponse.length()));
     hrb.setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/html");
-    rootResponse = new SimpleResponse(hrb.build(), ByteBuffer.wrap(filesResponse.getBytes()).asReadOnlyBuffer());
-    hrb.removeHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH)
-    .removeHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE)
-    .setResponseCode(HTTPResponseCode.NotFound);
+    rootAsset = new Asset(hrb, filesResponse.getBytes(StandardCharsets.UTF_8));
   }
 
   @Override
   public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc) {
     final Timer timer = clientTimes.startTimer();
-    final String hrm = httpRequest.getHTTPRequestHeader().getRequestMethod();
     try {
-      if(hrm.equalsIgnoreCase(HTTPRequestMethod.GET.toString())) {
-        String path = httpRequest.getHTTPRequestHeader().getRequestPath().replaceFirst("/clients", "");
-        if(path.startsWith("/")) {
-          path = path.substring(1);
-        }
-        if(path.length() == 0) {
-          log.info("{}:Client Served Index", clientID);
-          clientRequests.labels(hrm, "index").inc();
-          return new ImmediateResultListenableFuture<>(rootResponse);
-        } else {
-          SimpleResponse fileResponse = files.get(path);
-          if(fileResponse != null) {
-            clientRequests.labels(hrm, path).inc();
-            log.info("{}:Client Served File:{}", clientID, path);
-            return new ImmediateResultListenableFuture<>(fileResponse);
-          }
-        }
-      }
-      clientRequests.labels(hrm, "error").inc();
+      clientRequests.labels(httpRequest.getHTTPRequestHeader().getRequestMethod(), "error").inc();
       return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getNotFoundResponse()));
     } finally {
       timer.close();
@@ -146,12 +124,105 @@ public class ClientHTTPHandler implements HTTPHandler {
   }
 
   @Override
-  public boolean canHandle(String currentPath) {
-    return currentPath.startsWith("/clients");
+  public List<HTTPRoute> getRoutes() {
+    List<HTTPRoute> routes = new ArrayList<>();
+    routes.add(HTTPRoute.exact("/clients", (c,h,t)->serve(c, h, "index", rootAsset), "GET"));
+    for(Map.Entry<String, Asset> file: files.entrySet()) {
+      routes.add(HTTPRoute.exact("/clients/"+file.getKey(), (c,h,t)->serve(c, h, file.getKey(), file.getValue()), "GET"));
+    }
+    //Anything else under /clients is counted as an error
+    routes.add(HTTPRoute.prefix("/clients", this));
+    return routes;
   }
-  
+
+  private ListenableFuture<SimpleResponse> serve(ClientID clientID, HTTPRequest httpRequest, String file, Asset asset) {
+    final Timer timer = clientTimes.startTimer();
+    try {
+      clientRequests.labels(httpRequest.getHTTPRequestHeader().getRequestMethod(), file).inc();
+      log.debug("{}:Client Served File:{}", clientID, file);
+      return new ImmediateResultListenableFuture<>(asset.select(httpRequest));
+    } finally {
+      timer.close();
+    }
+  }
+
   @Override
   public String getName() {
     return "clientHandler";
   }
+
+  /**
+   * Every response for one file, built once: the file as is and gzipped, each with its own strong
+   * ETag, and a 304 for each for clients that already have it.
+   */
+  static class Asset {
+    private final SimpleResponse plain;
+    private final SimpleResponse plainNotModified;
+    private final String plainETag;
+    private final SimpleResponse gzip;
+    private final SimpleResponse gzipNotModified;
+    private final String gzipETag;
+
+    Asset(HTTPResponseBuilder hrb, byte[] body) {
+      final String hash = Utils.SHABytes(body);
+      hrb.setHeader(HTTPUtils.HTTP_VARY_HEADER, HTTPUtils.HTTP_ACCEPT_ENCODING_HEADER);
+      plainETag = "\""+hash+"\"";
+      plain = response(hrb, body, plainETag, null);
+      plainNotModified = notModified(hrb, plainETag, null);
+      final byte[] gz = HTTPUtils.gzip(body);
+      if(gz.length < body.length) {
+        //A different body so it has to be a different strong ETag
+        gzipETag = "\""+hash+"-"+HTTPUtils.GZIP+"\"";
+        gzip = response(hrb, gz, gzipETag, HTTPUtils.GZIP);
+        gzipNotModified = notModified(hrb, gzipETag, HTTPUtils.GZIP);
+      } else {
+        gzipETag = plainETag;
+        gzip = plain;
+        gzipNotModified = plainNotModified;
+      }
+      setEncoding(hrb, null);
+      hrb.removeHeader(HTTPUtils.HTTP_VARY_HEADER);
+    }
+
+    private static SimpleResponse response(HTTPResponseBuilder hrb, byte[] body, String etag, String encoding) {
+      setEncoding(hrb, encoding);
+      final SimpleResponse sr = new SimpleResponse(hrb
+          .setResponseCode(HTTPResponseCode.OK)
+          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(body.length))
+          .setHeader(HTTPUtils.HTTP_ETAG_HEADER, etag)
+          .build(), ByteBuffer.wrap(body).asReadOnlyBuffer());
+      hrb.removeHeader(HTTPUtils.HTTP_ETAG_HEADER);
+      return sr;
+    }
+
+    private static SimpleResponse notModified(HTTPResponseBuilder hrb, String etag, String encoding) {
+      setEncoding(hrb, encoding);
+      //No body, but the headers a cache updates its copy with.  A 304 never has a body so it has no
+      //Content-Length, 0 would claim the representation is empty
+      final SimpleResponse sr = new SimpleResponse(hrb
+          .setResponseCode(HTTPResponseCode.NotModified)
+          .removeHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH)
+          .setHeader(HTTPUtils.HTTP_ETAG_HEADER, etag)
+          .build());
+      hrb.setResponseCode(HTTPResponseCode.OK).removeHeader(HTTPUtils.HTTP_ETAG_HEADER);
+      return sr;
+    }
+
+    private static void setEncoding(HTTPResponseBuilder hrb, String encoding) {
+      if(encoding == null) {
+        hrb.removeHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER);
+      } else {
+        hrb.setHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER, encoding);
+      }
+    }
+
+    SimpleResponse select(HTTPRequest hr) {
+      final boolean gz = HTTPUtils.acceptsGzip(hr);
+      final String inm = hr.getHTTPHeaders().getHeader(HTTPUtils.HTTP_IF_NONE_MATCH_HEADER);
+      if(HTTPUtils.etagMatches(inm, gz ? gzipETag : plainETag)) {
+        return gz ? gzipNotModified : plainNotModified;
+      }
+      return gz ? gzip : plain;
+    }
+  }
 }
@@ -1,5 +1,8 @@
 package com.ecovate.rtc.turn.processors;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threadly.concurrent.future.ImmediateResultListenableFuture;
@@ -7,6 +10,7 @@ import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
 
 import com.ecovate.rtc.turn.HTTPHandler;
+import com.ecovate.rtc.turn.HTTPRoute;
 import com.ecovate.rtc.turn.HTTPUtils;
 import com.ecovate.rtc.turn.SimpleResponse;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
@@ -25,8 +29,8 @@ public class DefaultHTTPHandler implements HTTPHandler {
   }
 
   @Override
-  public boolean canHandle(String path) {
-    return true;
+  public List<HTTPRoute> getRoutes() {
+    return Collections.singletonList(HTTPRoute.prefix("", this));
   }
   
   @Override
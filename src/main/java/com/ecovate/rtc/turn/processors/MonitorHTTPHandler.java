@@ -1,18 +1,25 @@
 package com.ecovate.rtc.turn.processors;
 
 import java.io.ByteArrayOutputStream;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.threadly.concurrent.future.ImmediateResultListenableFuture;
 import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.response.HTTPResponseBuilder;
 import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
 import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
 import org.threadly.litesockets.utils.IOUtils;
@@ -23,18 +30,30 @@ import com.codahale.metrics.json.HealthCheckModule;
 import com.codahale.metrics.json.MetricsModule;
 import com.codahale.metrics.jvm.ThreadDump;
 import com.ecovate.rtc.turn.HTTPHandler;
+import com.ecovate.rtc.turn.HTTPRoute;
 import com.ecovate.rtc.turn.HTTPUtils;
 import com.ecovate.rtc.turn.SimpleResponse;
+import com.ecovate.rtc.turn.TurnRest;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
 import com.ecovate.rtc.turn.TurnRestConfig;
 import com.ecovate.rtc.turn.Utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.common.TextFormat;
 
+/**
+ * The monitor pages.  The Prometheus scrape is rendered off the I/O threads by {@link #renderMetrics}, which
+ * the server runs once every {@link #CACHE_TIME}, into a buffer that is kept between renders.  Each render
+ * is copied out once as is and once gzipped so a scrape is only ever handed one of two prebuilt responses.
+ * If nothing is rendering them the metrics are rendered on the request once they are stale.
+ */
 public class MonitorHTTPHandler implements HTTPHandler {
   private final static Logger log = LoggerFactory.getLogger(MonitorHTTPHandler.class);
-  private static final int CACHE_TIME = 1000;
+  public static final int CACHE_TIME = 1000;
+  //Past this the background render is taken to not be running
+  private static final int STALE_TIME = CACHE_TIME*3;
+  private static final int INITIAL_BUFFER_SIZE = 64*1024;
 
   private static final String MONITOR_PAGE = "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\""
       + "        \"http://www.w3.org/TR/html4/loose.dtd\">" + "<html>" + "<head>" + "  <title>Metrics</title>"
@@ -54,9 +73,18 @@ public class MonitorHTTPHandler implements HTTPHandler {
   private volatile long lastPingUpdate = Clock.lastKnownForwardProgressingMillis();
   private volatile long lastMonitorPageUpdate = Clock.lastKnownForwardProgressingMillis();
   private volatile String cachedHealth = null;
-  private volatile String cachedMetrics = null;
   private volatile SimpleResponse cachedHealthResponse = null;
-  private volatile SimpleResponse cachedMetricsResponse = null;
+  private volatile Scrape cachedScrape = null;
+  //Only touched while holding renderLock
+  private final Object renderLock = new Object();
+  private final ScratchBuffer renderBuffer = new ScratchBuffer(INITIAL_BUFFER_SIZE);
+  private final ScratchBuffer gzipBuffer = new ScratchBuffer(INITIAL_BUFFER_SIZE/4);
+  private final Writer renderWriter = new OutputStreamWriter(renderBuffer, StandardCharsets.UTF_8);
+
+  private final Histogram renderLatency = Histogram.build()
+      .name(TurnRest.TURN_REST+"metrics_render_seconds")
+      .help("Time to render and compress the Prometheus scrape.")
+      .register(Utils.getMetricsRegistry());
   private volatile SimpleResponse cachedPingResponse = new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder()
       .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(PONG.length()))
       .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/html")
@@ -69,21 +97,27 @@ public class MonitorHTTPHandler implements HTTPHandler {
   
   public MonitorHTTPHandler() {
     updateHealthCheck();
-    updateMetrics();
+    renderMetrics();
   }
 
 
   @Override
   public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc) {
-    log.info("{}: processing metrics/health", clientID);
-    return new ImmediateResultListenableFuture<>(processHealthCheck(httpRequest));
+    log.debug("{}: processing metrics/health", clientID);
+    return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getNotFoundResponse(), IOUtils.EMPTY_BYTEBUFFER));
   }
 
 
   @Override
-  public boolean canHandle(String path) {
-    if(path.startsWith("/monitor")) return true;
-    return false;
+  public List<HTTPRoute> getRoutes() {
+    //Each page is its own route so the path is only matched once, by the router
+    return Arrays.asList(
+        HTTPRoute.exact("/monitor", (c,h,t)->respond(c, getMonitorPage())).withoutAdmission(),
+        HTTPRoute.exact("/monitor/healthcheck", (c,h,t)->respond(c, getHealthCheck())).withoutAdmission(),
+        HTTPRoute.exact("/monitor/metrics", (c,h,t)->respond(c, getMetrics(HTTPUtils.acceptsGzip(h)))).withoutAdmission(),
+        HTTPRoute.exact("/monitor/ping", (c,h,t)->respond(c, getPing())).withoutAdmission(),
+        HTTPRoute.exact("/monitor/threads", (c,h,t)->respond(c, getThreads())).withoutAdmission(),
+        HTTPRoute.prefix("/monitor", this).withoutAdmission());
   }
   
   @Override
@@ -109,18 +143,19 @@ public class MonitorHTTPHandler implements HTTPHandler {
           }
         }
       }
+      final byte[] health = cachedHealth.getBytes(StandardCharsets.UTF_8);
       if(cachedHealth.contains("false")) {
         cachedHealthResponse = new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.InternalServerError)
-            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(cachedHealth.length()))
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(health.length))
             .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/json")
             .build(),
-            ByteBuffer.wrap(cachedHealth.getBytes()));
+            ByteBuffer.wrap(health));
       } else {
         cachedHealthResponse = new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.OK)
-            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(cachedHealth.length()))
+            .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(health.length))
             .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/json")
             .build(),
-            ByteBuffer.wrap(cachedHealth.getBytes()));  
+            ByteBuffer.wrap(health));  
       }
     }
   }
@@ -144,58 +179,104 @@ public class MonitorHTTPHandler implements HTTPHandler {
     }
   }
 
-  private void updateMetrics() {
-
-
-
-    if(Clock.lastKnownForwardProgressingMillis() - lastMetricUpdate > CACHE_TIME) {
-      synchronized(MR_MAPPER) {
-        if(Clock.lastKnownForwardProgressingMillis() - lastMetricUpdate > CACHE_TIME) {
-          StringWriter writer = new StringWriter();
-          try {
-            TextFormat.write004(writer, Utils.getMetricsRegistry().filteredMetricFamilySamples(Collections.emptySet()));
-            cachedMetrics = writer.toString();
-          } catch (Exception e) {
-            log.error("Error parsing metrics!", e);
-          } finally {
-            long t = Clock.lastKnownForwardProgressingMillis();
-            log.info("Updated Metrics:{}", t);
-            lastMetricUpdate = t;
-            IOUtils.closeQuietly(writer);
-          }
+  /**
+   * Renders the metrics registry into the cached scrape responses.
+   */
+  public void renderMetrics() {
+    synchronized(renderLock) {
+      final Histogram.Timer t = renderLatency.startTimer();
+      try {
+        renderBuffer.reset();
+        TextFormat.write004(renderWriter, Utils.getMetricsRegistry().filteredMetricFamilySamples(Collections.emptySet()));
+        renderWriter.flush();
+        gzipBuffer.reset();
+        try(GZIPOutputStream gz = new GZIPOutputStream(gzipBuffer, 8192)) {
+          renderBuffer.writeTo(gz);
         }
+        //Copied out so responses still being written are never changed by the next render
+        cachedScrape = new Scrape(
+            metricsResponse(renderBuffer.copy(), false), 
+            metricsResponse(gzipBuffer.copy(), true));
+      } catch (IOException | RuntimeException e) {
+        log.error("Error rendering metrics!", e);
+      } finally {
+        t.observeDuration();
+        lastMetricUpdate = Clock.lastKnownForwardProgressingMillis();
       }
-      cachedMetricsResponse = new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.OK)
-          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(cachedMetrics.length()))
-          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/plain")
-          .build(),
-          ByteBuffer.wrap(cachedMetrics.getBytes()));  
     }
   }
 
-  private SimpleResponse processHealthCheck(HTTPRequest hr) {
-    final String path = hr.getHTTPRequestHeader().getRequestPath();
-    if(path.equals("/monitor") || path.equals("/monitor/") ) {
-      updateMonitorPage();
-      return cachedMonitorPage;
-    } else if(path.equals("/monitor/healthcheck") || path.equals("/monitor/healthcheck/")) {
-      updateHealthCheck();
-      return cachedHealthResponse;
-    } else if(path.equals("/monitor/metrics") || path.equals("/monitor/metrics/")) {
-      updateMetrics();
-      return cachedMetricsResponse;
-    } else if(path.equals("/monitor/ping") || path.equals("/monitor/ping/")) {
-      updatePing();
-      return cachedPingResponse;
-    } else if(path.equals("/monitor/threads") || path.equals("/monitor/threads/")) {
-      ByteArrayOutputStream dump = new ByteArrayOutputStream();
-      THREAD_DUMP.dump(dump);
-      return new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.InternalServerError)
-          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(dump.size()))
-          .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/html")
-          .build(), ByteBuffer.wrap(dump.toByteArray()));
-    } else {
+  private static SimpleResponse metricsResponse(byte[] body, boolean gzip) {
+    HTTPResponseBuilder hrb = HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.OK)
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(body.length))
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, TextFormat.CONTENT_TYPE_004)
+        .setHeader(HTTPUtils.HTTP_VARY_HEADER, HTTPUtils.HTTP_ACCEPT_ENCODING_HEADER);
+    if(gzip) {
+      hrb.setHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER, HTTPUtils.GZIP);
+    }
+    return new SimpleResponse(hrb.build(), ByteBuffer.wrap(body));
+  }
+
+  private ListenableFuture<SimpleResponse> respond(ClientID clientID, SimpleResponse sr) {
+    log.debug("{}: processing metrics/health", clientID);
+    return new ImmediateResultListenableFuture<>(sr);
+  }
+
+  private SimpleResponse getMonitorPage() {
+    updateMonitorPage();
+    return cachedMonitorPage;
+  }
+
+  private SimpleResponse getHealthCheck() {
+    updateHealthCheck();
+    return cachedHealthResponse;
+  }
+
+  private SimpleResponse getMetrics(boolean gzip) {
+    if(Clock.lastKnownForwardProgressingMillis() - lastMetricUpdate > STALE_TIME) {
+      renderMetrics();
+    }
+    final Scrape scrape = cachedScrape;
+    if(scrape == null) {
       return new SimpleResponse(HTTPUtils.getNotFoundResponse(), IOUtils.EMPTY_BYTEBUFFER);
     }
+    return gzip ? scrape.gzip : scrape.plain;
+  }
+
+  private SimpleResponse getPing() {
+    updatePing();
+    return cachedPingResponse;
+  }
+
+  private SimpleResponse getThreads() {
+    ByteArrayOutputStream dump = new ByteArrayOutputStream();
+    THREAD_DUMP.dump(dump);
+    return new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder().setResponseCode(HTTPResponseCode.InternalServerError)
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(dump.size()))
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/html")
+        .build(), ByteBuffer.wrap(dump.toByteArray()));
+  }
+
+  private static class Scrape {
+    private final SimpleResponse plain;
+    private final SimpleResponse gzip;
+
+    private Scrape(SimpleResponse plain, SimpleResponse gzip) {
+      this.plain = plain;
+      this.gzip = gzip;
+    }
+  }
+
+  /**
+   * A ByteArrayOutputStream that keeps its array when reset, so it only grows until it fits a render.
+   */
+  private static class ScratchBuffer extends ByteArrayOutputStream {
+    private ScratchBuffer(int size) {
+      super(size);
+    }
+
+    private byte[] copy() {
+      return Arrays.copyOf(buf, count);
+    }
   }
 }
@@ -1,6 +1,8 @@
 package com.ecovate.rtc.turn.processors;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +13,7 @@ import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
 import org.threadly.util.Clock;
 
 import com.ecovate.rtc.turn.HTTPHandler;
+import com.ecovate.rtc.turn.HTTPRoute;
 import com.ecovate.rtc.turn.HTTPUtils;
 import com.ecovate.rtc.turn.SimpleResponse;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
@@ -34,15 +37,15 @@ public class PingHTTPHandler implements HTTPHandler {
 
   @Override
   public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc) {
-    log.info("{}: processing ping request", clientID);
+    log.debug("{}: processing ping request", clientID);
     updatePing();
     return new ImmediateResultListenableFuture<>(cachedPingResponse);
   }
 
   @Override
-  public boolean canHandle(String path) {
-    if(path.equals("/ping") || path.equals("/monitor/ping")) return true;
-    return false;
+  public List<HTTPRoute> getRoutes() {
+    return Arrays.asList(HTTPRoute.exact("/ping", this).withoutAdmission(), 
+        HTTPRoute.exact("/monitor/ping", this).withoutAdmission());
   }
   
   @Override
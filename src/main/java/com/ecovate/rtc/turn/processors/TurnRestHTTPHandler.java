@@ -1,96 +1,192 @@
 package com.ecovate.rtc.turn.processors;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.threadly.concurrent.SubmitterExecutor;
 import org.threadly.concurrent.future.FutureCallback;
+import org.threadly.concurrent.future.FutureUtils;
 import org.threadly.concurrent.future.ImmediateResultListenableFuture;
 import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.concurrent.future.SettableListenableFuture;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.response.HTTPResponseBuilder;
 import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
-import org.threadly.util.ExceptionUtils;
+import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
+import org.threadly.util.Clock;
 
-import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.ecovate.rtc.turn.CompiledTurnRestConfig;
+import com.ecovate.rtc.turn.CredentialCache;
+import com.ecovate.rtc.turn.CredentialCache.Credential;
+import com.ecovate.rtc.turn.CredentialRequest;
+import com.ecovate.rtc.turn.CredentialStreams;
 import com.ecovate.rtc.turn.HTTPHandler;
+import com.ecovate.rtc.turn.HTTPRoute;
 import com.ecovate.rtc.turn.HTTPUtils;
 import com.ecovate.rtc.turn.JWTUtils;
+import com.ecovate.rtc.turn.JWTUtils.JWTDecodeException;
+import com.ecovate.rtc.turn.RateLimits;
+import com.ecovate.rtc.turn.RequestStages;
+import com.ecovate.rtc.turn.RequestStages.Stage;
 import com.ecovate.rtc.turn.SimpleResponse;
+import com.ecovate.rtc.turn.StreamingResponse;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
 import com.ecovate.rtc.turn.TurnRestConfig;
 import com.ecovate.rtc.turn.TurnRestResponse;
+import com.ecovate.rtc.turn.Utils;
+import com.google.gson.JsonParseException;
 
 public class TurnRestHTTPHandler implements HTTPHandler {
   private static final Logger log = LoggerFactory.getLogger(TurnRestHTTPHandler.class);
+  //Batches bigger than this are split up and minted on the scheduler
+  private static final int BATCH_CHUNK_SIZE = 256;
+  private static final byte[] BATCH_START = "{\"credentials\":[".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] BATCH_END = "]}".getBytes(StandardCharsets.UTF_8);
 
   private final JWTUtils ju;
+  private final RateLimits rateLimits;
+  private final SubmitterExecutor executor;
+  private final CredentialStreams streams;
+  private final RequestStages stages;
 
   public TurnRestHTTPHandler(JWTUtils ju) {
+    this(ju, null, null, null);
+  }
+
+  /**
+   * @param rateLimits the limits to check JWTs against, null for none.
+   * @param executor where large batches are minted, null to mint them on the calling thread.
+   * @param streams the open credential streams, null to not serve /turn/stream.
+   */
+  public TurnRestHTTPHandler(JWTUtils ju, RateLimits rateLimits, SubmitterExecutor executor, CredentialStreams streams) {
     this.ju = ju;
+    this.rateLimits = rateLimits;
+    this.executor = executor;
+    this.streams = streams;
+    this.stages = ju.getStages();
   }
 
   @Override
   public ListenableFuture<SimpleResponse> handleRequest(final ClientID clientID, final HTTPRequest httpRequest, final TurnRestConfig trc) {
-    log.info("{}: processing turn user request", clientID);
+    log.debug("{}: processing turn user request", clientID);
+    return authorize(clientID, httpRequest, trc, (user, namedUser, validUntil, relayKey)->
+        mintResponse(trc, namedUser, CredentialRequest.forUser(user).withRelayKey(relayKey)
+            .withRegion(trc.getCompiled().getRegion(httpRequest))));
+  }
+
+  /**
+   * Opens a Server-Sent Event stream that is sent credentials now and new ones before each set expires.
+   */
+  public ListenableFuture<SimpleResponse> handleStream(final ClientID clientID, final HTTPRequest httpRequest, final TurnRestConfig trc) {
+    log.debug("{}: processing turn stream request", clientID);
+    final int region = trc.getCompiled().getRegion(httpRequest);
+    return authorize(clientID, httpRequest, trc, (user, namedUser, validUntil, relayKey)->
+        openStream(clientID, trc, CredentialRequest.forUser(user).withRelayKey(relayKey).withRegion(region), validUntil));
+  }
+
+  /**
+   * Checks the requests JWT and works out the user credentials are minted for.
+   *
+   * @param authorized makes the response once the request is known to be allowed.
+   */
+  private ListenableFuture<SimpleResponse> authorize(final ClientID clientID, final HTTPRequest httpRequest, 
+      final TurnRestConfig trc, final Authorized authorized) {
     SettableListenableFuture<SimpleResponse> slf = new SettableListenableFuture<SimpleResponse>(); 
 
     ListenableFuture<Boolean> authLF = ImmediateResultListenableFuture.BOOLEAN_FALSE_RESULT;
     boolean hasScopes = false;
     String jwtUser = null;
+    //Generated users are different every request so there is nothing to reuse for them
+    boolean namedUser = false;
+    long jwtExpires = Long.MAX_VALUE;
+    String relayKey = null;
+    DecodedJWT checkedJWT = null;
     if(trc.getForcedUser() != null) {
       jwtUser = trc.getForcedUser();
+      namedUser = true;
     } else {
       jwtUser = "AutoUser-"+clientID;
     }
     
+    final JWTUtils tju = jwtUtilsFor(trc);
     if(trc.getIgnoreJWT()) {
-      log.info("{}: Config marked to skip JWT Auth, skipping!", clientID);
+      log.debug("{}: Config marked to skip JWT Auth, skipping!", clientID);
+      clientID.setAuthResult("skipped");
       authLF = ImmediateResultListenableFuture.BOOLEAN_TRUE_RESULT;
     } else {
-      log.info("{}: Processing JWT", clientID);
+      log.debug("{}: Processing JWT", clientID);
       try {
-        DecodedJWT djwt = ju.getJWT(httpRequest);
-        hasScopes = ju.checkScopes(trc.getRequiredScopes(), false, djwt);
+        final DecodedJWT djwt = decode(tju, httpRequest);
+        //Limited before the signature is checked, that is the expensive part
+        if(rateLimits != null && !rateLimits.checkToken(djwt)) {
+          clientID.setAuthResult("rate_limited");
+          slf.setResult(new SimpleResponse(HTTPUtils.getTooManyRequestsResponse()));
+          return slf;
+        }
+        final long scopeStart = System.nanoTime();
+        hasScopes = tju.checkScopes(trc.getCompiled().getRequiredScopes(), false, djwt);
+        stages.observe(Stage.SCOPE_CHECK, scopeStart);
         if(hasScopes) {
-          authLF = ju.validateJWT(clientID, djwt);
+          authLF = tju.validateJWT(clientID, djwt);
+          checkedJWT = djwt;
+          if(djwt.getExpiresAt() != null) {
+            jwtExpires = djwt.getExpiresAt().getTime();
+          }
           if(trc.getForcedUser() == null) {
             if(trc.getUserClaim() != null) {
-              Claim tmp = djwt.getClaim(trc.getUserClaim());
-              if(!tmp.isNull() && !tmp.asString().equals("")) {
-                jwtUser = tmp.asString();
+              //Claims come from the same decode the signature is checked against
+              String claimUser = djwt.getClaim(trc.getUserClaim()).asString();
+              if(claimUser != null && !claimUser.equals("")) {
+                jwtUser = claimUser;
+                namedUser = true;
               }
             }
           }
+          if(trc.getRelayHashClaim() != null) {
+            //Everyone with the same claim, a room say, is put on the same relay
+            String claim = djwt.getClaim(trc.getRelayHashClaim()).asString();
+            if(claim != null && !claim.equals("")) {
+              relayKey = claim;
+            }
+          }
         } else {
           log.info("{}: JWT missing required scopes:{}", clientID, trc.getRequiredScopes());
+          clientID.setAuthResult("missing_scopes");
           authLF = ImmediateResultListenableFuture.BOOLEAN_FALSE_RESULT;
         }
       } catch(Exception e) {
-        log.info("{}: Exception processing auth\n{}", clientID, ExceptionUtils.stackToString(e));
+        log.info("{}: Exception processing auth:{}", clientID, e.getMessage());
+        clientID.setAuthResult("bad_jwt");
         slf.setResult(new SimpleResponse(HTTPUtils.getUnauthorizedResponse()));
         return slf;
       }
     }
 
     final String JWTUser = jwtUser;
+    final boolean reuse = namedUser;
+    final long validUntil = jwtExpires;
+    final String JWTRelayKey = relayKey;
+    final DecodedJWT verifiedJWT = checkedJWT;
     authLF.callback(new FutureCallback<Boolean>() {
       @Override
       public void handleResult(Boolean result) {
-        SimpleResponse sr = null;
-        if(result) {
-          log.info("{}: Set User to:{}", clientID, JWTUser);
-          ByteBuffer bb = ByteBuffer.wrap(TurnRestResponse.makeResponse(trc, JWTUser).toString().getBytes());
-          sr = new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder()
-              .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(bb.remaining()))
-              .build()
-              , bb);
+        if(result && verifiedJWT != null && !checkUser(clientID, verifiedJWT)) {
+          slf.setResult(new SimpleResponse(HTTPUtils.getTooManyRequestsResponse()));
+        } else if(result) {
+          log.debug("{}: Set User to:{}", clientID, JWTUser);
+          try {
+            slf.setResult(authorized.respond(JWTUser, reuse, validUntil, JWTRelayKey));
+          } catch(RuntimeException e) {
+            slf.setFailure(e);
+          }
         } else {
-          sr = new SimpleResponse(HTTPUtils.getUnauthorizedResponse());
+          slf.setResult(new SimpleResponse(HTTPUtils.getUnauthorizedResponse()));
         }
-        log.info("{}: sending back code:{}", clientID, sr.getHr().getResponseCode());
-        slf.setResult(sr);
       }
 
       @Override
@@ -102,14 +198,302 @@ public class TurnRestHTTPHandler implements HTTPHandler {
     return slf;
   }
 
+  /**
+   * Charges the JWTs subject, only once its signature has been checked.
+   */
+  private boolean checkUser(final ClientID clientID, final DecodedJWT djwt) {
+    if(rateLimits != null && !rateLimits.checkUser(djwt)) {
+      clientID.setAuthResult("rate_limited");
+      return false;
+    }
+    return true;
+  }
+
+  private DecodedJWT decode(final JWTUtils tju, final HTTPRequest httpRequest) throws JWTDecodeException {
+    final long start = System.nanoTime();
+    try {
+      return tju.getJWT(httpRequest);
+    } finally {
+      stages.observe(Stage.JWT_DECODE, start);
+    }
+  }
+
+  /**
+   * Tenants check JWTs against their own keys.
+   */
+  private JWTUtils jwtUtilsFor(final TurnRestConfig trc) {
+    final JWTUtils tju = trc.getJWTUtils();
+    return tju == null ? ju : tju;
+  }
+
+  private SimpleResponse mintResponse(final TurnRestConfig trc, final boolean reuse, final CredentialRequest cr) {
+    final CompiledTurnRestConfig ctrc = trc.getCompiled();
+    final CredentialCache cc = ctrc.getCredentialCache();
+    final ByteBuffer bb;
+    final String cacheControl;
+    final long start = System.nanoTime();
+    if(reuse && cc != null) {
+      final long now = Clock.lastKnownTimeMillis();
+      //A cache miss mints and encodes in one go, it is all counted as minting
+      final Credential c = cc.get(cr, now);
+      stages.observe(Stage.MINT, start);
+      bb = c.getBody();
+      cacheControl = "private, max-age="+c.getMaxAge(now);
+    } else {
+      final TurnRestResponse trr = TurnRestResponse.makeResponse(ctrc, cr);
+      final long encodeStart = System.nanoTime();
+      stages.observe(Stage.MINT, start);
+      bb = ctrc.getResponseEncoder().encode(trr);
+      stages.observe(Stage.SERIALIZE, encodeStart);
+      cacheControl = null;
+    }
+    HTTPResponseBuilder hrb = HTTPUtils.getOKResponse().makeBuilder()
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(bb.remaining()))
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/json");
+    if(cacheControl != null) {
+      hrb.setHeader(HTTPUtils.HTTP_CACHE_HEADER, cacheControl);
+    }
+    return new SimpleResponse(hrb.build(), bb);
+  }
+
+  private SimpleResponse openStream(final ClientID clientID, final TurnRestConfig trc, final CredentialRequest cr, 
+      final long validUntil) {
+    //Taken before any credentials are minted, a client over the limit gets none
+    if(!streams.reserve()) {
+      log.info("{}: Too many credential streams open", clientID);
+      return new SimpleResponse(HTTPUtils.getServiceUnavailableResponse());
+    }
+    final ByteBuffer first;
+    try {
+      first = streams.firstEvent(trc, cr);
+    } catch(RuntimeException e) {
+      streams.release();
+      throw e;
+    }
+    //The stream has no length, it ends when the connection closes
+    return new StreamingResponse(HTTPUtils.getOKResponse().makeBuilder()
+        .removeHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH)
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "text/event-stream")
+        .setHeader(HTTPConstants.HTTP_KEY_CONNECTION, "close")
+        .build(), 
+        first, 
+        (sink)->streams.open(sink, trc, cr, validUntil, Clock.accurateTimeMillis()));
+  }
+
+  /**
+   * Mints credentials for a list of users with a single JWT.  The JWT is checked once and needs every
+   * one of the batch scopes, the body is JSON of the form:
+   * <pre>{"users":[{"username":"alice","ttl":3600},{"username":"bob"}]}</pre>
+   * A ttl is optional and can not be more than the configured one.  The credentials come back in the
+   * same order under "credentials".  Big batches are minted in chunks on the executor, in parallel, and
+   * sent once every chunk is done.  If any chunk fails the whole batch is answered with a 500.
+   */
+  public ListenableFuture<SimpleResponse> handleBatch(final ClientID clientID, final HTTPRequest httpRequest, 
+      final ByteBuffer body, final TurnRestConfig trc) {
+    log.debug("{}: processing turn batch request", clientID);
+    final CompiledTurnRestConfig ctrc = trc.getCompiled();
+    if(!trc.getIgnoreJWT() && ctrc.getBatchScopes().isEmpty()) {
+      return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getNotFoundResponse()));
+    }
+
+    final ListenableFuture<Boolean> authLF;
+    final JWTUtils tju = jwtUtilsFor(trc);
+    final DecodedJWT djwt;
+    if(trc.getIgnoreJWT()) {
+      clientID.setAuthResult("skipped");
+      authLF = ImmediateResultListenableFuture.BOOLEAN_TRUE_RESULT;
+      djwt = null;
+    } else {
+      try {
+        djwt = decode(tju, httpRequest);
+      } catch(Exception e) {
+        log.info("{}: Exception processing auth:{}", clientID, e.getMessage());
+        clientID.setAuthResult("bad_jwt");
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getUnauthorizedResponse()));
+      }
+      if(rateLimits != null && !rateLimits.checkToken(djwt)) {
+        clientID.setAuthResult("rate_limited");
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getTooManyRequestsResponse()));
+      }
+      final long scopeStart = System.nanoTime();
+      final boolean hasScopes = tju.checkScopes(ctrc.getBatchScopes(), true, djwt);
+      stages.observe(Stage.SCOPE_CHECK, scopeStart);
+      if(!hasScopes) {
+        log.info("{}: JWT missing required batch scopes:{}", clientID, ctrc.getBatchScopes());
+        clientID.setAuthResult("missing_scopes");
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getUnauthorizedResponse()));
+      }
+      authLF = tju.validateJWT(clientID, djwt);
+    }
+
+    //The body is only parsed once the JWT is known to be good, it can be big
+    return authLF.flatMap((result)->{
+      if(!result) {
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getUnauthorizedResponse()));
+      }
+      if(djwt != null && !checkUser(clientID, djwt)) {
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getTooManyRequestsResponse()));
+      }
+      final BatchUser[] users = parseBatch(clientID, body, trc.getBatchMaxUsers());
+      if(users == null) {
+        return new ImmediateResultListenableFuture<>(new SimpleResponse(HTTPUtils.getBadRequestResponse()));
+      }
+      log.debug("{}: Minting {} credentials", clientID, users.length);
+      if(executor == null || users.length <= BATCH_CHUNK_SIZE) {
+        return new ImmediateResultListenableFuture<>(batchResponse(wrapBatch(mintUsers(ctrc, users, 0, users.length))));
+      }
+      //Chunks are minted in parallel, the response is only sent once every one of them is done
+      return FutureUtils.makeResultListFuture(mintBatch(ctrc, users), true)
+          .map((parts)->batchResponse(joinBatch(parts)))
+          .mapFailure(Throwable.class, (t)->{
+            log.error("{}: Failed minting batch credentials:{}", clientID, t.getMessage());
+            return new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder()
+                .setResponseCode(HTTPResponseCode.InternalServerError)
+                .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, "0")
+                .build());
+          });
+    });
+  }
+
+  private static SimpleResponse batchResponse(final ByteBuffer bb) {
+    return new SimpleResponse(HTTPUtils.getOKResponse().makeBuilder()
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH, Integer.toString(bb.remaining()))
+        .setHeader(HTTPConstants.HTTP_KEY_CONTENT_TYPE, "application/json")
+        .build()
+        , bb);
+  }
+
+  private static BatchUser[] parseBatch(final ClientID clientID, final ByteBuffer body, final int maxUsers) {
+    final BatchRequest br;
+    try {
+      br = Utils.GSON.fromJson(StandardCharsets.UTF_8.decode(body.duplicate()).toString(), BatchRequest.class);
+    } catch(JsonParseException e) {
+      log.info("{}: Bad batch request:{}", clientID, e.getMessage());
+      return null;
+    }
+    if(br == null || br.users == null || br.users.length == 0 || br.users.length > maxUsers) {
+      log.info("{}: Batch request needs 1 to {} users", clientID, maxUsers);
+      return null;
+    }
+    for(BatchUser bu: br.users) {
+      if(bu == null || bu.username == null || bu.username.equals("")) {
+        log.info("{}: Batch request has a user with no username", clientID);
+        return null;
+      }
+    }
+    return br.users;
+  }
+
+  /**
+   * Mints a batch in chunks on the executor, the returned list is in the same order as the users.
+   */
+  private List<ListenableFuture<ByteBuffer>> mintBatch(final CompiledTurnRestConfig ctrc, final BatchUser[] users) {
+    ArrayList<ListenableFuture<ByteBuffer>> parts = new ArrayList<>();
+    for(int i=0; i<users.length; i+=BATCH_CHUNK_SIZE) {
+      final int start = i;
+      final int end = Math.min(users.length, i+BATCH_CHUNK_SIZE);
+      final long queued = System.nanoTime();
+      parts.add(executor.submit(()->{
+        stages.observe(Stage.QUEUE, queued);
+        return mintUsers(ctrc, users, start, end);
+      }));
+    }
+    return parts;
+  }
+
+  /**
+   * Mints credentials for a range of users and encodes them comma separated.
+   */
+  private static ByteBuffer mintUsers(final CompiledTurnRestConfig ctrc, final BatchUser[] users, final int start, final int end) {
+    final CredentialCache cc = ctrc.getCredentialCache();
+    final long now = Clock.lastKnownTimeMillis();
+    final ByteBuffer[] encoded = new ByteBuffer[end-start];
+    int size = encoded.length-1;
+    for(int i=start; i<end; i++) {
+      final BatchUser bu = users[i];
+      final ByteBuffer bb;
+      final CredentialRequest cr = CredentialRequest.forUser(bu.username);
+      if(bu.ttl == null || bu.ttl <= 0) {
+        if(cc != null) {
+          bb = cc.get(cr, now).getBody();
+        } else {
+          bb = ctrc.getResponseEncoder().encode(TurnRestResponse.makeResponse(ctrc, cr));
+        }
+      } else {
+        int ttl = (int)Math.min(bu.ttl, ctrc.getTTL());
+        bb = ctrc.getResponseEncoder().encode(TurnRestResponse.makeResponse(ctrc, cr.withTTL(ttl)));
+      }
+      encoded[i-start] = bb;
+      size += bb.remaining();
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    for(int i=0; i<encoded.length; i++) {
+      if(i > 0) {
+        out.put((byte)',');
+      }
+      out.put(encoded[i]);
+    }
+    out.flip();
+    return out;
+  }
+
+  private static ByteBuffer wrapBatch(ByteBuffer part) {
+    ByteBuffer out = ByteBuffer.allocate(BATCH_START.length + part.remaining() + BATCH_END.length);
+    out.put(BATCH_START).put(part.duplicate()).put(BATCH_END);
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Joins the minted chunks, in order, into one credentials list.
+   */
+  private static ByteBuffer joinBatch(final List<ByteBuffer> parts) {
+    int size = BATCH_START.length + BATCH_END.length + parts.size()-1;
+    for(ByteBuffer bb: parts) {
+      size += bb.remaining();
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.put(BATCH_START);
+    for(int i=0; i<parts.size(); i++) {
+      if(i > 0) {
+        out.put((byte)',');
+      }
+      out.put(parts.get(i).duplicate());
+    }
+    out.put(BATCH_END);
+    out.flip();
+    return out;
+  }
+
   @Override
-  public boolean canHandle(String path) {
-    if(path.startsWith("/turn")) return true;
-    return false;
+  public List<HTTPRoute> getRoutes() {
+    ArrayList<HTTPRoute> routes = new ArrayList<>();
+    routes.add(HTTPRoute.exactWithBody("/turn/batch", (c, r, b, t)->handleBatch(c, r, b, t), "POST").withStageTimings());
+    if(streams != null) {
+      routes.add(HTTPRoute.exact("/turn/stream", (c, r, t)->handleStream(c, r, t), "GET").withStageTimings());
+    }
+    routes.add(HTTPRoute.prefix("/turn", this).withStageTimings());
+    return routes;
   }
 
   @Override
   public String getName() {
     return "TurnHandler";
   }
+
+  private interface Authorized {
+    /**
+     * @param relayKey the claim TURN servers are ordered by, null to order them by user.
+     */
+    public SimpleResponse respond(String user, boolean namedUser, long validUntil, String relayKey);
+  }
+
+  private static class BatchRequest {
+    private BatchUser[] users;
+  }
+
+  private static class BatchUser {
+    private String username;
+    private Long ttl;
+  }
 }
@@ -0,0 +1,58 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.PriorityScheduler;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+public class AccessLogTests {
+
+  PriorityScheduler ps = null;
+
+  @Before
+  public void start() {
+    ps = new PriorityScheduler(1);
+  }
+
+  @After
+  public void end() {
+    ps.shutdownNow();
+    Utils.resetRegistries();
+  }
+
+  @Test
+  public void recordAndDrain() {
+    AccessLog al = new AccessLog(ps, 4);
+    ClientID cid = new ClientID();
+    cid.setAuthResult("cache");
+    for(int i=0; i<4; i++) {
+      assertTrue(al.record(cid, "GET", "/turn", 200, 1000));
+    }
+    //Full, new lines are dropped instead of waiting on the writer
+    assertFalse(al.record(cid, "GET", "/turn", 200, 1000));
+    assertEquals(4, al.drain());
+    assertEquals(0, al.drain());
+    assertTrue(al.record(cid, "GET", "/turn", 200, 1000));
+    assertEquals(1, al.drain());
+    assertEquals(1.0, Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"access_log_total", 
+        new String[] {"result"}, new String[] {"dropped"}), 0);
+  }
+
+  @Test
+  public void sampling() {
+    AccessLog al = new AccessLog(ps, 16);
+    ClientID cid = new ClientID();
+    al.setSampleRate(0);
+    assertFalse(al.record(cid, "GET", "/turn", 200, 1000));
+    //Errors are always logged
+    assertTrue(al.record(cid, "GET", "/turn", 401, 1000));
+    assertTrue(al.record(cid, "GET", "/nothing", 404, 1000));
+    assertEquals(2, al.drain());
+  }
+}
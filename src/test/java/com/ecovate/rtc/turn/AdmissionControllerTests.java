@@ -0,0 +1,77 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AdmissionControllerTests {
+
+  @After
+  public void end() {
+    Utils.resetRegistries();
+  }
+
+  @Test
+  public void rejectOverLimit() {
+    AdmissionController ac = new AdmissionController(null);
+    ac.setLimits(5, 5, 100);
+    for(int i=0; i<5; i++) {
+      assertTrue(ac.tryAcquire());
+    }
+    assertEquals(5, ac.getInflight());
+    assertFalse(ac.tryAcquire());
+    assertEquals(1.0, Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"admission_rejected_total",
+        new String[] {"reason"}, new String[] {"limit"}), 0);
+    ac.release(1000);
+    assertTrue(ac.tryAcquire());
+  }
+
+  @Test
+  public void limitFollowsLatency() {
+    AdmissionController ac = new AdmissionController(null);
+    ac.setLimits(10, 400, 100);
+    int start = ac.getLimit();
+
+    //Fully used at a steady latency the limit grows
+    for(int i=0; i<200; i++) {
+      fill(ac);
+      drain(ac, 1000000);
+    }
+    int grown = ac.getLimit();
+    assertTrue(grown > start);
+
+    //Once requests slow down the limit comes down, but never below the min
+    for(int i=0; i<3; i++) {
+      fill(ac);
+      drain(ac, 50000000);
+    }
+    assertTrue(ac.getLimit() < grown);
+    assertTrue(ac.getLimit() >= 10);
+  }
+
+  @Test
+  public void idleDoesNotGrow() {
+    AdmissionController ac = new AdmissionController(null);
+    ac.setLimits(10, 400, 100);
+    int start = ac.getLimit();
+    for(int i=0; i<1000; i++) {
+      assertTrue(ac.tryAcquire());
+      ac.release(1000000);
+    }
+    assertEquals(start, ac.getLimit());
+  }
+
+  private static void fill(AdmissionController ac) {
+    while(ac.tryAcquire()) {
+    }
+  }
+
+  private static void drain(AdmissionController ac, long latency) {
+    while(ac.getInflight() > 0) {
+      ac.release(latency);
+    }
+  }
+}
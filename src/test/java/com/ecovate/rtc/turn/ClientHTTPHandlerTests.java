@@ -0,0 +1,78 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.request.HTTPRequestBuilder;
+import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
+import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+import com.ecovate.rtc.turn.processors.ClientHTTPHandler;
+
+public class ClientHTTPHandlerTests {
+
+  @Test
+  public void compressedAndCached() throws Exception {
+    HashMap<String, RequestHandler> routes = new HashMap<>();
+    for(HTTPRoute r: new ClientHTTPHandler().getRoutes()) {
+      if(!r.isPrefix()) {
+        routes.put(r.getPath(), r.getHandler());
+      }
+    }
+    RequestHandler client = routes.get("/clients/turnRestClient-1.2.0.js");
+
+    SimpleResponse plain = client.handleRequest(new ClientID(), request(null, null), null).get();
+    byte[] body = MonitorHTTPHandlerTests.bytes(plain.getBody());
+    String etag = plain.getHr().getHeaders().getHeader(HTTPUtils.HTTP_ETAG_HEADER);
+    assertEquals(HTTPResponseCode.OK, plain.getHr().getResponseCode());
+    assertEquals(Integer.toString(body.length), plain.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    assertNull(plain.getHr().getHeaders().getHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER));
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+
+    SimpleResponse gzip = client.handleRequest(new ClientID(), request("gzip, deflate, br", null), null).get();
+    byte[] gzBody = MonitorHTTPHandlerTests.bytes(gzip.getBody());
+    String gzETag = gzip.getHr().getHeaders().getHeader(HTTPUtils.HTTP_ETAG_HEADER);
+    assertEquals("gzip", gzip.getHr().getHeaders().getHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER));
+    assertEquals(Integer.toString(gzBody.length), gzip.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    assertTrue(gzBody.length < body.length);
+    assertArrayEquals(body, MonitorHTTPHandlerTests.gunzip(gzBody));
+    assertNotEquals(etag, gzETag);
+
+    //Clients that have it already get a 304 with no body
+    SimpleResponse nm = client.handleRequest(new ClientID(), request(null, etag), null).get();
+    assertEquals(HTTPResponseCode.NotModified, nm.getHr().getResponseCode());
+    assertEquals(0, nm.getBody().remaining());
+    assertNull(nm.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    assertEquals(etag, nm.getHr().getHeaders().getHeader(HTTPUtils.HTTP_ETAG_HEADER));
+    nm = client.handleRequest(new ClientID(), request("gzip", "\"other\", W/"+gzETag), null).get();
+    assertEquals(HTTPResponseCode.NotModified, nm.getHr().getResponseCode());
+    assertEquals("gzip", nm.getHr().getHeaders().getHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER));
+    //The tag of the other encoding does not match
+    assertEquals(HTTPResponseCode.OK, client.handleRequest(new ClientID(), request("gzip", etag), null).get().getHr().getResponseCode());
+
+    //latest is the newest version, the same file
+    assertEquals(etag, routes.get("/clients/turnRestClient-latest.js").handleRequest(new ClientID(), request(null, null), null).get()
+        .getHr().getHeaders().getHeader(HTTPUtils.HTTP_ETAG_HEADER));
+    assertEquals(HTTPResponseCode.OK, routes.get("/clients").handleRequest(new ClientID(), request("gzip", null), null).get()
+        .getHr().getResponseCode());
+  }
+
+  static HTTPRequest request(String acceptEncoding, String ifNoneMatch) {
+    HTTPRequestBuilder hrb = new HTTPRequestBuilder();
+    if(acceptEncoding != null) {
+      hrb.setHeader(HTTPUtils.HTTP_ACCEPT_ENCODING_HEADER, acceptEncoding);
+    }
+    if(ifNoneMatch != null) {
+      hrb.setHeader(HTTPUtils.HTTP_IF_NONE_MATCH_HEADER, ifNoneMatch);
+    }
+    return hrb.buildHTTPRequest();
+  }
+}
@@ -0,0 +1,96 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.PriorityScheduler;
+
+public class ConfigWatcherTests {
+  PriorityScheduler ps;
+  File dir;
+  File cf;
+
+  @Before
+  public void start() throws Exception {
+    ps = new PriorityScheduler(2);
+    dir = Files.createTempDirectory("configwatcher").toFile();
+    cf = new File(dir, "config.json");
+    Files.write(cf.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void end() throws Exception {
+    ps.shutdownNow();
+    for(File f: dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void reloadOnChange() throws Exception {
+    Semaphore reloads = new Semaphore(0);
+    ConfigWatcher cw = new ConfigWatcher(cf, ps, ()->reloads.release(), 50);
+    cw.start();
+    try {
+      Files.write(cf.toPath(), "{\"ttl\":10}".getBytes(StandardCharsets.UTF_8));
+      assertTrue(reloads.tryAcquire(10, TimeUnit.SECONDS));
+
+      //Replaced by a rename, the way mounted config is updated
+      File tmp = new File(dir, "config.json.tmp");
+      Files.write(tmp.toPath(), "{\"ttl\":20}".getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), cf.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      assertTrue(reloads.tryAcquire(10, TimeUnit.SECONDS));
+      assertEquals(20, TurnRestConfig.openConfigFile(cf).getTTL());
+    } finally {
+      cw.stop();
+    }
+  }
+
+  @Test
+  public void debounced() throws Exception {
+    Semaphore reloads = new Semaphore(0);
+    ConfigWatcher cw = new ConfigWatcher(cf, ps, ()->reloads.release(), 500);
+    cw.start();
+    try {
+      for(int i=0; i<5; i++) {
+        Files.write(cf.toPath(), ("{\"ttl\":"+i+"}").getBytes(StandardCharsets.UTF_8));
+      }
+      assertTrue(reloads.tryAcquire(10, TimeUnit.SECONDS));
+      Thread.sleep(1000);
+      assertEquals(0, reloads.availablePermits());
+    } finally {
+      cw.stop();
+    }
+  }
+
+  @Test
+  public void waitsForQuiet() throws Exception {
+    Semaphore reloads = new Semaphore(0);
+    ConfigWatcher cw = new ConfigWatcher(cf, ps, ()->reloads.release(), 500);
+    cw.start();
+    try {
+      //Writes keep coming for longer than the debounce, but never with a gap as long as it
+      for(int i=0; i<6; i++) {
+        Files.write(cf.toPath(), ("{\"ttl\":"+i+"}").getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(200);
+      }
+      assertEquals(0, reloads.availablePermits());
+      assertTrue(reloads.tryAcquire(10, TimeUnit.SECONDS));
+      Thread.sleep(1000);
+      assertEquals(0, reloads.availablePermits());
+    } finally {
+      cw.stop();
+    }
+  }
+}
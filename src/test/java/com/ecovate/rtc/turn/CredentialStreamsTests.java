@@ -0,0 +1,181 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.util.Clock;
+
+public class CredentialStreamsTests {
+  TurnRestConfig trc;
+  CredentialStreams streams;
+
+  @Before
+  public void start() {
+    trc = new TurnRestConfig("12312", true, new String[] {"turn:turn.test.com"}, null, null, null, null, null, 100L, null, null, "*");
+    streams = new CredentialStreams(null, ()->trc);
+  }
+
+  @After
+  public void end() {
+    Utils.resetRegistries();
+  }
+
+  @Test
+  public void firstEvent() {
+    String event = StandardCharsets.UTF_8.decode(streams.firstEvent(trc, CredentialRequest.forUser("user1"))).toString();
+    assertTrue(event.startsWith("retry: 5000\ndata: "));
+    assertTrue(event.endsWith("\n\n"));
+    TurnRestResponse trr = Utils.GSON.fromJson(event.substring(event.indexOf("data: ")+6).trim(), TurnRestResponse.class);
+    assertTrue(trr.getUsername().endsWith(":user1"));
+    assertEquals(100, trr.getTtl());
+  }
+
+  @Test
+  public void renewThenExpire() {
+    final long now = Clock.accurateTimeMillis();
+    TestSink sink = new TestSink();
+    assertTrue(streams.reserve());
+    streams.open(sink, trc, CredentialRequest.forUser("user1"), now+200000, now);
+    assertEquals(1, streams.size());
+
+    long firstRenew = -1;
+    long lastWrite = now;
+    for(long t=now+1000; t<=now+202000; t+=1000) {
+      int before = sink.events.size();
+      streams.tick(t);
+      if(sink.events.size() > before) {
+        //Never quiet for longer than the heartbeat
+        assertTrue(t - lastWrite <= 31000);
+        lastWrite = t;
+        if(firstRenew < 0 && sink.events.get(sink.events.size()-1).startsWith("data: ")) {
+          firstRenew = t;
+        }
+      }
+    }
+    //Renewed between 70% and 90% of the 100 second ttl
+    assertTrue(firstRenew - now >= 70000);
+    assertTrue(firstRenew - now <= 91000);
+    assertTrue(sink.events.contains(": ping\n\n"));
+    assertTrue(sink.closed);
+    assertEquals(0, streams.size());
+  }
+
+  @Test
+  public void droppedAndRejected() {
+    final long now = Clock.accurateTimeMillis();
+    trc = new TurnRestConfig("12312", true, new String[] {"turn:turn.test.com"}, null, null, null, null, null, 100L, null, null, "*") {
+      @Override
+      public int getMaxStreams() {
+        return 2;
+      }
+    };
+    TestSink s1 = new TestSink();
+    TestSink s2 = new TestSink();
+    assertTrue(streams.reserve());
+    streams.open(s1, trc, CredentialRequest.forUser("user1"), Long.MAX_VALUE, now);
+    assertTrue(streams.reserve());
+    streams.open(s2, trc, CredentialRequest.forUser("user2"), Long.MAX_VALUE, now);
+    //Turned away before anything is minted for it
+    assertFalse(streams.reserve());
+    assertEquals(2, streams.size());
+
+    //A client that went away is noticed on its next heartbeat
+    s1.closed = true;
+    streams.tick(now+31000);
+    assertEquals(1, streams.size());
+    assertEquals(0, s1.events.size());
+    assertEquals(1, s2.events.size());
+    assertTrue(streams.reserve());
+    streams.release();
+    assertEquals(1, streams.size());
+  }
+
+  @Test
+  public void regionalStream() throws Exception {
+    final long now = Clock.accurateTimeMillis();
+    trc = TurnRestConfig.parseConfig("{\"secretKey\":\"12312\",\"ttl\":100,\"turnURIS\":[\"turn:us.test.com\"],"
+        + "\"regions\":{\"eu\":{\"turnURIS\":[\"turn:eu.test.com\"]}}}");
+    assertEquals("eu", trc.getCompiled().getRegionName(trc.getCompiled().getRegionIndex("eu")));
+    CredentialRequest cr = CredentialRequest.forUser("user1").withRegion(trc.getCompiled().getRegionIndex("eu"));
+    assertTrue(StandardCharsets.UTF_8.decode(streams.firstEvent(trc, cr)).toString().contains("turn:eu.test.com"));
+
+    TestSink sink = new TestSink();
+    assertTrue(streams.reserve());
+    streams.open(sink, trc, cr, now+200000, now);
+    String renewal = null;
+    for(long t=now+1000; renewal == null && t<=now+100000; t+=1000) {
+      streams.tick(t);
+      for(String e: sink.events) {
+        if(e.startsWith("data: ")) {
+          renewal = e;
+        }
+      }
+    }
+    //Renewals stay in the region the stream was opened in
+    assertTrue(renewal.contains("turn:eu.test.com"));
+    assertFalse(renewal.contains("turn:us.test.com"));
+  }
+
+  @Test
+  public void relayKeyedStream() throws Exception {
+    final long now = Clock.accurateTimeMillis();
+    trc = TurnRestConfig.parseConfig("{\"secretKey\":\"12312\",\"ttl\":100,\"relayHashing\":true,\"relayFallbacks\":0,"
+        + "\"turnURIS\":[\"turn:a.test.com\",\"turn:b.test.com\",\"turn:c.test.com\"]}");
+    final CompiledTurnRestConfig ctrc = trc.getCompiled();
+    final String room = TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("anyone").withRelayKey("room1"))
+        .getIceServers().get(0).getUrls()[0];
+    //A user that would get a different relay if keyed on itself
+    String user = null;
+    for(int i=0; user == null; i++) {
+      if(!room.equals(TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("user"+i)).getIceServers().get(0).getUrls()[0])) {
+        user = "user"+i;
+      }
+    }
+    CredentialRequest cr = CredentialRequest.forUser(user).withRelayKey("room1");
+    assertTrue(StandardCharsets.UTF_8.decode(streams.firstEvent(trc, cr)).toString().contains(room));
+
+    TestSink sink = new TestSink();
+    assertTrue(streams.reserve());
+    streams.open(sink, trc, cr, now+200000, now);
+    String renewal = null;
+    for(long t=now+1000; renewal == null && t<=now+100000; t+=1000) {
+      streams.tick(t);
+      for(String e: sink.events) {
+        if(e.startsWith("data: ")) {
+          renewal = e;
+        }
+      }
+    }
+    //Renewals keep the relay of the room, not the user
+    assertTrue(renewal.contains(room));
+  }
+
+  private static class TestSink implements CredentialStreams.Sink {
+    List<String> events = new ArrayList<>();
+    boolean closed = false;
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public void write(ByteBuffer bb) {
+      events.add(StandardCharsets.UTF_8.decode(bb).toString());
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+import com.ecovate.rtc.turn.processors.PingHTTPHandler;
+
+public class HTTPRouterTests {
+
+  private static HTTPHandler makeHandler(final String name, final HTTPRoute ... routes) {
+    return new HTTPHandler() {
+      @Override
+      public ListenableFuture<SimpleResponse> handleRequest(ClientID clientID, HTTPRequest httpRequest, TurnRestConfig trc) {
+        return null;
+      }
+
+      @Override
+      public List<HTTPRoute> getRoutes() {
+        return Arrays.asList(routes);
+      }
+
+      @Override
+      public String getName() {
+        return name;
+      }
+    };
+  }
+
+  @Test
+  public void routeMatching() {
+    RequestHandler ping = (c,h,t)->null;
+    RequestHandler monitor = (c,h,t)->null;
+    RequestHandler metrics = (c,h,t)->null;
+    RequestHandler turn = (c,h,t)->null;
+    RequestHandler turnPost = (c,h,t)->null;
+    RequestHandler other = (c,h,t)->null;
+    HTTPRouter router = new HTTPRouter(Arrays.asList(
+        makeHandler("ping", HTTPRoute.exact("/ping", ping), HTTPRoute.exact("/monitor/ping", ping)),
+        makeHandler("monitor", HTTPRoute.exact("/monitor/ping", monitor), HTTPRoute.exact("/monitor/metrics", metrics), 
+            HTTPRoute.prefix("/monitor", monitor)),
+        makeHandler("turn", HTTPRoute.exact("/turn/batch", turnPost, "POST"), HTTPRoute.prefix("/turn", turn))));
+
+    assertEquals(ping, router.route("GET", "/ping").getHandler());
+    assertEquals(ping, router.route("GET", "/ping/").getHandler());
+    //First registered wins
+    assertEquals(ping, router.route("GET", "/monitor/ping").getHandler());
+    assertEquals(metrics, router.route("GET", "/monitor/metrics/").getHandler());
+    assertEquals(monitor, router.route("GET", "/monitor").getHandler());
+    assertEquals(monitor, router.route("GET", "/monitor/threads").getHandler());
+    assertEquals(turn, router.route("GET", "/turn").getHandler());
+    assertEquals(turn, router.route("GET", "/turnfoo").getHandler());
+    assertEquals(turn, router.route("GET", "/turn/batch").getHandler());
+    assertEquals(turnPost, router.route("POST", "/turn/batch").getHandler());
+    assertEquals(turnPost, router.route("post", "/turn/batch").getHandler());
+    assertNull(router.route("GET", "/tur"));
+    assertNull(router.route("GET", "/"));
+
+    router = new HTTPRouter(Arrays.asList(
+        makeHandler("ping", HTTPRoute.exact("/ping", ping)),
+        makeHandler("default", HTTPRoute.prefix("", other))));
+    assertEquals(ping, router.route("GET", "/ping").getHandler());
+    assertEquals(other, router.route("GET", "/").getHandler());
+    assertEquals(other, router.route("GET", "/pingpong").getHandler());
+  }
+
+  @Test
+  public void healthRoutesSkipAdmission() {
+    RequestHandler turn = (c,h,t)->null;
+    HTTPRouter router = new HTTPRouter(Arrays.asList(new PingHTTPHandler(),
+        makeHandler("turn", HTTPRoute.prefix("/turn", turn))));
+    assertFalse(router.route("GET", "/ping").isAdmissionControlled());
+    assertFalse(router.route("GET", "/monitor/ping").isAdmissionControlled());
+    assertTrue(router.route("GET", "/turn").isAdmissionControlled());
+    assertEquals(turn, router.route("GET", "/turn").withoutAdmission().getHandler());
+  }
+}
@@ -0,0 +1,166 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IceServerProberTests {
+  IceServerProber prober;
+  StunResponder fast;
+  StunResponder slow;
+  DatagramChannel dead;
+
+  @Before
+  public void start() throws IOException {
+    prober = new IceServerProber();
+    fast = new StunResponder(0);
+    slow = new StunResponder(40);
+    //Bound so nothing else gets the port, but never answers
+    dead = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+  }
+
+  @After
+  public void end() throws IOException {
+    prober.stopIfRunning();
+    fast.close();
+    slow.close();
+    dead.close();
+    Utils.resetRegistries();
+  }
+
+  private static int port(DatagramChannel dc) throws IOException {
+    return ((InetSocketAddress)dc.getLocalAddress()).getPort();
+  }
+
+  private void rounds(int count) throws InterruptedException {
+    for(int i=0; i<count; i++) {
+      prober.probe();
+      Thread.sleep(150);
+    }
+  }
+
+  @Test
+  public void parseTarget() {
+    assertEquals("turn.test.com:3478", IceServerProber.parseTarget("turn:turn.test.com").getName());
+    assertEquals("turn.test.com:3479", IceServerProber.parseTarget("turn:turn.test.com:3479?transport=udp").getName());
+    //Only UDP servers are probed
+    assertNull(IceServerProber.parseTarget("turn:turn.test.com:443?transport=tcp"));
+    assertNull(IceServerProber.parseTarget("turns:turn.test.com:5349"));
+    assertNull(IceServerProber.parseTarget("stuns:stun.test.com"));
+    assertEquals("stun.test.com:3478", IceServerProber.parseTarget("stun.test.com").getName());
+    assertEquals("[::1]:3480", IceServerProber.parseTarget("stun:[::1]:3480").getName());
+    assertNull(IceServerProber.parseTarget("stun:"));
+  }
+
+  @Test
+  public void filterAndOrder() throws Exception {
+    String deadURI = "turn:127.0.0.1:"+port(dead)+"?transport=udp";
+    String slowURI = "turn:127.0.0.1:"+port(slow.dc)+"?transport=udp";
+    String fastURI = "turn:127.0.0.1:"+port(fast.dc)+"?transport=udp";
+    String stunURI = "stun:127.0.0.1:"+port(fast.dc);
+    TurnRestConfig trc = new TurnRestConfig("12312", true, new String[] {deadURI, slowURI, fastURI}, 
+        new String[] {stunURI}, null, null, null, null, 100L, null, null, "*");
+    CompiledTurnRestConfig ctrc = trc.getCompiled();
+    prober.setConfigs(Arrays.asList(trc));
+    //Off, nothing changes
+    assertArrayEquals(new String[] {deadURI, slowURI, fastURI}, ctrc.getTURNURIs());
+    assertNull(prober.getHealth(fastURI));
+
+    prober.setProbing(60000, 0.5);
+    prober.start();
+    rounds(5);
+
+    assertTrue(prober.getHealth(fastURI).isHealthy());
+    assertTrue(prober.getHealth(slowURI).getRTT() > prober.getHealth(fastURI).getRTT());
+    assertFalse(prober.getHealth(deadURI).isHealthy());
+    assertEquals(1.0, prober.getHealth(deadURI).getLoss(), 0);
+    assertEquals(0, Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"ice_server_healthy",
+        new String[] {"server"}, new String[] {"127.0.0.1:"+port(dead)}), 0);
+
+    //The dead server is gone and the rest are fastest first, in the template too
+    assertArrayEquals(new String[] {fastURI, slowURI}, ctrc.getTURNURIs());
+    assertArrayEquals(new String[] {stunURI}, ctrc.getSTUNURIs());
+    TurnRestResponse trr = TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("user1"));
+    String json = StandardCharsets.UTF_8.decode(ctrc.getResponseEncoder().encode(trr)).toString();
+    assertEquals(Utils.GSON_COMPACT.toJson(trr), json);
+    assertFalse(json.contains(deadURI));
+
+    //TLS URIs are not probed so they are never left out, they go after the measured ones
+    String tlsURI = "turns:127.0.0.1:"+port(dead);
+    assertNull(prober.getHealth(tlsURI));
+    assertArrayEquals(new String[] {fastURI, tlsURI}, prober.rank(new String[] {deadURI, tlsURI, fastURI}));
+
+    //Every server down hands them all out again
+    fast.close();
+    slow.close();
+    rounds(4);
+    assertArrayEquals(new String[] {deadURI, slowURI, fastURI}, ctrc.getTURNURIs());
+
+    prober.setProbing(0, 0.5);
+    assertNull(prober.getHealth(fastURI));
+  }
+
+  @Test
+  public void probesOnItsOwn() throws Exception {
+    String fastURI = "turn:127.0.0.1:"+port(fast.dc)+"?transport=udp";
+    TurnRestConfig trc = new TurnRestConfig("12312", true, new String[] {fastURI}, 
+        null, null, null, null, null, 100L, null, null, "*");
+    prober.setConfigs(Arrays.asList(trc));
+    prober.setProbing(100, 0.5);
+    //Rounds come from the probers own thread once it is started
+    prober.start();
+    for(int i=0; i<100 && prober.getHealth(fastURI).getSamples() < 3; i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(prober.getHealth(fastURI).getSamples() >= 3);
+    assertTrue(prober.getHealth(fastURI).isHealthy());
+  }
+
+  /**
+   * Answers every binding request with a success, after a delay.
+   */
+  private static class StunResponder {
+    final DatagramChannel dc;
+
+    StunResponder(long delay) throws IOException {
+      dc = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+      Thread t = new Thread(()->{
+        ByteBuffer bb = ByteBuffer.allocate(1500);
+        while(true) {
+          try {
+            bb.clear();
+            SocketAddress from = dc.receive(bb);
+            bb.flip();
+            if(delay > 0) {
+              Thread.sleep(delay);
+            }
+            bb.putShort(0, (short)0x0101);
+            dc.send(bb, from);
+          } catch(Exception e) {
+            return;
+          }
+        }
+      });
+      t.setDaemon(true);
+      t.start();
+    }
+
+    void close() throws IOException {
+      dc.close();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.threadly.util.Clock;
+
+public class JWTCacheTests {
+
+  @Test
+  public void expiresAtTokenExp() {
+    long now = Clock.lastKnownTimeMillis();
+    JWTCache cache = new JWTCache(10, 300000);
+    assertTrue(cache.put("a", now+5000, now));
+    assertTrue(cache.isValid("a", now+4999));
+    assertFalse(cache.isValid("a", now+5000));
+    cache.expire(now+6000);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void expiresAtMaxLifetime() {
+    long now = Clock.lastKnownTimeMillis();
+    JWTCache cache = new JWTCache(10, 300000);
+    assertTrue(cache.put("a", Long.MAX_VALUE, now));
+    assertTrue(cache.isValid("a", now+299999));
+    assertFalse(cache.isValid("a", now+300000));
+    cache.expire(now+299000);
+    assertEquals(1, cache.size());
+    cache.expire(now+302000);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void alreadyExpired() {
+    long now = Clock.lastKnownTimeMillis();
+    JWTCache cache = new JWTCache(10, 300000);
+    assertFalse(cache.put("a", now-1, now));
+    assertFalse(cache.isValid("a", now));
+  }
+
+  @Test
+  public void evictsSoonestToExpire() {
+    long now = Clock.lastKnownTimeMillis();
+    JWTCache cache = new JWTCache(3, 300000);
+    assertTrue(cache.put("a", now+50000, now));
+    assertTrue(cache.put("b", now+10000, now));
+    assertTrue(cache.put("c", now+90000, now));
+    assertTrue(cache.put("d", now+60000, now));
+    assertEquals(3, cache.size());
+    assertFalse(cache.isValid("b", now));
+    assertTrue(cache.isValid("a", now));
+    assertTrue(cache.isValid("c", now));
+    assertTrue(cache.isValid("d", now));
+    //Expires before everything in the cache so it is not admitted
+    assertFalse(cache.put("e", now+2000, now));
+    assertFalse(cache.isValid("e", now));
+    assertEquals(1, cache.getEvictions());
+
+    cache.setLimits(1, 300000);
+    assertEquals(1, cache.size());
+    assertTrue(cache.isValid("c", now));
+  }
+
+  @Test
+  public void refreshKeepsEntryWhenFull() {
+    long now = Clock.lastKnownTimeMillis();
+    JWTCache cache = new JWTCache(2, 300000);
+    assertTrue(cache.put("a", now+50000, now));
+    assertTrue(cache.put("b", now+60000, now));
+    //A refresh that would not be admitted as a new entry still replaces the old one
+    assertTrue(cache.put("a", now+20000, now));
+    assertTrue(cache.isValid("a", now));
+    assertTrue(cache.isValid("b", now));
+    assertEquals(2, cache.size());
+    assertEquals(0, cache.getEvictions());
+    //A refresh that can not be added at all leaves the old entry in place
+    assertFalse(cache.put("b", now, now));
+    assertTrue(cache.isValid("b", now));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void peekEarliestAcrossLevels() {
+    long start = 0;
+    TimingWheel<String> tw = new TimingWheel<>(1000, 3, start);
+    //Lands in the first slot of the second level
+    tw.add("later", start+64000);
+    tw.advance(start+10000);
+    //Added later so it goes in the first level, but is due after the one above
+    tw.add("last", start+73000);
+    assertEquals("later", tw.peekEarliest().getItem());
+    tw.add("first", start+12000);
+    assertEquals("first", tw.peekEarliest().getItem());
+
+    //Two items in one second level slot come back by deadline, not by the order they were added
+    tw = new TimingWheel<>(1000, 3, start);
+    tw.add("b", start+120000);
+    tw.add("a", start+100000);
+    assertEquals("a", tw.peekEarliest().getItem());
+  }
+
+  @Test
+  public void timingWheelCascades() {
+    long start = 1000000;
+    TimingWheel<Long> tw = new TimingWheel<>(1000, 3, start);
+    long[] deadlines = new long[] {2000, 63000, 64000, 65000, 4095000, 4096000, 5000000, 300000000};
+    for(long d: deadlines) {
+      tw.add(d, start+d);
+    }
+    assertEquals(deadlines.length, tw.size());
+    long now = start;
+    int seen = 0;
+    while(seen < deadlines.length) {
+      now += 1000;
+      List<Long> expired = tw.advance(now);
+      for(Long d: expired) {
+        //Nothing fires early and everything below the top levels range fires on its tick
+        assertTrue(start+d <= now);
+        if(d < 262144000) {
+          assertEquals(start+d, now);
+        }
+        seen++;
+      }
+    }
+    assertEquals(0, tw.size());
+  }
+}
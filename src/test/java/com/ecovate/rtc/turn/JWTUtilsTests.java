@@ -8,14 +8,19 @@ import static org.junit.Assert.fail;
 import java.net.MalformedURLException;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.concurrent.future.ListenableFuture;
 import org.threadly.litesockets.SocketExecuter;
 import org.threadly.litesockets.ThreadedSocketExecuter;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
@@ -111,6 +116,191 @@ public class JWTUtilsTests {
     assertFalse(ju.validateJWT(cid, jwsD).get());
   }
 
+  @Test
+  public void failedJWTCache() throws Exception {
+    String jws = Jwts.builder().setSubject("Bob").signWith(badKeyPair.getPrivate()).compact();
+    ClientID cid = new ClientID();
+    DecodedJWT jwsD = JWT.decode(jws);
+
+    assertFalse(ju.validateJWT(cid, jwsD).get());
+    assertFalse(ju.validateJWT(cid, jwsD).get());
+    assertFalse(ju.validateJWT(cid, jwsD).get());
+    assertEquals(2.0, Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"jwt_failed_cache_total", 
+        new String[] {"result"}, new String[] {"hit"}), 0);
+
+    //A new key might make the JWT valid so it has to be checked again
+    ju.addStaticKey(badKeyPair.getPublic());
+    assertTrue(ju.validateJWT(cid, jwsD).get());
+  }
+
+  @Test
+  public void unreachableJWKNotCached() throws Exception {
+    String jws = Jwts.builder().setSubject("Bob").signWith(badKeyPair.getPrivate()).compact();
+    ClientID cid = new ClientID();
+    DecodedJWT jwsD = JWT.decode(jws);
+    ju.addJWKProvider("http://127.0.0.1:1/.well-known/jwks.json");
+
+    assertFalse(ju.validateJWT(cid, jwsD).get());
+    assertEquals("error", cid.getAuthResult());
+    assertTrue(cid.getJWKWait() > 0);
+    //The endpoint being down says nothing about the token so it is checked again
+    assertFalse(ju.validateJWT(cid, jwsD).get());
+    assertEquals(2.0, Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"jwt_failed_cache_total", 
+        new String[] {"result"}, new String[] {"miss"}), 0);
+  }
+
+  @Test
+  public void kidIndexedJWT() throws Exception {
+    ClientID cid = new ClientID();
+    ju.updateStaticPublicKeys(ExtraPublicKeys);
+    ju.addStaticKey(goodKeyPair.getPublic());
+
+    //kid is the hash of the static key
+    String jws = Jwts.builder().setHeaderParam("kid", ju.hashPublicKey(goodKeyPair.getPublic()))
+        .setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    //unknown kid is found by trying the keys, then remembered
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Alice").signWith(goodKeyPair.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    //A learned kid is only a hint, another configured key signing with it can not lock the first one out
+    KeyPair other = ExtraKeyPairs.iterator().next();
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Eve").signWith(other.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Carol").signWith(goodKeyPair.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    //A key that is not configured is still rejected
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Mallory").signWith(badKeyPair.getPrivate()).compact();
+    assertFalse(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    //Once the key is removed the kid is forgotten
+    ju.removeStaticKey(goodKeyPair.getPublic());
+    jws = Jwts.builder().setHeaderParam("kid", "service1").setSubject("Eve2").signWith(other.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+  }
+
+  @Test
+  public void updateKeysSwap() throws Exception {
+    ClientID cid = new ClientID();
+    String good = Base64.getEncoder().encodeToString(goodKeyPair.getPublic().getEncoded());
+    String bad = Base64.getEncoder().encodeToString(badKeyPair.getPublic().getEncoded());
+    String goodJWS = Jwts.builder().setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
+    String badJWS = Jwts.builder().setSubject("Bob").signWith(badKeyPair.getPrivate()).compact();
+
+    //A key that can not be decoded fails the whole update
+    try {
+      ju.updateKeys(new HashSet<>(), new HashSet<>(Arrays.asList(bad, "notakey")));
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+    assertTrue(ju.getStaticKeys().contains(ju.hashPublicKey(good)));
+    assertFalse(ju.getStaticKeys().contains(ju.hashPublicKey(bad)));
+
+    //Rotating from one key to the other in one update
+    ju.updateKeys(new HashSet<>(), new HashSet<>(Arrays.asList(bad)));
+    assertEquals(1, ju.getStaticKeys().size());
+    assertTrue(ju.getStaticKeys().contains(ju.hashPublicKey(bad)));
+    assertTrue(ju.validateJWT(cid, JWT.decode(badJWS)).get());
+    assertFalse(ju.validateJWT(cid, JWT.decode(goodJWS)).get());
+
+    ju.updateKeys(new HashSet<>(), new HashSet<>(Arrays.asList(good)));
+    assertEquals(1, ju.getStaticKeys().size());
+    //A token that failed before is checked again against the new key
+    assertTrue(ju.validateJWT(cid, JWT.decode(goodJWS)).get());
+    ju.clearJWTCache();
+    assertFalse(ju.validateJWT(cid, JWT.decode(badJWS)).get());
+  }
+
+  @Test
+  public void staticKeyInline() throws Exception {
+    ClientID cid = new ClientID();
+
+    //Nothing needs a JWK endpoint and there are few keys so the result is known before validateJWT returns
+    String jws = Jwts.builder().setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
+    ListenableFuture<Boolean> lf = ju.validateJWT(cid, JWT.decode(jws));
+    assertTrue(lf.isDone());
+    assertTrue(lf.get());
+
+    jws = Jwts.builder().setSubject("Bob").signWith(badKeyPair.getPrivate()).compact();
+    lf = ju.validateJWT(cid, JWT.decode(jws));
+    assertTrue(lf.isDone());
+    assertFalse(lf.get());
+
+    //With many keys to try the work is handed to the scheduler, the answers are the same
+    ju.updateStaticPublicKeys(ExtraPublicKeys);
+    ju.addStaticKey(goodKeyPair.getPublic());
+    ju.clearJWTCache();
+    jws = Jwts.builder().setSubject("Alice").signWith(goodKeyPair.getPrivate()).compact();
+    assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+    jws = Jwts.builder().setSubject("Alice").signWith(badKeyPair.getPrivate()).compact();
+    assertFalse(ju.validateJWT(cid, JWT.decode(jws)).get());
+  }
+
+  @Test
+  public void concurrentStaticKeyCoalesced() throws Exception {
+    ju.updateStaticPublicKeys(ExtraPublicKeys);
+    ju.addStaticKey(goodKeyPair.getPublic());
+    String jws = Jwts.builder().setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
+    DecodedJWT djwt = JWT.decode(jws);
+    List<ListenableFuture<Boolean>> futures = new ArrayList<>();
+    for(int i=0; i<10; i++) {
+      futures.add(ju.validateJWT(new ClientID(), djwt));
+    }
+    for(ListenableFuture<Boolean> lf: futures) {
+      assertTrue(lf.get());
+    }
+    //Every copy joins the first check or finds its result cached, so the keys are only tried once
+    double verifies = Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"request_stage_seconds_count", 
+        new String[] {"stage"}, new String[] {"verify_static"});
+    assertTrue(verifies >= 1 && verifies <= ExtraPublicKeys.size()+1);
+  }
+
+  @Test
+  public void signedJWTChecks() throws Exception {
+    ClientID cid = new ClientID();
+
+    String jws;
+    for(SignatureAlgorithm sa: new SignatureAlgorithm[] {SignatureAlgorithm.ES256, SignatureAlgorithm.ES512}) {
+      KeyPair ecKeyPair = Keys.keyPairFor(sa);
+      ju.addStaticKey(ecKeyPair.getPublic());
+      jws = Jwts.builder().setSubject("Bob").signWith(ecKeyPair.getPrivate()).compact();
+      assertTrue(ju.validateJWT(cid, JWT.decode(jws)).get());
+    }
+
+    jws = Jwts.builder().setSubject("Bob").setExpiration(new Date(System.currentTimeMillis()-60000))
+        .signWith(goodKeyPair.getPrivate()).compact();
+    assertFalse(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    jws = Jwts.builder().setSubject("Bob").setNotBefore(new Date(System.currentTimeMillis()+60000))
+        .signWith(goodKeyPair.getPrivate()).compact();
+    assertFalse(ju.validateJWT(cid, JWT.decode(jws)).get());
+
+    //Unsigned tokens are never accepted
+    jws = Jwts.builder().setSubject("Bob").compact();
+    assertFalse(ju.validateJWT(cid, JWT.decode(jws)).get());
+  }
+
+  @Test
+  public void checkScopes() throws Exception {
+    List<String> required = Arrays.asList("turn", "batch");
+    String jws = Jwts.builder().setSubject("Bob").claim("scp", Arrays.asList("turn", "batch")).compact();
+    assertTrue(ju.checkScopes(required, true, JWT.decode(jws)));
+    //The same scope twice, or in both claims, is not two scopes
+    jws = Jwts.builder().setSubject("Bob").claim("scp", Arrays.asList("turn", "turn")).compact();
+    assertFalse(ju.checkScopes(required, true, JWT.decode(jws)));
+    assertTrue(ju.checkScopes(required, false, JWT.decode(jws)));
+    jws = Jwts.builder().setSubject("Bob").claim("scp", Arrays.asList("turn"))
+        .claim("scopes", Arrays.asList("turn")).compact();
+    assertFalse(ju.checkScopes(required, true, JWT.decode(jws)));
+    jws = Jwts.builder().setSubject("Bob").claim("scp", Arrays.asList("turn"))
+        .claim("scopes", Arrays.asList("batch")).compact();
+    assertTrue(ju.checkScopes(required, true, JWT.decode(jws)));
+  }
+
   @Test
   public void testGetJWT() throws JWTDecodeException {
     String jws = Jwts.builder().setSubject("Bob").signWith(goodKeyPair.getPrivate()).compact();
@@ -0,0 +1,108 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.request.HTTPRequestBuilder;
+import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
+
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+import com.ecovate.rtc.turn.processors.MonitorHTTPHandler;
+
+import io.prometheus.client.Counter;
+
+public class MonitorHTTPHandlerTests {
+
+  @After
+  public void stop() {
+    Utils.resetRegistries();
+  }
+
+  @Test
+  public void gzipScrape() throws Exception {
+    Counter c = Counter.build().name("monitor_test_total").help("test").labelNames("name").register(Utils.getMetricsRegistry());
+    //Not ASCII so the length in bytes is not the length in chars
+    c.labels("caf\u00e9").inc();
+    MonitorHTTPHandler mh = new MonitorHTTPHandler();
+    RequestHandler metrics = null;
+    for(HTTPRoute r: mh.getRoutes()) {
+      if(r.getPath().equals("/monitor/metrics")) {
+        metrics = r.getHandler();
+      }
+    }
+
+    SimpleResponse plain = metrics.handleRequest(new ClientID(), request(null), null).get();
+    byte[] body = bytes(plain.getBody());
+    assertEquals(Integer.toString(body.length), plain.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    assertNull(plain.getHr().getHeaders().getHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER));
+    assertTrue(new String(body, StandardCharsets.UTF_8).contains("monitor_test_total{name=\"caf\u00e9\",} 1.0"));
+
+    SimpleResponse gzip = metrics.handleRequest(new ClientID(), request("deflate, gzip"), null).get();
+    byte[] gzBody = bytes(gzip.getBody());
+    assertEquals("gzip", gzip.getHr().getHeaders().getHeader(HTTPUtils.HTTP_CONTENT_ENCODING_HEADER));
+    assertEquals(Integer.toString(gzBody.length), gzip.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    assertArrayEquals(body, gunzip(gzBody));
+
+    //Served from the cache until the next render
+    assertSame(plain, metrics.handleRequest(new ClientID(), request(null), null).get());
+    c.labels("other").inc();
+    mh.renderMetrics();
+    SimpleResponse next = metrics.handleRequest(new ClientID(), request(null), null).get();
+    assertNotSame(plain, next);
+    assertTrue(new String(bytes(next.getBody()), StandardCharsets.UTF_8).contains("name=\"other\""));
+    //The earlier response is left as it was
+    assertArrayEquals(body, bytes(plain.getBody()));
+
+    assertTrue(HTTPUtils.acceptsGzip(request("gzip")));
+    assertTrue(HTTPUtils.acceptsGzip(request("br, GZIP;q=0.5")));
+    assertTrue(HTTPUtils.acceptsGzip(request("*")));
+    assertFalse(HTTPUtils.acceptsGzip(request("gzip;q=0")));
+    assertFalse(HTTPUtils.acceptsGzip(request("gzip; q=0.0")));
+    assertFalse(HTTPUtils.acceptsGzip(request("identity")));
+    //gzip named on its own wins over *
+    assertFalse(HTTPUtils.acceptsGzip(request("*;q=0.5, gzip;q=0")));
+    assertTrue(HTTPUtils.acceptsGzip(request("*;q=0, gzip")));
+    assertFalse(HTTPUtils.acceptsGzip(request("br, *;q=0")));
+    assertFalse(HTTPUtils.acceptsGzip(request(null)));
+  }
+
+  static HTTPRequest request(String acceptEncoding) {
+    HTTPRequestBuilder hrb = new HTTPRequestBuilder();
+    if(acceptEncoding != null) {
+      hrb.setHeader(HTTPUtils.HTTP_ACCEPT_ENCODING_HEADER, acceptEncoding);
+    }
+    return hrb.buildHTTPRequest();
+  }
+
+  static byte[] bytes(ByteBuffer bb) {
+    byte[] ba = new byte[bb.remaining()];
+    bb.get(ba);
+    return ba;
+  }
+
+  static byte[] gunzip(byte[] ba) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try(GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(ba))) {
+      byte[] buf = new byte[4096];
+      int read;
+      while((read = gz.read(buf)) > 0) {
+        baos.write(buf, 0, read);
+      }
+    }
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,58 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTests {
+
+  @Test
+  public void burstThenRefill() {
+    RateLimiter rl = new RateLimiter();
+    rl.setLimit(10, 5);
+    long now = 1000;
+    for(int i=0; i<5; i++) {
+      assertTrue(rl.tryAcquire("1.2.3.4", now));
+    }
+    assertFalse(rl.tryAcquire("1.2.3.4", now));
+    //Other keys have their own bucket
+    assertTrue(rl.tryAcquire("1.2.3.5", now));
+
+    //10 per second is one every 100ms
+    assertFalse(rl.tryAcquire("1.2.3.4", now+50));
+    assertTrue(rl.tryAcquire("1.2.3.4", now+150));
+    assertFalse(rl.tryAcquire("1.2.3.4", now+150));
+  }
+
+  @Test
+  public void disabled() {
+    RateLimiter rl = new RateLimiter();
+    assertFalse(rl.isEnabled());
+    for(int i=0; i<1000; i++) {
+      assertTrue(rl.tryAcquire("user", 0));
+    }
+    assertEquals(0, rl.size());
+  }
+
+  @Test
+  public void expireAndBound() {
+    RateLimiter rl = new RateLimiter(128);
+    rl.setLimit(1, 2);
+    for(int i=0; i<1000; i++) {
+      rl.tryAcquire("key"+i, 0);
+    }
+    //Never more than the max, spread over the stripes
+    assertTrue(rl.size() <= 128);
+
+    rl.tryAcquire("busy", 500);
+    rl.tryAcquire("busy", 500);
+    //Only the full buckets go, the one still refilling is kept
+    rl.expire(1000);
+    assertEquals(1, rl.size());
+    assertFalse(rl.tryAcquire("busy", 1000));
+    rl.expire(10000);
+    assertEquals(0, rl.size());
+  }
+}
@@ -0,0 +1,132 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.threadly.litesockets.protocols.http.request.HTTPRequestBuilder;
+
+public class RegionMapTests {
+  static final Map<String, Integer> REGIONS = new HashMap<>();
+  static {
+    REGIONS.put("us", 0);
+    REGIONS.put("eu", 1);
+    REGIONS.put("office", 2);
+  }
+
+  File mapFile;
+
+  @After
+  public void stop() {
+    if(mapFile != null) {
+      mapFile.delete();
+    }
+  }
+
+  @Test
+  public void nestedRanges() {
+    RegionMap rm = RegionMap.parse(Arrays.asList(
+        "# comment",
+        "10.0.0.0/8 us",
+        "",
+        "10.1.0.0/16   eu",
+        "10.1.2.0/24 office",
+        "10.255.255.255/32 eu",
+        "2001:db8::/32 eu",
+        "2001:db8:1::/48 us"), REGIONS);
+    assertEquals(0, rm.lookup("10.0.0.1"));
+    assertEquals(1, rm.lookup("10.1.0.0"));
+    assertEquals(2, rm.lookup("10.1.2.200"));
+    //Back out of the /24 into the /16 and then the /8
+    assertEquals(1, rm.lookup("10.1.3.0"));
+    assertEquals(0, rm.lookup("10.2.0.0"));
+    assertEquals(1, rm.lookup("10.255.255.255"));
+    assertEquals(RegionMap.NO_REGION, rm.lookup("11.0.0.0"));
+    assertEquals(RegionMap.NO_REGION, rm.lookup("9.255.255.255"));
+    assertEquals(1, rm.lookup("2001:db8::1"));
+    assertEquals(0, rm.lookup("2001:0db8:0001:ffff:ffff:ffff:ffff:ffff"));
+    assertEquals(1, rm.lookup("2001:db8:2::"));
+    assertEquals(RegionMap.NO_REGION, rm.lookup("2001:db9::"));
+    //IPv4 mapped addresses are the IPv4 address
+    assertEquals(2, rm.lookup("::ffff:10.1.2.3"));
+    assertEquals(2, rm.lookup("::ffff:a01:203"));
+  }
+
+  @Test
+  public void everything() {
+    RegionMap rm = RegionMap.parse(Arrays.asList("::/0 us", "0.0.0.0/0 eu", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff/128 office"), REGIONS);
+    assertEquals(0, rm.lookup("::"));
+    assertEquals(1, rm.lookup("1.2.3.4"));
+    assertEquals(0, rm.lookup("fe80::1"));
+    assertEquals(2, rm.lookup("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+  }
+
+  @Test
+  public void addressForms() {
+    RegionMap rm = RegionMap.parse(Arrays.asList("192.168.0.0/16 us", "fe80::/10 eu"), REGIONS);
+    assertEquals(0, rm.lookupForwarded("8.8.8.8, 192.168.4.4"));
+    assertEquals(0, rm.lookupForwarded(" 192.168.4.4:5555 "));
+    assertEquals(RegionMap.NO_REGION, rm.lookupForwarded("192.168.4.4, 8.8.8.8"));
+    assertEquals(RegionMap.NO_REGION, rm.lookupForwarded(null));
+    assertEquals(1, rm.lookupForwarded("[fe80::1]:443"));
+    assertEquals(1, rm.lookup("fe80::1%eth0"));
+    for(String bad: new String[] {"", "192.168.1", "192.168.1.256", "192.168.1.1.1", "fe80:::1", "fe80::1::2", 
+        "fe80:1", "fe80::12345", "1:2:3:4:5:6:7", "fe80::g", "fe80:"}) {
+      assertEquals(bad, RegionMap.NO_REGION, rm.lookup(bad));
+    }
+  }
+
+  @Test
+  public void badFiles() {
+    for(String line: new String[] {"10.0.0.0/8", "10.0.0.0/8 mars", "10.0.0.0/33 us", "10.0.0/8 us", "::/129 us", "10.0.0.0/x us"}) {
+      try {
+        RegionMap.parse(Arrays.asList(line), REGIONS);
+        assertTrue(line, false);
+      } catch(IllegalArgumentException e) {
+      }
+    }
+  }
+
+  @Test
+  public void regionalResponses() throws Exception {
+    mapFile = File.createTempFile("regions", ".txt");
+    Files.write(mapFile.toPath(), "10.0.0.0/8 eu\n".getBytes(StandardCharsets.UTF_8));
+    TurnRestConfig trc = TurnRestConfig.parseConfig("{\"secretKey\":\"12312\",\"ttl\":100,\"credentialReuseWindow\":60,"
+        + "\"turnURIS\":[\"turn:us.test.com\"],\"stunURIS\":[\"stun:us.test.com\"],"
+        + "\"regionMapFile\":"+Utils.GSON.toJson(mapFile.getAbsolutePath())+","
+        + "\"regions\":{\"eu\":{\"turnURIS\":[\"turn:eu.test.com\"]}}}");
+    CompiledTurnRestConfig ctrc = trc.getCompiled();
+    int eu = ctrc.getRegion(new HTTPRequestBuilder().setHeader("X-Forwarded-For", "1.1.1.1, 10.2.3.4").buildHTTPRequest());
+    assertEquals(0, eu);
+    assertEquals(RegionMap.NO_REGION, ctrc.getRegion(new HTTPRequestBuilder().setHeader("X-Forwarded-For", "1.1.1.1").buildHTTPRequest()));
+    assertEquals(RegionMap.NO_REGION, ctrc.getRegion(new HTTPRequestBuilder().buildHTTPRequest()));
+
+    TurnRestResponse trr = TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("alice").withRegion(eu));
+    assertArrayEquals(new String[] {"turn:eu.test.com"}, trr.getIceServers().get(0).getUrls());
+    //STUN was left out of the region so it is the top level one
+    assertArrayEquals(new String[] {"stun:us.test.com"}, trr.getIceServers().get(1).getUrls());
+    assertEquals(Utils.GSON_COMPACT.toJson(trr), StandardCharsets.UTF_8.decode(ctrc.getResponseEncoder().encode(trr)).toString());
+    assertArrayEquals(new String[] {"turn:us.test.com"}, 
+        TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("alice")).getIceServers().get(0).getUrls());
+
+    //Reused credentials are kept per region
+    CredentialCache cc = ctrc.getCredentialCache();
+    CredentialRequest alice = CredentialRequest.forUser("alice");
+    String inEU = StandardCharsets.UTF_8.decode(cc.get(alice.withRegion(eu), 1000).getBody()).toString();
+    String outside = StandardCharsets.UTF_8.decode(cc.get(alice, 1000).getBody()).toString();
+    assertTrue(inEU.contains("turn:eu.test.com"));
+    assertTrue(outside.contains("turn:us.test.com"));
+    //A relay key can not be mistaken for a region
+    assertTrue(cc.get(alice.withRegion(1), 1000) != cc.get(alice.withRelayKey("1"), 1000));
+    assertTrue(cc.get(alice.withRelayKey("1"), 1000) == cc.get(alice.withRelayKey("1"), 1000));
+  }
+}
@@ -0,0 +1,89 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RelayRingTests {
+  static final String[] RELAYS = new String[] {"turn:a.test.com", "turn:b.test.com", "turn:c.test.com", "turn:d.test.com"};
+  static final String[] STUN = new String[] {"stun:stun.test.com"};
+
+  @Test
+  public void stableOrder() {
+    RelayRing ring = new RelayRing(RELAYS, Collections.emptyMap(), 1, STUN, 100);
+    RelayRing ring2 = new RelayRing(RELAYS, Collections.emptyMap(), 1, STUN, 100);
+    RelayRing.Order o = ring.order("alice");
+    assertEquals(2, o.getURIs().length);
+    //Same order, and the same template, every time
+    assertSame(o, ring.order("alice"));
+    assertArrayEquals(o.getURIs(), ring2.order("alice").getURIs());
+    assertNotNull(o.getEncoder());
+  }
+
+  @Test
+  public void spreadAndMinimalMoves() {
+    RelayRing ring = new RelayRing(RELAYS, Collections.emptyMap(), 3, STUN, 100);
+    RelayRing smaller = new RelayRing(Arrays.copyOf(RELAYS, 3), Collections.emptyMap(), 2, STUN, 100);
+    HashMap<String, Integer> primaries = new HashMap<>();
+    int moved = 0;
+    final int users = 20000;
+    for(int i=0; i<users; i++) {
+      String user = "user"+i;
+      String primary = ring.order(user).getURIs()[0];
+      primaries.merge(primary, 1, Integer::sum);
+      String after = smaller.order(user).getURIs()[0];
+      if(!primary.equals(after)) {
+        //Only users of the removed relay move, and they go to their first fallback
+        assertEquals(RELAYS[3], primary);
+        assertEquals(ring.order(user).getURIs()[1], after);
+        moved++;
+      }
+    }
+    for(String relay: RELAYS) {
+      assertTrue(Math.abs(primaries.get(relay) - users/4) < users/20);
+    }
+    assertEquals((int)primaries.get(RELAYS[3]), moved);
+  }
+
+  @Test
+  public void weighted() {
+    Map<String, Double> weights = new HashMap<>();
+    weights.put(RELAYS[0], 3.0);
+    RelayRing ring = new RelayRing(Arrays.copyOf(RELAYS, 2), weights, 1, STUN, 100);
+    int first = 0;
+    for(int i=0; i<20000; i++) {
+      if(ring.order("user"+i).getURIs()[0].equals(RELAYS[0])) {
+        first++;
+      }
+    }
+    //3 to 1 is 75%
+    assertTrue(Math.abs(first - 15000) < 1000);
+  }
+
+  @Test
+  public void inResponses() throws Exception {
+    TurnRestConfig trc = TurnRestConfig.parseConfig("{\"secretKey\":\"12312\",\"ttl\":100,\"relayHashing\":true,\"relayFallbacks\":1,"
+        + "\"turnURIS\":[\"turn:a.test.com\",\"turn:b.test.com\",\"turn:c.test.com\"],\"stunURIS\":[\"stun:stun.test.com\"]}");
+    CompiledTurnRestConfig ctrc = trc.getCompiled();
+    TurnRestResponse trr = TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("alice"));
+    String[] urls = trr.getIceServers().get(0).getUrls();
+    assertEquals(2, urls.length);
+    assertArrayEquals(urls, TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("alice")).getIceServers().get(0).getUrls());
+    //Keyed by room instead everyone in it gets the same relays
+    assertArrayEquals(
+        TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("bob").withRelayKey("room1")).getIceServers().get(0).getUrls(),
+        TurnRestResponse.makeResponse(ctrc, CredentialRequest.forUser("carol").withRelayKey("room1")).getIceServers().get(0).getUrls());
+    //The configs encoder hands off to the orders template
+    assertEquals(Utils.GSON_COMPACT.toJson(trr), StandardCharsets.UTF_8.decode(ctrc.getResponseEncoder().encode(trr)).toString());
+  }
+}
@@ -0,0 +1,96 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.litesockets.protocols.http.request.HTTPRequest;
+import org.threadly.litesockets.protocols.http.request.HTTPRequestBuilder;
+import org.threadly.litesockets.protocols.http.shared.HTTPConstants;
+import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
+
+import com.ecovate.rtc.turn.RequestStages.Stage;
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+import com.ecovate.rtc.turn.processors.PingHTTPHandler;
+import com.ecovate.rtc.turn.processors.TurnRestHTTPHandler;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+
+public class RequestStagesTests {
+  PriorityScheduler ps = null;
+  JWTUtils ju = null;
+  KeyPair keyPair = null;
+
+  @Before
+  public void start() {
+    keyPair = Keys.keyPairFor(SignatureAlgorithm.RS256);
+    ps = new PriorityScheduler(2);
+    ju = new JWTUtils(ps);
+    ju.addStaticKey(keyPair.getPublic());
+  }
+
+  @After
+  public void end() {
+    ju.reset();
+    ju.stopIfRunning();
+    ps.shutdownNow();
+    Utils.resetRegistries();
+  }
+
+  private static double count(Stage stage) {
+    Double d = Utils.getMetricsRegistry().getSampleValue(TurnRest.TURN_REST+"request_stage_seconds_count",
+        new String[] {"stage"}, new String[] {stage.getLabel()});
+    return d == null ? 0 : d;
+  }
+
+  @Test
+  public void observeTest() {
+    RequestStages stages = ju.getStages();
+    for(Stage s: Stage.values()) {
+      assertEquals(0, count(s), 0);
+    }
+    stages.observe(Stage.WRITE, System.nanoTime());
+    stages.observe(Stage.WRITE, System.nanoTime());
+    stages.observe(Stage.QUEUE, System.nanoTime());
+    assertEquals(2, count(Stage.WRITE), 0);
+    assertEquals(1, count(Stage.QUEUE), 0);
+    assertEquals(0, count(Stage.MINT), 0);
+  }
+
+  @Test
+  public void onlyTurnRoutesTimed() {
+    HTTPRouter router = new HTTPRouter(Arrays.asList(new PingHTTPHandler(), new TurnRestHTTPHandler(ju)));
+    assertTrue(router.route("GET", "/turn").isStageTimed());
+    assertTrue(router.route("POST", "/turn/batch").isStageTimed());
+    assertFalse(router.route("GET", "/ping").isStageTimed());
+    assertFalse(router.route("GET", "/monitor/ping").isStageTimed());
+  }
+
+  @Test
+  public void staticKeyRequestTest() throws Exception {
+    TurnRestHTTPHandler handler = new TurnRestHTTPHandler(ju);
+    TurnRestConfig trc = new TurnRestConfig("12312", false, new String[] {"turn:turn.test.com"}, null,
+        null, null, null, null, 15000L, null, null, "*");
+    String jws = Jwts.builder().setSubject("Bob").signWith(keyPair.getPrivate()).compact();
+    HTTPRequest hr = new HTTPRequestBuilder().setHeader(HTTPConstants.HTTP_KEY_AUTHORIZATION, "Bearer "+jws).buildHTTPRequest();
+    for(int i=0; i<2; i++) {
+      assertEquals(HTTPResponseCode.OK, handler.handleRequest(new ClientID(), hr, trc).get().getHr().getResponseCode());
+    }
+    assertEquals(2, count(Stage.JWT_DECODE), 0);
+    assertEquals(2, count(Stage.CACHE_PROBE), 0);
+    assertEquals(2, count(Stage.MINT), 0);
+    //The second request is a cache hit and skips verification
+    assertTrue(count(Stage.VERIFY_STATIC) >= 1);
+    assertEquals(0, count(Stage.VERIFY_JWK), 0);
+    assertEquals(0, count(Stage.JWK_FETCH), 0);
+  }
+}
@@ -0,0 +1,128 @@
+package com.ecovate.rtc.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.util.Base64;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.PriorityScheduler;
+
+import com.auth0.jwt.JWT;
+import com.ecovate.rtc.turn.TurnRest.ClientID;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+
+public class TenantsTests {
+  PriorityScheduler ps;
+  JWTUtils ju;
+  Tenants tenants;
+  KeyPair acmeKeys;
+  KeyPair otherKeys;
+
+  @Before
+  public void start() {
+    ps = new PriorityScheduler(2);
+    ju = new JWTUtils(ps);
+    tenants = new Tenants(ju);
+    acmeKeys = Keys.keyPairFor(SignatureAlgorithm.RS256);
+    otherKeys = Keys.keyPairFor(SignatureAlgorithm.RS256);
+  }
+
+  @After
+  public void end() {
+    ju.reset();
+    ps.shutdownNow();
+    Utils.resetRegistries();
+  }
+
+  private TurnRestConfig config(String acmeHost) throws Exception {
+    return TurnRestConfig.parseConfig("{\"secretKey\":\"root\",\"tenants\":{"
+        + "\"acme\":{\"secretKey\":\"acmeSecret\",\"hosts\":[\""+acmeHost+"\"],\"jwtPublicKeys\":[\""
+        + Base64.getEncoder().encodeToString(acmeKeys.getPublic().getEncoded())+"\"]},"
+        + "\"other\":{\"secretKey\":\"otherSecret\",\"jwtPublicKeys\":[\""
+        + Base64.getEncoder().encodeToString(otherKeys.getPublic().getEncoded())+"\"]}}}");
+  }
+
+  @Test
+  public void lookup() throws Exception {
+    TurnRestConfig trc = config("Turn.Acme.com");
+    Tenants.validate(trc);
+    tenants.update(trc);
+    assertEquals(2, tenants.size());
+
+    TurnRestConfig acme = tenants.forPath("/turn/acme");
+    assertEquals("acme", acme.getTenant());
+    assertEquals("acmeSecret", acme.getSecretKey());
+    assertSame(acme, tenants.forPath("/turn/acme/stream"));
+    assertEquals("/turn/stream", Tenants.stripTenant("/turn/acme/stream", "acme"));
+    assertEquals("/turn", Tenants.stripTenant("/turn/acme", "acme"));
+    assertNull(tenants.forPath("/turn"));
+    assertNull(tenants.forPath("/turn/batch"));
+    assertNull(tenants.forPath("/turnacme"));
+
+    assertSame(acme, tenants.forHost("turn.acme.com"));
+    assertSame(acme, tenants.forHost("TURN.acme.com:8443"));
+    assertNull(tenants.forHost("turn.other.com"));
+    assertNull(tenants.forHost(null));
+  }
+
+  @Test
+  public void separateKeys() throws Exception {
+    tenants.update(config("turn.acme.com"));
+    TurnRestConfig acme = tenants.get("acme");
+    TurnRestConfig other = tenants.get("other");
+    assertNotSame(acme.getJWTUtils(), other.getJWTUtils());
+    assertTrue(ju.getStaticKeys().isEmpty());
+
+    String jws = Jwts.builder().setSubject("Bob").signWith(acmeKeys.getPrivate()).compact();
+    assertTrue(acme.getJWTUtils().validateJWT(new ClientID(), JWT.decode(jws)).get());
+    assertFalse(other.getJWTUtils().validateJWT(new ClientID(), JWT.decode(jws)).get());
+
+    //The partition, and what it has cached, survives a reload
+    JWTUtils acmeJU = acme.getJWTUtils();
+    tenants.update(config("turn.acme.com"));
+    assertSame(acmeJU, tenants.get("acme").getJWTUtils());
+
+    Tenants.Snapshot before = tenants.current();
+    TurnRestConfig root = TurnRestConfig.parseConfig("{\"secretKey\":\"root\"}");
+    tenants.update(root);
+    assertEquals(0, tenants.size());
+    assertNull(tenants.forHost("turn.acme.com"));
+    assertTrue(acmeJU.getStaticKeys().isEmpty());
+    //The config and its tenants are swapped together, an older snapshot keeps both of its own
+    assertSame(root, tenants.getRoot());
+    assertNotSame(root, before.getRoot());
+    assertEquals("acme", before.forHost("turn.acme.com").getTenant());
+  }
+
+  @Test
+  public void validate() throws Exception {
+    try {
+      Tenants.validate(TurnRestConfig.parseConfig("{\"tenants\":{\"stream\":{}}}"));
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+    try {
+      Tenants.validate(TurnRestConfig.parseConfig("{\"tenants\":{\"a\":{\"hosts\":[\"x.com\"]},\"b\":{\"hosts\":[\"X.com\"]}}}"));
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+    try {
+      Tenants.validate(TurnRestConfig.parseConfig("{\"tenants\":{\"a\":{\"jwtPublicKeys\":[\"notakey\"]}}}"));
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+    Tenants.validate(TurnRestConfig.parseConfig("{\"tenants\":{\"a\":{\"hosts\":[\"x.com\"]},\"b\":{\"hosts\":[\"y.com\"]}}}"));
+  }
+}
@@ -1,17 +1,26 @@
 package com.ecovate.rtc.turn;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.Base64;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.concurrent.wrapper.SubmitterExecutorAdapter;
 import org.threadly.litesockets.SocketExecuter;
 import org.threadly.litesockets.ThreadedSocketExecuter;
 import org.threadly.litesockets.protocols.http.request.HTTPRequest;
@@ -21,6 +30,8 @@ import org.threadly.litesockets.protocols.http.shared.HTTPResponseCode;
 import org.threadly.util.StringUtils;
 
 import com.auth0.jwk.JwkException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.ecovate.rtc.turn.TurnRest.ClientID;
 import com.ecovate.rtc.turn.processors.TurnRestHTTPHandler;
 
@@ -89,5 +100,179 @@ public class TurnRestResponseTests {
     assertEquals(password, trr.getPassword());
   }
 
+  @Test
+  public void hmacPasswordTest() throws Exception {
+    TurnRestConfig trc = new TurnRestConfig("12312", false, new String[] {"turn:turn.test.com"}, new String[] {"stun:stun.test.com"}, 
+        null, null, null, null, 15000L, null, null, "*");
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec("12312".getBytes(), "HmacSHA1"));
+    for(int i=0; i<3; i++) {
+      TurnRestResponse trr = TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser(userName));
+      assertTrue(trr.getUsername().endsWith(":"+userName));
+      assertEquals(Base64.getEncoder().encodeToString(mac.doFinal(trr.getUsername().getBytes())), trr.getPassword());
+      assertEquals(2, trr.getIceServers().size());
+      assertEquals(trr.getPassword(), trr.getIceServers().get(0).getCredential());
+      assertEquals("stun:stun.test.com", trr.getIceServers().get(1).getUrls()[0]);
+    }
+  }
+
+  @Test
+  public void urlsNotSharedTest() throws Exception {
+    TurnRestConfig trc = new TurnRestConfig("12312", false, new String[] {"turn:turn.test.com"}, null, 
+        null, null, null, null, 15000L, null, null, "*");
+    TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser(userName))
+        .getIceServers().get(0).getUrls()[0] = "turn:evil.test.com";
+    TurnRestResponse trr = TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser(userName));
+    assertEquals("turn:turn.test.com", trr.getIceServers().get(0).getUrls()[0]);
+    assertTrue(Utils.GSON_COMPACT.toJson(trr).contains("turn:turn.test.com"));
+  }
+
+  @Test
+  public void encoderTest() throws Exception {
+    TurnRestConfig trc = new TurnRestConfig("12312", false, new String[] {"turn:turn.test.com", "turns:turn.test.com"}, new String[] {"stun:stun.test.com"}, 
+        null, null, null, null, 15000L, null, null, "*");
+    TurnRestResponseEncoder tre = trc.getCompiled().getResponseEncoder();
+    for(String user: new String[] {userName, "bob \"the\" \\user", "b\u00f6b\n"}) {
+      TurnRestResponse trr = TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser(user));
+      ByteBuffer bb = tre.encode(trr);
+      byte[] ba = new byte[bb.remaining()];
+      bb.get(ba);
+      assertEquals(Utils.GSON_COMPACT.toJson(trr), new String(ba, StandardCharsets.UTF_8));
+    }
+    //Different ttl than the template falls back to a full serialization
+    TurnRestResponse trr = TurnRestResponse.makeResponse(trc.getCompiled(), CredentialRequest.forUser(userName).withTTL(100));
+    ByteBuffer bb = tre.encode(trr);
+    byte[] ba = new byte[bb.remaining()];
+    bb.get(ba);
+    assertEquals(Utils.GSON_COMPACT.toJson(trr), new String(ba, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void batchTest() throws Exception {
+    TurnRestHTTPHandler handler = new TurnRestHTTPHandler(ju, null, ps, null);
+    TurnRestConfig trc = new TurnRestConfig("12312", true, new String[] {"turn:turn.test.com"}, null, 
+        null, null, null, null, 15000L, null, null, "*");
+    HTTPRequest hr = new HTTPRequestBuilder().buildHTTPRequest();
+    StringBuilder sb = new StringBuilder("{\"users\":[");
+    for(int i=0; i<600; i++) {
+      if(i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"username\":\"user").append(i).append('"');
+      if(i == 1) {
+        sb.append(",\"ttl\":100");
+      } else if(i == 2) {
+        sb.append(",\"ttl\":1000000");
+      }
+      sb.append('}');
+    }
+    sb.append("]}");
+    ByteBuffer body = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    SimpleResponse sr = handler.handleBatch(new ClientID(), hr, body, trc).get();
+    assertEquals(HTTPResponseCode.OK, sr.getHr().getResponseCode());
+    //Minted in chunks but sent as one response with its length
+    assertEquals(Integer.toString(sr.getBody().remaining()), 
+        sr.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+    JsonObject jo = Utils.GSON.fromJson(StandardCharsets.UTF_8.decode(sr.getBody()).toString(), JsonObject.class);
+    JsonArray creds = jo.getAsJsonArray("credentials");
+    assertEquals(600, creds.size());
+    //Minted in chunks on the scheduler but returned in order
+    for(int i=0; i<600; i++) {
+      TurnRestResponse trr = Utils.GSON.fromJson(creds.get(i), TurnRestResponse.class);
+      assertTrue(trr.getUsername().endsWith(":user"+i));
+    }
+    assertEquals(100, Utils.GSON.fromJson(creds.get(1), TurnRestResponse.class).getTtl());
+    //Can not ask for more than the configured ttl
+    assertEquals(15000, Utils.GSON.fromJson(creds.get(2), TurnRestResponse.class).getTtl());
+
+    body = ByteBuffer.wrap("{\"users\":[{\"username\":\"bob\"}]}".getBytes(StandardCharsets.UTF_8));
+    sr = handler.handleBatch(new ClientID(), hr, body, trc).get();
+    assertEquals(HTTPResponseCode.OK, sr.getHr().getResponseCode());
+    jo = Utils.GSON.fromJson(StandardCharsets.UTF_8.decode(sr.getBody()).toString(), JsonObject.class);
+    assertEquals(1, jo.getAsJsonArray("credentials").size());
+
+    body = ByteBuffer.wrap("{\"users\":[{\"ttl\":5}]}".getBytes(StandardCharsets.UTF_8));
+    sr = handler.handleBatch(new ClientID(), hr, body, trc).get();
+    assertEquals(HTTPResponseCode.BadRequest, sr.getHr().getResponseCode());
+    body = ByteBuffer.wrap("{users:".getBytes(StandardCharsets.UTF_8));
+    sr = handler.handleBatch(new ClientID(), hr, body, trc).get();
+    assertEquals(HTTPResponseCode.BadRequest, sr.getHr().getResponseCode());
+  }
+
+  @Test
+  public void batchFailureTest() throws Exception {
+    //Every chunk is cancelled instead of run
+    TurnRestHTTPHandler handler = new TurnRestHTTPHandler(ju, null, 
+        new SubmitterExecutorAdapter((r)->((Future<?>)r).cancel(false)), null);
+    TurnRestConfig trc = new TurnRestConfig("12312", true, new String[] {"turn:turn.test.com"}, null, 
+        null, null, null, null, 15000L, null, null, "*");
+    HTTPRequest hr = new HTTPRequestBuilder().buildHTTPRequest();
+    StringBuilder sb = new StringBuilder("{\"users\":[");
+    for(int i=0; i<600; i++) {
+      if(i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"username\":\"user").append(i).append("\"}");
+    }
+    sb.append("]}");
+    ByteBuffer body = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    SimpleResponse sr = handler.handleBatch(new ClientID(), hr, body, trc).get();
+    assertEquals(HTTPResponseCode.InternalServerError, sr.getHr().getResponseCode());
+    assertEquals("0", sr.getHr().getHeaders().getHeader(HTTPConstants.HTTP_KEY_CONTENT_LENGTH));
+  }
+
+  @Test
+  public void streamLimitTest() throws Exception {
+    TurnRestConfig trc = new TurnRestConfig("12312", true, new String[] {"turn:turn.test.com"}, null, 
+        null, null, null, null, 15000L, null, null, "*") {
+      @Override
+      public int getMaxStreams() {
+        return 1;
+      }
+    };
+    CredentialStreams streams = new CredentialStreams(ps, ()->trc);
+    TurnRestHTTPHandler handler = new TurnRestHTTPHandler(ju, null, ps, streams);
+    HTTPRequest hr = new HTTPRequestBuilder().buildHTTPRequest();
+
+    SimpleResponse sr = handler.handleStream(new ClientID(), hr, trc).get();
+    assertTrue(sr instanceof StreamingResponse);
+    assertEquals(1, streams.size());
+    //The slot is held from the response being made, not from the stream starting
+    sr = handler.handleStream(new ClientID(), hr, trc).get();
+    assertEquals(HTTPResponseCode.ServiceUnavailable, sr.getHr().getResponseCode());
+    assertTrue(sr.getHr().getHeaders().getHeader(HTTPUtils.HTTP_RETRY_AFTER_HEADER) != null);
+    assertEquals(0, sr.getBody().remaining());
+  }
+
+  @Test
+  public void credentialReuseTest() throws Exception {
+    TurnRestConfig trc = new TurnRestConfig("12312", false, new String[] {"turn:turn.test.com"}, null, 
+        null, null, null, null, 15000L, null, null, "*");
+    CredentialCache cc = new CredentialCache(trc.getCompiled(), 60000, 2);
+    long now = 600000;
+    CredentialCache.Credential c1 = cc.get(CredentialRequest.forUser(userName), now);
+    CredentialCache.Credential c2 = cc.get(CredentialRequest.forUser(userName), now+30000);
+    //Same window, same bytes
+    assertTrue(c1 == c2);
+    assertEquals(660000, c1.getExpiresAt());
+    assertEquals(30, c2.getMaxAge(now+30000));
+    TurnRestResponse trr = Utils.GSON.fromJson(StandardCharsets.UTF_8.decode(c1.getBody()).toString(), TurnRestResponse.class);
+    assertEquals((660+15000)+":"+userName, trr.getUsername());
+
+    //A full window still answers, it just does not keep the answer
+    cc.get(CredentialRequest.forUser("user2"), now);
+    cc.get(CredentialRequest.forUser("user3"), now);
+    assertEquals(2, cc.size());
+
+    //Next window mints new credentials and drops the old ones
+    CredentialCache.Credential c3 = cc.get(CredentialRequest.forUser(userName), now+60000);
+    assertTrue(c1 != c3);
+    assertEquals(1, cc.size());
+    trr = Utils.GSON.fromJson(StandardCharsets.UTF_8.decode(c3.getBody()).toString(), TurnRestResponse.class);
+    assertEquals((720+15000)+":"+userName, trr.getUsername());
+  }
+
 }
 